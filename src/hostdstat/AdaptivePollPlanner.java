@@ -0,0 +1,203 @@
+/**
+ * Plans the next poll time of every host from its last alert levels and usage
+ * trend, so that hot hosts get polled often and healthy hosts are backed off
+ *
+ * Copyright (c) 2016
+ *
+ * Permission is hereby granted, free of charge, to any person
+ * obtaining a copy of this software and associated documentation files
+ * (the "Software"), to deal in the Software without restriction,
+ * including without limitation the rights to use, copy, modify, merge,
+ * publish, distribute, sublicense, and/or sell copies of the Software,
+ * and to permit persons to whom the Software is furnished to do so,
+ * subject to the following conditions:
+ *
+ * @author Gururaja Hegdal (ghegdal@vmware.com)
+ * @version 1.0
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES
+ * OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT
+ * HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY,
+ * WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING
+ * FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR
+ * OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+package hostdstat;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+public class AdaptivePollPlanner implements SampleListener
+{
+    public static final int DEFAULT_MIN_INTERVAL = 30;
+    public static final int DEFAULT_MAX_INTERVAL = 900;
+    public static final int DEFAULT_BASE_INTERVAL = 300;
+
+    // usage at which a host turns WARNING, used to project rising hosts
+    private static final float WARNING_USAGE = 85;
+
+    // delays are in milliseconds
+    private final long minDelay;
+    private final long maxDelay;
+    private final long baseDelay;
+    private final Map<String, PollState> states = new ConcurrentHashMap<String, PollState>();
+
+    /**
+     * Last poll of one host and the delay chosen after it
+     */
+    private static class PollState
+    {
+        final long polledAt;
+        long delay;
+
+        // usage percentage, alert level and observation time of MEM, THREAD and FD. Metrics
+        // missing from a sample, ex: a probe that was not due, keep their last observation.
+        final Float[] usages = new Float[3];
+        final String[] alerts = new String[3];
+        final long[] observedAt = new long[3];
+
+        PollState(HostdSample sample, PollState prev)
+        {
+            polledAt = sample.timestamp;
+            Float[] currUsages = { sample.memThreshold, sample.threadThreshold, sample.fdThreshold };
+            String[] currAlerts = { sample.MEM_ALERT, sample.THREAD_ALERT, sample.FD_ALERT };
+            for (int i = 0; i < usages.length; i++) {
+                if (currUsages[i] != null || currAlerts[i] != null) {
+                    usages[i] = currUsages[i];
+                    alerts[i] = currAlerts[i];
+                    observedAt[i] = sample.timestamp;
+                } else if (prev != null) {
+                    usages[i] = prev.usages[i];
+                    alerts[i] = prev.alerts[i];
+                    observedAt[i] = prev.observedAt[i];
+                }
+            }
+        }
+    }
+
+    /**
+     * Constructor, intervals in seconds
+     */
+    public AdaptivePollPlanner(int minInterval, int maxInterval, int baseInterval)
+    {
+        this.minDelay = minInterval * 1000L;
+        this.maxDelay = Math.max(minDelay, maxInterval * 1000L);
+        this.baseDelay = Math.min(maxDelay, Math.max(minDelay, baseInterval * 1000L));
+    }
+
+    /**
+     * Whether the host is due for polling. Hosts never polled are always due.
+     */
+    public boolean
+    isDue(String vsphereIp, String hostName, long now)
+    {
+        PollState state = states.get(key(vsphereIp, hostName));
+        // half a sweep of slack, as hosts get sampled some time after the sweep started
+        return state == null || now + minDelay / 2 >= state.polledAt + state.delay;
+    }
+
+    /**
+     * Plan the next poll of the sampled host
+     */
+    @Override
+    public void
+    onSample(HostdSample sample)
+    {
+        String key = key(sample.vsphereIp, sample.hostName);
+        PollState prev = states.get(key);
+        PollState state = new PollState(sample, prev);
+        state.delay = nextDelay(prev, state, sample);
+        states.put(key, state);
+        if (Log.isDebugEnabled()) {
+            Log.debug("Next poll of host " + sample.hostName + " in " + (state.delay / 1000) + " seconds");
+        }
+    }
+
+    @Override
+    public void
+    onSweepComplete()
+    {
+    }
+
+    /**
+     * RED hosts are polled at the minimum interval and WARNING hosts at twice that. GREEN
+     * hosts back off, doubling their delay on every poll up to the maximum, unless the usage
+     * of a metric observed in this sample rises fast enough to reach WARNING before the next
+     * poll. Metrics not observed in this sample count with their last observation.
+     */
+    private long
+    nextDelay(PollState prev, PollState state, HostdSample sample)
+    {
+        String level = worstAlert(state.alerts);
+        if (HostdSample.ALERT_RED.equals(level) || Boolean.FALSE.equals(sample.hostdResponsive)) {
+            return minDelay;
+        }
+        if (HostdSample.ALERT_WARNING.equals(level)) {
+            return Math.min(maxDelay, 2 * minDelay);
+        }
+        if (maxUsage(state.usages) == null) {
+            return baseDelay;
+        }
+
+        long delay = prev != null && maxUsage(prev.usages) != null ? Math.min(maxDelay, 2 * prev.delay) : baseDelay;
+        for (int i = 0; prev != null && i < state.usages.length; i++) {
+            Float usage = state.usages[i];
+            Float prevUsage = prev.usages[i];
+            if (usage == null || prevUsage == null || state.observedAt[i] != sample.timestamp
+                || usage <= prevUsage || sample.timestamp <= prev.observedAt[i]) {
+                continue;
+            }
+            // project when the metric reaches WARNING at the current rate, and look again halfway
+            float ratePerMs = (usage - prevUsage) / (sample.timestamp - prev.observedAt[i]);
+            long untilWarning = (long) ((WARNING_USAGE - usage) / ratePerMs);
+            delay = Math.min(delay, untilWarning / 2);
+        }
+        return Math.max(minDelay, delay);
+    }
+
+    /**
+     * Highest of the evaluated usage percentages
+     */
+    static Float
+    maxUsage(Float[] usages)
+    {
+        Float max = null;
+        for (Float usage : usages) {
+            if (usage != null && (max == null || usage > max)) {
+                max = usage;
+            }
+        }
+        return max;
+    }
+
+    /**
+     * Worst of the MEM, THREAD and FD alert levels
+     */
+    static String
+    worstAlert(String[] alerts)
+    {
+        String worst = null;
+        for (String alert : alerts) {
+            if (HostdSample.ALERT_RED.equals(alert)) {
+                return alert;
+            } else if (HostdSample.ALERT_WARNING.equals(alert)) {
+                worst = alert;
+            } else if (alert != null && worst == null) {
+                worst = alert;
+            }
+        }
+        return worst;
+    }
+
+    private static String
+    key(String vsphereIp, String hostName)
+    {
+        return vsphereIp + "/" + hostName;
+    }
+}
@@ -0,0 +1,306 @@
+/**
+ * Sends alert level transitions to webhooks. Transitions are batched over a time window
+ * and deduplicated per host and metric. They are delivered from a background thread with
+ * retries, so collection workers never wait on the network.
+ *
+ * Copyright (c) 2016
+ *
+ * Permission is hereby granted, free of charge, to any person
+ * obtaining a copy of this software and associated documentation files
+ * (the "Software"), to deal in the Software without restriction,
+ * including without limitation the rights to use, copy, modify, merge,
+ * publish, distribute, sublicense, and/or sell copies of the Software,
+ * and to permit persons to whom the Software is furnished to do so,
+ * subject to the following conditions:
+ *
+ * @author Gururaja Hegdal (ghegdal@vmware.com)
+ * @version 1.0
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES
+ * OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT
+ * HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY,
+ * WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING
+ * FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR
+ * OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+package hostdstat;
+
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+public class AlertDispatcher implements SampleListener, Runnable
+{
+    public static final int DEFAULT_WINDOW_SECONDS = 30;
+    public static final int MAX_ATTEMPTS = 5;
+    public static final long FIRST_RETRY_DELAY_MS = 1000;
+    public static final int CONNECT_TIMEOUT_MS = 5000;
+    public static final int READ_TIMEOUT_MS = 10000;
+
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    private final List<URL> webhooks;
+    private final long windowMs;
+
+    // last level per vCenter/host/metric, to detect transitions
+    private final Map<String, String> lastLevels = new ConcurrentHashMap<String, String>();
+
+    // alerts of the current window, one per vCenter/host/metric
+    private Map<String, Alert> pending = new LinkedHashMap<String, Alert>();
+    private Thread sender;
+
+    /**
+     * Transition of one metric of one host
+     */
+    static class Alert
+    {
+        final HostdSample sample;
+        final String metric;
+        final String from;
+        String to;
+        Float usage;
+        long timestamp;
+
+        // transitions folded into this alert during the window
+        int transitions = 1;
+
+        Alert(HostdSample sample, String metric, String from, String to, Float usage)
+        {
+            this.sample = sample;
+            this.metric = metric;
+            this.from = from;
+            this.to = to;
+            this.usage = usage;
+            this.timestamp = sample.timestamp;
+        }
+    }
+
+    /**
+     * Constructor
+     */
+    public AlertDispatcher(List<URL> webhooks, int windowSeconds)
+    {
+        this.webhooks = webhooks;
+        this.windowMs = Math.max(1, windowSeconds) * 1000L;
+    }
+
+    /**
+     * Start the sender thread, and deliver what is left at shutdown
+     */
+    public synchronized void
+    start()
+    {
+        if (sender != null) {
+            return;
+        }
+        sender = new Thread(this, "alert-dispatcher");
+        sender.setDaemon(true);
+        sender.start();
+        Runtime.getRuntime().addShutdownHook(new Thread() {
+            @Override
+            public void
+            run()
+            {
+                dispatch();
+            }
+        });
+    }
+
+    @Override
+    public void
+    onSample(HostdSample sample)
+    {
+        checkTransition(sample, "MEM", sample.MEM_ALERT, sample.memThreshold);
+        checkTransition(sample, "THREAD", sample.THREAD_ALERT, sample.threadThreshold);
+        checkTransition(sample, "FD", sample.FD_ALERT, sample.fdThreshold);
+        checkTransition(sample, "RESPONSE", sample.RESPONSE_ALERT, null);
+    }
+
+    @Override
+    public void
+    onSweepComplete()
+    {
+    }
+
+    /**
+     * Sender loop, delivering one batch per window
+     */
+    @Override
+    public void
+    run()
+    {
+        while (true) {
+            try {
+                Thread.sleep(windowMs);
+            } catch (InterruptedException e) {
+                return;
+            }
+            dispatch();
+        }
+    }
+
+    /**
+     * Queue an alert if the level of the metric changed. Hosts seen for the first time only
+     * alert when not GREEN.
+     */
+    private void
+    checkTransition(HostdSample sample, String metric, String level, Float usage)
+    {
+        if (level == null) {
+            return;
+        }
+        String key = sample.vsphereIp + "/" + sample.hostName + "/" + metric;
+        String prev = lastLevels.put(key, level);
+        if (level.equals(prev) || (prev == null && HostdSample.ALERT_GREEN.equals(level))) {
+            return;
+        }
+
+        synchronized (this) {
+            Alert alert = pending.get(key);
+            if (alert == null) {
+                pending.put(key, new Alert(sample, metric, prev, level, usage));
+            } else if (level.equals(alert.from) || (alert.from == null && HostdSample.ALERT_GREEN.equals(level))) {
+                // flapped back within the window, or a new host back to GREEN, nothing to report
+                pending.remove(key);
+            } else {
+                alert.to = level;
+                alert.usage = usage;
+                alert.timestamp = sample.timestamp;
+                alert.transitions++;
+            }
+        }
+    }
+
+    /**
+     * Send the alerts of the window as one batch to every webhook
+     */
+    void
+    dispatch()
+    {
+        List<Alert> batch;
+        synchronized (this) {
+            if (pending.isEmpty()) {
+                return;
+            }
+            batch = new ArrayList<Alert>(pending.values());
+            pending = new LinkedHashMap<String, Alert>();
+        }
+        byte[] payload = toJson(batch).getBytes(UTF8);
+        for (URL webhook : webhooks) {
+            deliver(webhook, payload, batch.size());
+        }
+    }
+
+    /**
+     * POST the payload, retrying with exponential backoff
+     */
+    private void
+    deliver(URL webhook, byte[] payload, int alertCount)
+    {
+        long delay = FIRST_RETRY_DELAY_MS;
+        for (int attempt = 1; attempt <= MAX_ATTEMPTS; attempt++) {
+            try {
+                int status = post(webhook, payload);
+                if (status >= 200 && status < 300) {
+                    Log.info("Delivered " + alertCount + " alert(s) to " + webhook);
+                    return;
+                }
+                Log.warn("Webhook " + webhook + " answered HTTP " + status + ", attempt " + attempt);
+                if (status >= 400 && status < 500 && status != 429) {
+                    break;
+                }
+            } catch (Exception e) {
+                Log.warn("Caught exception while sending alerts to " + webhook + ", attempt " + attempt + ": " + e);
+            }
+            if (attempt < MAX_ATTEMPTS) {
+                try {
+                    Thread.sleep(delay);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    break;
+                }
+                delay *= 2;
+            }
+        }
+        Log.error("Dropped " + alertCount + " alert(s) for webhook " + webhook);
+    }
+
+    /**
+     * One POST request. The response is always read to the end, so that the keep-alive
+     * connection goes back to the JDK connection pool for the next batch.
+     */
+    private static int
+    post(URL webhook, byte[] payload) throws Exception
+    {
+        HttpURLConnection conn = (HttpURLConnection) webhook.openConnection();
+        conn.setConnectTimeout(CONNECT_TIMEOUT_MS);
+        conn.setReadTimeout(READ_TIMEOUT_MS);
+        conn.setRequestMethod("POST");
+        conn.setDoOutput(true);
+        conn.setFixedLengthStreamingMode(payload.length);
+        conn.setRequestProperty("Content-Type", "application/json; charset=utf-8");
+
+        OutputStream out = conn.getOutputStream();
+        try {
+            out.write(payload);
+        } finally {
+            out.close();
+        }
+
+        int status = conn.getResponseCode();
+        InputStream in = status < 400 ? conn.getInputStream() : conn.getErrorStream();
+        if (in != null) {
+            try {
+                byte[] buf = new byte[1024];
+                while (in.read(buf) >= 0) {
+                    // drain
+                }
+            } finally {
+                in.close();
+            }
+        }
+        return status;
+    }
+
+    /**
+     * Batch payload
+     */
+    static String
+    toJson(List<Alert> batch)
+    {
+        StringBuilder sb = new StringBuilder();
+        sb.append("{\"source\":\"hostdstat\",\"sentAt\":").append(System.currentTimeMillis()).append(",\"alerts\":[");
+        for (int i = 0; i < batch.size(); i++) {
+            Alert alert = batch.get(i);
+            if (i > 0) {
+                sb.append(',');
+            }
+            sb.append("{\"vsphereIp\":").append(Json.quote(alert.sample.vsphereIp));
+            sb.append(",\"host\":").append(Json.quote(alert.sample.hostName));
+            sb.append(",\"datacenter\":").append(Json.quote(alert.sample.datacenter));
+            sb.append(",\"cluster\":").append(Json.quote(alert.sample.cluster));
+            sb.append(",\"metric\":").append(Json.quote(alert.metric));
+            sb.append(",\"from\":").append(Json.quote(alert.from));
+            sb.append(",\"to\":").append(Json.quote(alert.to));
+            sb.append(",\"usage\":").append(alert.usage != null ? String.format(Locale.ROOT, "%.1f", alert.usage) : "null");
+            sb.append(",\"timestamp\":").append(alert.timestamp);
+            sb.append(",\"transitions\":").append(alert.transitions).append('}');
+        }
+        sb.append("]}");
+        return sb.toString();
+    }
+}
@@ -0,0 +1,285 @@
+/**
+ * Collects hostd stats through vSphere APIs (PerformanceManager and HostSystem
+ * properties) for many hosts per call, without enabling SSH on the hosts
+ *
+ * Copyright (c) 2016
+ *
+ * Permission is hereby granted, free of charge, to any person
+ * obtaining a copy of this software and associated documentation files
+ * (the "Software"), to deal in the Software without restriction,
+ * including without limitation the rights to use, copy, modify, merge,
+ * publish, distribute, sublicense, and/or sell copies of the Software,
+ * and to permit persons to whom the Software is furnished to do so,
+ * subject to the following conditions:
+ *
+ * @author Gururaja Hegdal (ghegdal@vmware.com)
+ * @version 1.0
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES
+ * OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT
+ * HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY,
+ * WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING
+ * FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR
+ * OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+package hostdstat;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import com.vmware.vim25.DynamicProperty;
+import com.vmware.vim25.HostSystemResourceInfo;
+import com.vmware.vim25.ObjectContent;
+import com.vmware.vim25.ObjectSpec;
+import com.vmware.vim25.PerfCounterInfo;
+import com.vmware.vim25.PerfEntityMetric;
+import com.vmware.vim25.PerfEntityMetricBase;
+import com.vmware.vim25.PerfMetricId;
+import com.vmware.vim25.PerfMetricIntSeries;
+import com.vmware.vim25.PerfMetricSeries;
+import com.vmware.vim25.PerfQuerySpec;
+import com.vmware.vim25.PropertyFilterSpec;
+import com.vmware.vim25.PropertySpec;
+import com.vmware.vim25.RetrieveOptions;
+import com.vmware.vim25.RetrieveResult;
+import com.vmware.vim25.mo.HostSystem;
+import com.vmware.vim25.mo.PerformanceManager;
+import com.vmware.vim25.mo.PropertyCollector;
+import com.vmware.vim25.mo.ServiceInstance;
+
+public class ApiStatsCollector
+{
+    // hosts per bulk PerformanceManager/PropertyCollector call
+    public static final int BATCH_SIZE = 50;
+
+    // hostd resource group, as used by esxcfg-resgrp and the 'sys' perf counter instances
+    public static final String HOSTD_RESOURCE_GROUP = "host/vim/vmvisor/hostd";
+    public static final String SYS_COUNTER_GROUP = "sys";
+    public static final String MEM_CONSUMED_COUNTER = "resourceMemConsumed";
+    public static final String FD_USAGE_COUNTER = "resourceFdUsage";
+    public static final int REALTIME_INTERVAL_ID = 20;
+
+    private static final String PROP_NAME = "name";
+    private static final String PROP_SYSTEM_RESOURCES = "systemResources";
+
+    private final ServiceInstance si;
+    private final String vsphereIp;
+    private Integer memConsumedCounterId;
+    private Integer fdUsageCounterId;
+    private boolean countersLoaded = false;
+
+    /**
+     * Constructor
+     */
+    public ApiStatsCollector(ServiceInstance si, String vsphereIp)
+    {
+        this.si = si;
+        this.vsphereIp = vsphereIp;
+    }
+
+    /**
+     * Collect the stats available through APIs for a batch of hosts: hostd memory usage
+     * and limit, and FD usage. Two calls in total, whatever the size of the batch.
+     * Samples are keyed by host managed object id.
+     */
+    public Map<String, HostdSample>
+    collect(List<HostSystem> hosts) throws Exception
+    {
+        loadCounterIds();
+
+        // host properties, name and resource group tree, in one call
+        Map<String, HostdSample> samples = new LinkedHashMap<String, HostdSample>();
+        for (ObjectContent oc : retrieveHostProperties(hosts)) {
+            String name = null;
+            HostSystemResourceInfo resInfo = null;
+            if (oc.getPropSet() != null) {
+                for (DynamicProperty prop : oc.getPropSet()) {
+                    if (PROP_NAME.equals(prop.getName())) {
+                        name = (String) prop.getVal();
+                    } else if (PROP_SYSTEM_RESOURCES.equals(prop.getName())) {
+                        resInfo = (HostSystemResourceInfo) prop.getVal();
+                    }
+                }
+            }
+            HostdSample sample = new HostdSample(vsphereIp, name);
+            HostSystemResourceInfo hostdGroup = findResourceGroup(resInfo, HOSTD_RESOURCE_GROUP);
+            if (hostdGroup != null && hostdGroup.getConfig() != null
+                && hostdGroup.getConfig().getMemoryAllocation() != null) {
+                Long limitMb = hostdGroup.getConfig().getMemoryAllocation().getLimit();
+                if (limitMb != null && limitMb > 0) {
+                    sample.hostdMemLimit = String.format("%.2f", limitMb.floatValue());
+                }
+            }
+            samples.put(oc.getObj().getVal(), sample);
+        }
+
+        // latest realtime sample of the hostd resource group counters, in one call
+        PerfEntityMetricBase[] metrics = queryHostdCounters(hosts);
+        if (metrics != null) {
+            for (PerfEntityMetricBase base : metrics) {
+                HostdSample sample = samples.get(base.getEntity().getVal());
+                if (sample == null || !(base instanceof PerfEntityMetric)
+                    || ((PerfEntityMetric) base).getValue() == null) {
+                    continue;
+                }
+                for (PerfMetricSeries series : ((PerfEntityMetric) base).getValue()) {
+                    if (!(series instanceof PerfMetricIntSeries)) {
+                        continue;
+                    }
+                    long[] values = ((PerfMetricIntSeries) series).getValue();
+                    if (values == null || values.length == 0 || values[values.length - 1] < 0) {
+                        continue;
+                    }
+                    long latest = values[values.length - 1];
+                    int counterId = series.getId().getCounterId();
+                    if (memConsumedCounterId != null && counterId == memConsumedCounterId) {
+                        // counter is in KB
+                        sample.hostdMemUsage = String.format("%.2f", latest / 1024f);
+                    } else if (fdUsageCounterId != null && counterId == fdUsageCounterId) {
+                        sample.fdUsage = String.valueOf(latest);
+                    }
+                }
+            }
+        }
+
+        for (HostdSample sample : samples.values()) {
+            if (sample.hostdMemUsage != null && sample.hostdMemUsage.equals(sample.hostdMemLimit)) {
+                sample.memAtLimit = true;
+            }
+        }
+        return samples;
+    }
+
+    /**
+     * Look up the 'sys' resource group counters once per vCenter
+     */
+    private synchronized void
+    loadCounterIds()
+    {
+        if (countersLoaded) {
+            return;
+        }
+        PerfCounterInfo[] counters = si.getPerformanceManager().getPerfCounter();
+        if (counters != null) {
+            for (PerfCounterInfo counter : counters) {
+                if (!SYS_COUNTER_GROUP.equals(counter.getGroupInfo().getKey())) {
+                    continue;
+                }
+                if (MEM_CONSUMED_COUNTER.equals(counter.getNameInfo().getKey())) {
+                    memConsumedCounterId = counter.getKey();
+                } else if (FD_USAGE_COUNTER.equals(counter.getNameInfo().getKey())) {
+                    fdUsageCounterId = counter.getKey();
+                }
+            }
+        }
+        if (memConsumedCounterId == null) {
+            Log.error("vSphere: " + vsphereIp + " does not expose the " + SYS_COUNTER_GROUP + "."
+                + MEM_CONSUMED_COUNTER + " counter");
+        }
+        if (fdUsageCounterId == null) {
+            Log.error("vSphere: " + vsphereIp + " does not expose the " + SYS_COUNTER_GROUP + "."
+                + FD_USAGE_COUNTER + " counter");
+        }
+        countersLoaded = true;
+    }
+
+    /**
+     * Query the hostd resource group counters of all given hosts
+     */
+    private PerfEntityMetricBase[]
+    queryHostdCounters(List<HostSystem> hosts) throws Exception
+    {
+        List<PerfMetricId> metricIds = new ArrayList<PerfMetricId>();
+        for (Integer counterId : new Integer[] { memConsumedCounterId, fdUsageCounterId }) {
+            if (counterId != null) {
+                PerfMetricId metricId = new PerfMetricId();
+                metricId.setCounterId(counterId);
+                metricId.setInstance(HOSTD_RESOURCE_GROUP);
+                metricIds.add(metricId);
+            }
+        }
+        if (metricIds.isEmpty()) {
+            return null;
+        }
+
+        PerfQuerySpec[] specs = new PerfQuerySpec[hosts.size()];
+        for (int i = 0; i < hosts.size(); i++) {
+            specs[i] = new PerfQuerySpec();
+            specs[i].setEntity(hosts.get(i).getMOR());
+            specs[i].setMetricId(metricIds.toArray(new PerfMetricId[metricIds.size()]));
+            specs[i].setIntervalId(REALTIME_INTERVAL_ID);
+            specs[i].setMaxSample(1);
+        }
+        PerformanceManager perfMgr = si.getPerformanceManager();
+        return perfMgr.queryPerf(specs);
+    }
+
+    /**
+     * Retrieve name and systemResources of all given hosts
+     */
+    private List<ObjectContent>
+    retrieveHostProperties(List<HostSystem> hosts) throws Exception
+    {
+        PropertySpec propSpec = new PropertySpec();
+        propSpec.setType(FetchStats.HOST_MOR_TYPE);
+        propSpec.setPathSet(new String[] { PROP_NAME, PROP_SYSTEM_RESOURCES });
+
+        ObjectSpec[] objSpecs = new ObjectSpec[hosts.size()];
+        for (int i = 0; i < hosts.size(); i++) {
+            objSpecs[i] = new ObjectSpec();
+            objSpecs[i].setObj(hosts.get(i).getMOR());
+            objSpecs[i].setSkip(Boolean.FALSE);
+        }
+
+        PropertyFilterSpec filterSpec = new PropertyFilterSpec();
+        filterSpec.setPropSet(new PropertySpec[] { propSpec });
+        filterSpec.setObjectSet(objSpecs);
+
+        RetrieveOptions options = new RetrieveOptions();
+        options.setMaxObjects(hosts.size());
+
+        // the batch normally fits in one page, the server may still split it
+        List<ObjectContent> contents = new ArrayList<ObjectContent>();
+        PropertyCollector collector = si.getPropertyCollector();
+        RetrieveResult result = collector.retrievePropertiesEx(new PropertyFilterSpec[] { filterSpec }, options);
+        while (result != null) {
+            if (result.getObjects() != null) {
+                contents.addAll(Arrays.asList(result.getObjects()));
+            }
+            result = result.getToken() != null ? collector.continueRetrievePropertiesEx(result.getToken()) : null;
+        }
+        return contents;
+    }
+
+    /**
+     * Depth first search for a resource group in the host resource tree
+     */
+    static HostSystemResourceInfo
+    findResourceGroup(HostSystemResourceInfo node, String key)
+    {
+        if (node == null) {
+            return null;
+        }
+        if (key.equals(node.getKey())) {
+            return node;
+        }
+        if (node.getChild() != null) {
+            for (HostSystemResourceInfo child : node.getChild()) {
+                HostSystemResourceInfo found = findResourceGroup(child, key);
+                if (found != null) {
+                    return found;
+                }
+            }
+        }
+        return null;
+    }
+}
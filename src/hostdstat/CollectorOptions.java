@@ -0,0 +1,366 @@
+/**
+ * Global collector options, read from command line arguments. vCenter specific
+ * options (IP and credentials) are handled by FetchStats.
+ *
+ * Copyright (c) 2016
+ *
+ * Permission is hereby granted, free of charge, to any person
+ * obtaining a copy of this software and associated documentation files
+ * (the "Software"), to deal in the Software without restriction,
+ * including without limitation the rights to use, copy, modify, merge,
+ * publish, distribute, sublicense, and/or sell copies of the Software,
+ * and to permit persons to whom the Software is furnished to do so,
+ * subject to the following conditions:
+ *
+ * @author Gururaja Hegdal (ghegdal@vmware.com)
+ * @version 1.0
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES
+ * OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT
+ * HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY,
+ * WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING
+ * FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR
+ * OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+package hostdstat;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.MalformedURLException;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.regex.Pattern;
+import java.util.regex.PatternSyntaxException;
+
+public class CollectorOptions
+{
+    public static final String REPORT_FULL = "full";
+    public static final String REPORT_COMPACT = "compact";
+    public static final String REPORT_DELTA = "delta";
+
+    // vCenter list file, for collecting from many vCenters
+    String configFile;
+
+    // size of the shared host worker pool, 0 picks a default
+    int workers = 0;
+
+    // directory where vCenter session cookies are cached between runs
+    SessionCache sessionCache;
+
+    // seconds between sweeps in long running mode, 0 runs a single sweep
+    int interval = 0;
+
+    // collect through vSphere APIs instead of SSH, optionally using SSH for the remaining metrics
+    boolean apiCollector = false;
+    boolean sshFallback = false;
+
+    // streaming mode: seconds between streamed samples, and how long to stream (0 until stopped)
+    int streamInterval = 0;
+    int streamDuration = 0;
+
+    // report format: full STATS blocks, one compact line per host, or changes only
+    String reportMode = REPORT_FULL;
+    float epsilon = DeltaReporter.DEFAULT_EPSILON;
+    int snapshotEvery = DeltaReporter.DEFAULT_SNAPSHOT_EVERY;
+
+    // adaptive polling: hosts are polled between min and max interval seconds depending on health
+    boolean adaptive = false;
+    int minInterval = AdaptivePollPlanner.DEFAULT_MIN_INTERVAL;
+    int maxInterval = AdaptivePollPlanner.DEFAULT_MAX_INTERVAL;
+
+    // backoff in seconds of hosts that keep failing, doubled on every consecutive failure
+    int baseBackoff = HostCircuitBreaker.DEFAULT_BASE_BACKOFF;
+    int maxBackoff = HostCircuitBreaker.DEFAULT_MAX_BACKOFF;
+
+    // per cluster, datacenter and fleet wide percentiles after every sweep
+    boolean rollup = false;
+
+    // hosts standing out from their cluster peers by more than the z-score threshold
+    boolean anomaly = false;
+    float anomalyZ = (float) PeerAnomalyDetector.DEFAULT_Z_THRESHOLD;
+
+    // directory where samples are stored for the query subcommand, null disables it
+    HistoryStore historyStore;
+
+    // directory of the columnar export of every sample, null disables it
+    ColumnarExporter columnarExporter;
+
+    // probe cadence overrides, in collections, and cost budget per collection (0 for no limit)
+    Map<String, Integer> probeCadences = new HashMap<String, Integer>();
+    int probeBudget = 0;
+    private List<Probe> probes;
+
+    // seconds the SSH service started by us stays enabled after the last collection of a host,
+    // and where leases are journaled to revert them after a crash
+    int sshLease = 0;
+    String sshLeaseJournalDir = System.getProperty("user.home") + File.separator + ".hostdstat";
+
+    // webhooks receiving alert level transitions, and seconds over which alerts are batched
+    List<URL> alertWebhooks = new ArrayList<URL>();
+    int alertWindow = AlertDispatcher.DEFAULT_WINDOW_SECONDS;
+
+    // journal of the progress of the current sweep, to resume it after a crash, null disables it
+    String checkpointFile;
+
+    // Chrome trace file of the collection phases of every host, null disables tracing
+    String traceFile;
+
+    // host keys accepted on first connection, verified on the next ones
+    String knownHostsFile = sshLeaseJournalDir + File.separator + SshProfile.KNOWN_HOSTS_FILE;
+    private SshProfile sshProfile;
+
+    // selection of the hosts to collect from
+    HostFilter hostFilter = new HostFilter();
+
+    // hosts retrieved per inventory page
+    int pageSize = HostIterator.DEFAULT_PAGE_SIZE;
+
+    /**
+     * Constructor
+     */
+    public CollectorOptions(String[] cmdProps)
+    {
+        makeProperties(cmdProps);
+    }
+
+    /**
+     * Read options from command line arguments
+     */
+    private void
+    makeProperties(String[] cmdProps)
+    {
+        // logging first, so that it applies to everything that follows
+        for (int i = 0; i < cmdProps.length - 1; i++) {
+            if (cmdProps[i].equals("--log-level")) {
+                Log.setLevel(cmdProps[i + 1]);
+            } else if (cmdProps[i].equals("--log-file")) {
+                Log.setLogFile(cmdProps[i + 1]);
+            }
+        }
+
+        for (int i = 0; i < cmdProps.length - 1; i++) {
+            if (cmdProps[i].equals("--config")) {
+                configFile = cmdProps[i + 1];
+                Log.info("vSphere list file:" + configFile);
+            } else if (cmdProps[i].equals("--workers")) {
+                workers = parseInt(cmdProps[i], cmdProps[i + 1], workers);
+                Log.info("Host workers:" + workers);
+            } else if (cmdProps[i].equals("--session-cache")) {
+                sessionCache = new SessionCache(cmdProps[i + 1]);
+                Log.info("vSphere session cache:" + cmdProps[i + 1]);
+            } else if (cmdProps[i].equals("--interval")) {
+                interval = parseInt(cmdProps[i], cmdProps[i + 1], interval);
+                Log.info("Sweep interval (seconds):" + interval);
+            } else if (cmdProps[i].equals("--collector")) {
+                apiCollector = cmdProps[i + 1].equalsIgnoreCase("api");
+                Log.info("Collector:" + (apiCollector ? "api" : "ssh"));
+            } else if (cmdProps[i].equals("--stream")) {
+                streamInterval = parseInt(cmdProps[i], cmdProps[i + 1], streamInterval);
+                Log.info("Streaming interval (seconds):" + streamInterval);
+            } else if (cmdProps[i].equals("--duration")) {
+                streamDuration = parseInt(cmdProps[i], cmdProps[i + 1], streamDuration);
+                Log.info("Streaming duration (seconds):" + streamDuration);
+            } else if (cmdProps[i].equals("--report")) {
+                reportMode = cmdProps[i + 1].toLowerCase();
+                Log.info("Report mode:" + reportMode);
+            } else if (cmdProps[i].equals("--epsilon")) {
+                epsilon = parseFloat(cmdProps[i], cmdProps[i + 1], epsilon);
+                Log.info("Delta report epsilon (%):" + epsilon);
+            } else if (cmdProps[i].equals("--snapshot-every")) {
+                snapshotEvery = parseInt(cmdProps[i], cmdProps[i + 1], snapshotEvery);
+                Log.info("Delta report snapshot every (sweeps):" + snapshotEvery);
+            } else if (cmdProps[i].equals("--page-size")) {
+                pageSize = parseInt(cmdProps[i], cmdProps[i + 1], pageSize);
+                Log.info("Inventory page size:" + pageSize);
+            } else if (cmdProps[i].equals("--min-interval")) {
+                minInterval = parseInt(cmdProps[i], cmdProps[i + 1], minInterval);
+                Log.info("Adaptive polling min interval (seconds):" + minInterval);
+            } else if (cmdProps[i].equals("--max-interval")) {
+                maxInterval = parseInt(cmdProps[i], cmdProps[i + 1], maxInterval);
+                Log.info("Adaptive polling max interval (seconds):" + maxInterval);
+            } else if (cmdProps[i].equals("--backoff")) {
+                baseBackoff = parseInt(cmdProps[i], cmdProps[i + 1], baseBackoff);
+                Log.info("Failed host backoff (seconds):" + baseBackoff);
+            } else if (cmdProps[i].equals("--max-backoff")) {
+                maxBackoff = parseInt(cmdProps[i], cmdProps[i + 1], maxBackoff);
+                Log.info("Failed host max backoff (seconds):" + maxBackoff);
+            } else if (cmdProps[i].equals("--probe-cadence")) {
+                for (String cadence : cmdProps[i + 1].split(",")) {
+                    String[] nameValue = cadence.split("=");
+                    if (nameValue.length == 2) {
+                        probeCadences.put(nameValue[0].trim(), parseInt(cmdProps[i], nameValue[1].trim(), 1));
+                    } else {
+                        Log.error("Invalid " + cmdProps[i] + " value: " + cadence + ", expected <probe>=<count>");
+                    }
+                }
+                Log.info("Probe cadences (collections):" + probeCadences);
+            } else if (cmdProps[i].equals("--probe-budget")) {
+                probeBudget = parseInt(cmdProps[i], cmdProps[i + 1], probeBudget);
+                Log.info("Probe cost budget per collection:" + probeBudget);
+            } else if (cmdProps[i].equals("--ssh-lease")) {
+                sshLease = parseInt(cmdProps[i], cmdProps[i + 1], sshLease);
+                Log.info("SSH service idle lease (seconds):" + sshLease);
+            } else if (cmdProps[i].equals("--ssh-lease-journal")) {
+                sshLeaseJournalDir = cmdProps[i + 1];
+                Log.info("SSH service lease journal directory:" + sshLeaseJournalDir);
+            } else if (cmdProps[i].equals("--alert-webhook")) {
+                try {
+                    alertWebhooks.add(new URL(cmdProps[i + 1]));
+                    Log.info("Alert webhook:" + cmdProps[i + 1]);
+                } catch (MalformedURLException e) {
+                    Log.error("Invalid " + cmdProps[i] + " value: " + cmdProps[i + 1] + ", ignoring it");
+                }
+            } else if (cmdProps[i].equals("--alert-window")) {
+                alertWindow = parseInt(cmdProps[i], cmdProps[i + 1], alertWindow);
+                Log.info("Alert batching window (seconds):" + alertWindow);
+            } else if (cmdProps[i].equals("--anomaly-z")) {
+                anomalyZ = parseFloat(cmdProps[i], cmdProps[i + 1], anomalyZ);
+                anomaly = true;
+                Log.info("Peer anomaly z-score threshold:" + anomalyZ);
+            } else if (cmdProps[i].equals("--checkpoint")) {
+                checkpointFile = cmdProps[i + 1];
+                Log.info("Sweep checkpoint file:" + checkpointFile);
+            } else if (cmdProps[i].equals("--trace")) {
+                traceFile = cmdProps[i + 1];
+                Log.info("Trace file:" + traceFile);
+            } else if (cmdProps[i].equals("--known-hosts")) {
+                knownHostsFile = cmdProps[i + 1];
+                Log.info("SSH known hosts file:" + knownHostsFile);
+            } else if (cmdProps[i].equals("--history")) {
+                try {
+                    historyStore = new HistoryStore(cmdProps[i + 1]);
+                    Log.info("History directory:" + cmdProps[i + 1]);
+                } catch (IOException e) {
+                    Log.error("Unable to open history directory: " + cmdProps[i + 1], e);
+                }
+            } else if (cmdProps[i].equals("--export")) {
+                try {
+                    columnarExporter = new ColumnarExporter(cmdProps[i + 1]);
+                    Log.info("Columnar export directory:" + cmdProps[i + 1]);
+                } catch (IOException e) {
+                    Log.error("Unable to open export directory: " + cmdProps[i + 1], e);
+                }
+            } else if (cmdProps[i].equals("--datacenter")) {
+                hostFilter.datacenter = cmdProps[i + 1];
+                Log.info("Datacenter:" + hostFilter.datacenter);
+            } else if (cmdProps[i].equals("--cluster")) {
+                hostFilter.cluster = cmdProps[i + 1];
+                Log.info("Cluster:" + hostFilter.cluster);
+            } else if (cmdProps[i].equals("--host-regex")) {
+                try {
+                    hostFilter.hostPattern = Pattern.compile(cmdProps[i + 1]);
+                    Log.info("Host name pattern:" + hostFilter.hostPattern);
+                } catch (PatternSyntaxException e) {
+                    Log.error("Invalid " + cmdProps[i] + " value: " + cmdProps[i + 1] + ", selecting all hosts");
+                }
+            }
+        }
+        for (String cmdProp : cmdProps) {
+            if (cmdProp.equals("--ssh-fallback")) {
+                sshFallback = true;
+                Log.info("SSH fallback for metrics not available through APIs: enabled");
+            } else if (cmdProp.equals("--adaptive")) {
+                adaptive = true;
+                Log.info("Adaptive polling: enabled");
+            } else if (cmdProp.equals("--rollup")) {
+                rollup = true;
+                Log.info("Rollups per cluster, datacenter and fleet: enabled");
+            } else if (cmdProp.equals("--anomaly")) {
+                anomaly = true;
+                Log.info("Peer anomaly detection within clusters: enabled");
+            } else if (cmdProp.equals("--skip-maintenance")) {
+                hostFilter.skipMaintenance = true;
+                Log.info("Skipping hosts in maintenance mode");
+            } else if (cmdProp.equals("--connected-only")) {
+                hostFilter.connectedOnly = true;
+                Log.info("Skipping hosts that are not connected");
+            }
+        }
+
+        // adaptive polling only makes sense when sweeps repeat
+        if (adaptive && interval <= 0) {
+            interval = AdaptivePollPlanner.DEFAULT_BASE_INTERVAL;
+            Log.info("Sweep interval (seconds):" + interval);
+        }
+    }
+
+    /**
+     * Whether sweeps repeat until the process is stopped
+     */
+    public boolean
+    isLongRunning()
+    {
+        return interval > 0;
+    }
+
+    /**
+     * Probes to run on every host, loaded once
+     */
+    public synchronized List<Probe>
+    getProbes()
+    {
+        if (probes == null) {
+            probes = ProbeRunner.loadProbes();
+        }
+        return probes;
+    }
+
+    /**
+     * SSH connection profile shared by all vCenters, so that host keys are learnt once
+     */
+    public synchronized SshProfile
+    getSshProfile()
+    {
+        if (sshProfile == null) {
+            sshProfile = new SshProfile(new File(knownHostsFile));
+        }
+        return sshProfile;
+    }
+
+    /**
+     * Seconds between two sweeps. With adaptive polling sweeps run at the minimum interval,
+     * and only pick the hosts that are due.
+     */
+    public int
+    getSweepInterval()
+    {
+        return adaptive ? Math.min(minInterval, interval) : interval;
+    }
+
+    /**
+     * Parse a numeric option, falling back to the default on bad input
+     */
+    static int
+    parseInt(String option, String value, int defaultValue)
+    {
+        try {
+            return Integer.parseInt(value);
+        } catch (NumberFormatException e) {
+            Log.error("Invalid " + option + " value: " + value + ", using " + defaultValue);
+            return defaultValue;
+        }
+    }
+
+    /**
+     * Parse a decimal option, falling back to the default on bad input
+     */
+    static float
+    parseFloat(String option, String value, float defaultValue)
+    {
+        try {
+            return Float.parseFloat(value);
+        } catch (NumberFormatException e) {
+            Log.error("Invalid " + option + " value: " + value + ", using " + defaultValue);
+            return defaultValue;
+        }
+    }
+}
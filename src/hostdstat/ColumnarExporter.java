@@ -0,0 +1,357 @@
+/**
+ * Writes every sample to compact columnar files, one per UTC day, for shipping sample
+ * archives to other teams. See ColumnarFormat for the layout.
+ *
+ * Copyright (c) 2016
+ *
+ * Permission is hereby granted, free of charge, to any person
+ * obtaining a copy of this software and associated documentation files
+ * (the "Software"), to deal in the Software without restriction,
+ * including without limitation the rights to use, copy, modify, merge,
+ * publish, distribute, sublicense, and/or sell copies of the Software,
+ * and to permit persons to whom the Software is furnished to do so,
+ * subject to the following conditions:
+ *
+ * @author Gururaja Hegdal (ghegdal@vmware.com)
+ * @version 1.0
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES
+ * OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT
+ * HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY,
+ * WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING
+ * FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR
+ * OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+package hostdstat;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.CRC32;
+
+public class ColumnarExporter implements SampleListener
+{
+    private final File dir;
+
+    // rows of the block being filled, all of the same UTC day
+    private final ColumnarReader.HostInfo[] rowHosts = new ColumnarReader.HostInfo[ColumnarFormat.BLOCK_ROWS];
+    private final long[] timestamps = new long[ColumnarFormat.BLOCK_ROWS];
+    private final long[][] values = new long[ColumnarFormat.VALUE_COLUMNS][ColumnarFormat.BLOCK_ROWS];
+    private int rows = 0;
+    private long blockDay = -1;
+
+    // one instance per vCenter/host/datacenter/cluster, shared by the rows
+    private final Map<String, ColumnarReader.HostInfo> hostCache = new HashMap<String, ColumnarReader.HostInfo>();
+
+    // file of the current day, and its host dictionary
+    private long fileDay = -1;
+    private File file;
+    private final Map<ColumnarReader.HostInfo, Integer> fileHostIds = new HashMap<ColumnarReader.HostInfo, Integer>();
+    private final Map<String, Integer> fileHostKeys = new HashMap<String, Integer>();
+
+    /**
+     * Export to the given directory, creating it if needed
+     */
+    public ColumnarExporter(String dirName) throws IOException
+    {
+        this.dir = new File(dirName);
+        if (!dir.isDirectory() && !dir.mkdirs()) {
+            throw new IOException("Unable to create export directory: " + dirName);
+        }
+    }
+
+    @Override
+    public synchronized void
+    onSample(HostdSample sample)
+    {
+        long day = sample.timestamp / ColumnarFormat.DAY_MS;
+        if (rows > 0 && day != blockDay) {
+            flush();
+        }
+        blockDay = day;
+
+        String key = sample.vsphereIp + "\t" + sample.hostName + "\t" + sample.datacenter + "\t" + sample.cluster;
+        ColumnarReader.HostInfo host = hostCache.get(key);
+        if (host == null) {
+            host = new ColumnarReader.HostInfo(sample.vsphereIp, sample.hostName, sample.datacenter, sample.cluster);
+            hostCache.put(key, host);
+        }
+        rowHosts[rows] = host;
+        timestamps[rows] = sample.timestamp;
+        values[ColumnarFormat.COL_MEM_USAGE][rows] = hundredths(sample.hostdMemUsage);
+        values[ColumnarFormat.COL_MEM_LIMIT][rows] = hundredths(sample.hostdMemLimit);
+        values[ColumnarFormat.COL_THREAD_USAGE][rows] = count(sample.threadUsage);
+        values[ColumnarFormat.COL_THREAD_LIMIT][rows] = count(sample.threadLimit);
+        values[ColumnarFormat.COL_FD_USAGE][rows] = count(sample.fdUsage);
+        values[ColumnarFormat.COL_FD_LIMIT][rows] = count(sample.fdLimit);
+        int flags = sample.hostdResponsive == null ? ColumnarFormat.FLAG_RESPONSE_UNKNOWN
+            : sample.hostdResponsive ? ColumnarFormat.FLAG_RESPONSIVE : 0;
+        values[ColumnarFormat.COL_FLAGS][rows] = flags | (sample.memAtLimit ? ColumnarFormat.FLAG_MEM_AT_LIMIT : 0);
+        rows++;
+
+        if (rows == ColumnarFormat.BLOCK_ROWS) {
+            flush();
+        }
+    }
+
+    /**
+     * Write what is left of the sweep as a last, smaller block
+     */
+    @Override
+    public synchronized void
+    onSweepComplete()
+    {
+        flush();
+    }
+
+    /**
+     * Encode the pending rows as one block, and append it to the file of their day
+     */
+    private void
+    flush()
+    {
+        if (rows == 0) {
+            return;
+        }
+        try {
+            openDay(blockDay);
+            byte[] block = encodeBlock();
+            FileOutputStream out = new FileOutputStream(file, true);
+            try {
+                out.write(block);
+            } finally {
+                out.close();
+            }
+        } catch (IOException e) {
+            Log.error("Caught exception while exporting " + rows + " sample(s) to " + dir, e);
+            // the dictionary may not match the file anymore, reload it with the next block
+            fileDay = -1;
+        }
+        rows = 0;
+        for (int i = 0; i < rowHosts.length; i++) {
+            rowHosts[i] = null;
+        }
+    }
+
+    /**
+     * Switch to the file of the given day, loading its dictionary if it exists, and cutting
+     * a block torn by a crash
+     */
+    private void
+    openDay(long day) throws IOException
+    {
+        if (day == fileDay) {
+            return;
+        }
+        fileHostIds.clear();
+        fileHostKeys.clear();
+        file = new File(dir, ColumnarFormat.FILE_PREFIX + ColumnarReader.dayFormat().format(
+            new Date(day * ColumnarFormat.DAY_MS)) + ColumnarFormat.FILE_SUFFIX);
+
+        if (file.length() >= ColumnarFormat.FILE_HEADER_SIZE) {
+            List<ColumnarReader.HostInfo> hosts = new ArrayList<ColumnarReader.HostInfo>();
+            long validLength = ColumnarReader.loadDictionary(file, hosts);
+            if (validLength < file.length()) {
+                RandomAccessFile raf = new RandomAccessFile(file, "rw");
+                try {
+                    raf.setLength(validLength);
+                } finally {
+                    raf.close();
+                }
+            }
+            for (int i = 0; i < hosts.size(); i++) {
+                fileHostKeys.put(key(hosts.get(i)), i);
+            }
+        } else {
+            DataOutputStream out = new DataOutputStream(new FileOutputStream(file));
+            try {
+                out.writeInt(ColumnarFormat.FILE_MAGIC);
+                out.writeInt(ColumnarFormat.FILE_VERSION);
+            } finally {
+                out.close();
+            }
+        }
+        fileDay = day;
+    }
+
+    /**
+     * Block of the pending rows, with its host dictionary additions and column stats
+     */
+    private byte[]
+    encodeBlock() throws IOException
+    {
+        // host ids, adding the hosts new to this file
+        List<ColumnarReader.HostInfo> newHosts = new ArrayList<ColumnarReader.HostInfo>();
+        int firstNewHost = fileHostKeys.size();
+        long[] hostIds = new long[rows];
+        for (int r = 0; r < rows; r++) {
+            Integer id = fileHostIds.get(rowHosts[r]);
+            if (id == null) {
+                String key = key(rowHosts[r]);
+                id = fileHostKeys.get(key);
+                if (id == null) {
+                    id = fileHostKeys.size();
+                    fileHostKeys.put(key, id);
+                    newHosts.add(rowHosts[r]);
+                }
+                fileHostIds.put(rowHosts[r], id);
+            }
+            hostIds[r] = id;
+        }
+
+        long minTime = Long.MAX_VALUE;
+        long maxTime = Long.MIN_VALUE;
+        for (int r = 0; r < rows; r++) {
+            minTime = Math.min(minTime, timestamps[r]);
+            maxTime = Math.max(maxTime, timestamps[r]);
+        }
+        long[] columnMin = new long[ColumnarFormat.VALUE_COLUMNS];
+        long[] columnMax = new long[ColumnarFormat.VALUE_COLUMNS];
+        for (int c = 0; c < ColumnarFormat.VALUE_COLUMNS; c++) {
+            columnMin[c] = Long.MAX_VALUE;
+            columnMax[c] = Long.MIN_VALUE;
+            for (int r = 0; r < rows; r++) {
+                long value = values[c][r];
+                if (value >= 0) {
+                    columnMin[c] = Math.min(columnMin[c], value);
+                    columnMax[c] = Math.max(columnMax[c], value);
+                }
+            }
+        }
+
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(16 * rows + 1024);
+        DataOutputStream out = new DataOutputStream(bytes);
+        out.writeInt(ColumnarFormat.BLOCK_MAGIC);
+        out.writeInt(0);
+        out.writeInt(rows);
+        out.writeLong(minTime);
+        out.writeLong(maxTime);
+        out.writeFloat(maxPercent(ColumnarFormat.COL_MEM_USAGE, ColumnarFormat.COL_MEM_LIMIT));
+        out.writeFloat(maxPercent(ColumnarFormat.COL_THREAD_USAGE, ColumnarFormat.COL_THREAD_LIMIT));
+        out.writeFloat(maxPercent(ColumnarFormat.COL_FD_USAGE, ColumnarFormat.COL_FD_LIMIT));
+        for (int c = 0; c < ColumnarFormat.VALUE_COLUMNS; c++) {
+            out.writeLong(columnMin[c]);
+            out.writeLong(columnMax[c]);
+        }
+        out.writeInt(firstNewHost);
+        out.writeInt(newHosts.size());
+        for (ColumnarReader.HostInfo host : newHosts) {
+            ColumnarFormat.writeString(host.vsphereIp, out);
+            ColumnarFormat.writeString(host.hostName, out);
+            ColumnarFormat.writeString(host.datacenter, out);
+            ColumnarFormat.writeString(host.cluster, out);
+        }
+
+        ColumnarFormat.pack(hostIds, rows, ColumnarFormat.width(fileHostKeys.size() - 1), out);
+        long prev = minTime;
+        for (int r = 0; r < rows; r++) {
+            ColumnarFormat.writeVarLong(timestamps[r] - prev, out);
+            prev = timestamps[r];
+        }
+        long[] stored = new long[rows];
+        for (int c = 0; c < ColumnarFormat.VALUE_COLUMNS; c++) {
+            // offsets from the column min, shifted by one to keep 0 for missing values
+            long max = 0;
+            for (int r = 0; r < rows; r++) {
+                stored[r] = values[c][r] < 0 ? 0 : values[c][r] - columnMin[c] + 1;
+                max = Math.max(max, stored[r]);
+            }
+            ColumnarFormat.pack(stored, rows, ColumnarFormat.width(max), out);
+        }
+        out.flush();
+
+        // body length and checksum, now that the body is known
+        byte[] block = bytes.toByteArray();
+        CRC32 crc = new CRC32();
+        crc.update(block, 8, block.length - 8);
+        int bodyLength = block.length - 8 + 4;
+        byte[] result = new byte[block.length + 4];
+        System.arraycopy(block, 0, result, 0, block.length);
+        putInt(result, 4, bodyLength);
+        putInt(result, block.length, (int) crc.getValue());
+        return result;
+    }
+
+    /**
+     * Highest usage percentage of the block, NaN when none was collected
+     */
+    private float
+    maxPercent(int usageCol, int limitCol)
+    {
+        float max = Float.NaN;
+        for (int r = 0; r < rows; r++) {
+            long usage = values[usageCol][r];
+            long limit = values[limitCol][r];
+            if (usage >= 0 && limit > 0) {
+                float pct = usage * 100f / limit;
+                if (Float.isNaN(max) || pct > max) {
+                    max = pct;
+                }
+            }
+        }
+        return max;
+    }
+
+    private static String
+    key(ColumnarReader.HostInfo host)
+    {
+        return host.vsphereIp + "\t" + host.hostName + "\t" + host.datacenter + "\t" + host.cluster;
+    }
+
+    private static void
+    putInt(byte[] bytes, int offset, int value)
+    {
+        bytes[offset] = (byte) (value >>> 24);
+        bytes[offset + 1] = (byte) (value >>> 16);
+        bytes[offset + 2] = (byte) (value >>> 8);
+        bytes[offset + 3] = (byte) value;
+    }
+
+    /**
+     * MB value with two decimals as hundredths, -1 when missing
+     */
+    private static long
+    hundredths(String value)
+    {
+        if (value == null) {
+            return -1;
+        }
+        try {
+            long result = Math.round(Double.parseDouble(value.trim()) * 100);
+            return result >= 0 ? result : -1;
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    /**
+     * Count, -1 when missing
+     */
+    private static long
+    count(String value)
+    {
+        if (value == null) {
+            return -1;
+        }
+        try {
+            long result = Long.parseLong(value.trim());
+            return result >= 0 ? result : -1;
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+}
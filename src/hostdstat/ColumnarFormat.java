@@ -0,0 +1,201 @@
+/**
+ * Layout and encodings of the columnar sample export, shared by the exporter and the
+ * reader. A file holds one UTC day of samples, as a header followed by blocks of up to
+ * BLOCK_ROWS rows:
+ *
+ *   int magic, int bodyLength, then bodyLength bytes of body:
+ *   int rows, long minTime, long maxTime, float maxMem%, maxThread%, maxFd%,
+ *   long min and max of every value column (min greater than max when no value),
+ *   int first new host id, int new hosts, 4 strings per host (vCenter, host, datacenter, cluster),
+ *   host id column (bit packed), timestamp column (zigzag varint deltas),
+ *   value columns (bit packed offsets from the column min, 0 when missing), int crc32
+ *
+ * Host names are dictionary encoded: a block only carries the hosts not seen in earlier
+ * blocks of the file. Headers let readers skip blocks by time range or usage without
+ * decoding their columns.
+ *
+ * Copyright (c) 2016
+ *
+ * Permission is hereby granted, free of charge, to any person
+ * obtaining a copy of this software and associated documentation files
+ * (the "Software"), to deal in the Software without restriction,
+ * including without limitation the rights to use, copy, modify, merge,
+ * publish, distribute, sublicense, and/or sell copies of the Software,
+ * and to permit persons to whom the Software is furnished to do so,
+ * subject to the following conditions:
+ *
+ * @author Gururaja Hegdal (ghegdal@vmware.com)
+ * @version 1.0
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES
+ * OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT
+ * HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY,
+ * WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING
+ * FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR
+ * OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+package hostdstat;
+
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+
+final class ColumnarFormat
+{
+    static final int FILE_MAGIC = 0x48534331;
+    static final int FILE_VERSION = 1;
+    static final int BLOCK_MAGIC = 0x424C4B31;
+    static final int FILE_HEADER_SIZE = 8;
+    static final int BLOCK_ROWS = 4096;
+    static final String FILE_PREFIX = "hostdstat-";
+    static final String FILE_SUFFIX = ".hsc";
+    static final String DAY_FORMAT = "yyyyMMdd";
+    static final long DAY_MS = 24L * 60 * 60 * 1000;
+
+    // value columns: memory in hundredths of MB, threads, FDs, and flags
+    static final int COL_MEM_USAGE = 0;
+    static final int COL_MEM_LIMIT = 1;
+    static final int COL_THREAD_USAGE = 2;
+    static final int COL_THREAD_LIMIT = 3;
+    static final int COL_FD_USAGE = 4;
+    static final int COL_FD_LIMIT = 5;
+    static final int COL_FLAGS = 6;
+    static final int VALUE_COLUMNS = 7;
+
+    static final int FLAG_RESPONSIVE = 1;
+    static final int FLAG_MEM_AT_LIMIT = 2;
+    static final int FLAG_RESPONSE_UNKNOWN = 4;
+
+    // widest bit packed value, so that unpacking fits a 64 bit window
+    static final int MAX_WIDTH = 56;
+
+    static final Charset UTF8 = Charset.forName("UTF-8");
+
+    private ColumnarFormat()
+    {
+    }
+
+    /**
+     * Bits needed for values from 0 to max
+     */
+    static int
+    width(long max)
+    {
+        return 64 - Long.numberOfLeadingZeros(max);
+    }
+
+    /**
+     * Write count values of the given width, least significant bits first
+     */
+    static void
+    pack(long[] values, int count, int width, DataOutputStream out) throws IOException
+    {
+        if (width > MAX_WIDTH) {
+            throw new IOException("Value range too wide to pack: " + width + " bits");
+        }
+        out.writeByte(width);
+        if (width == 0) {
+            return;
+        }
+        long acc = 0;
+        int bits = 0;
+        for (int i = 0; i < count; i++) {
+            acc |= values[i] << bits;
+            bits += width;
+            while (bits >= 8) {
+                out.writeByte((int) acc);
+                acc >>>= 8;
+                bits -= 8;
+            }
+        }
+        if (bits > 0) {
+            out.writeByte((int) acc);
+        }
+    }
+
+    /**
+     * Read count values written by pack
+     */
+    static void
+    unpack(ByteBuffer in, int count, long[] values) throws IOException
+    {
+        int width = in.get();
+        if (width < 0 || width > MAX_WIDTH) {
+            throw new IOException("Invalid packed width: " + width);
+        }
+        if (width == 0) {
+            for (int i = 0; i < count; i++) {
+                values[i] = 0;
+            }
+            return;
+        }
+        long mask = (1L << width) - 1;
+        long acc = 0;
+        int bits = 0;
+        for (int i = 0; i < count; i++) {
+            while (bits < width) {
+                acc |= (long) (in.get() & 0xff) << bits;
+                bits += 8;
+            }
+            values[i] = acc & mask;
+            acc >>>= width;
+            bits -= width;
+        }
+    }
+
+    static void
+    writeVarLong(long value, DataOutputStream out) throws IOException
+    {
+        long zigzag = (value << 1) ^ (value >> 63);
+        while ((zigzag & ~0x7FL) != 0) {
+            out.writeByte((int) ((zigzag & 0x7F) | 0x80));
+            zigzag >>>= 7;
+        }
+        out.writeByte((int) zigzag);
+    }
+
+    static long
+    readVarLong(ByteBuffer in)
+    {
+        long zigzag = 0;
+        int shift = 0;
+        byte b;
+        do {
+            b = in.get();
+            zigzag |= (long) (b & 0x7F) << shift;
+            shift += 7;
+        } while (b < 0);
+        return (zigzag >>> 1) ^ -(zigzag & 1);
+    }
+
+    static void
+    writeString(String value, DataOutputStream out) throws IOException
+    {
+        if (value == null) {
+            out.writeInt(-1);
+            return;
+        }
+        byte[] bytes = value.getBytes(UTF8);
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    static String
+    readString(ByteBuffer in)
+    {
+        int length = in.getInt();
+        if (length < 0) {
+            return null;
+        }
+        byte[] bytes = new byte[length];
+        in.get(bytes);
+        return new String(bytes, UTF8);
+    }
+}
@@ -0,0 +1,650 @@
+/**
+ * Reads the columnar sample export, skipping the files and blocks that cannot match the
+ * time range and usage threshold of the query without decoding them
+ *
+ * Copyright (c) 2016
+ *
+ * Permission is hereby granted, free of charge, to any person
+ * obtaining a copy of this software and associated documentation files
+ * (the "Software"), to deal in the Software without restriction,
+ * including without limitation the rights to use, copy, modify, merge,
+ * publish, distribute, sublicense, and/or sell copies of the Software,
+ * and to permit persons to whom the Software is furnished to do so,
+ * subject to the following conditions:
+ *
+ * @author Gururaja Hegdal (ghegdal@vmware.com)
+ * @version 1.0
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES
+ * OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT
+ * HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY,
+ * WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING
+ * FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR
+ * OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+package hostdstat;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+import java.util.TimeZone;
+import java.util.regex.Pattern;
+import java.util.zip.CRC32;
+
+public class ColumnarReader
+{
+    public static final String SUBCOMMAND = "read-export";
+
+    // bytes of a block body before its new hosts
+    static final int FIXED_HEADER_SIZE = 4 + 8 + 8 + 3 * 4 + ColumnarFormat.VALUE_COLUMNS * 16 + 4 + 4;
+
+    private final File source;
+    private long fromTime = 0;
+    private long toTime = Long.MAX_VALUE;
+    private float minUsagePercent = 0;
+    private Pattern hostPattern;
+
+    private long blocksRead;
+    private long blocksSkipped;
+
+    /**
+     * Host of the dictionary of a file
+     */
+    public static class HostInfo
+    {
+        final String vsphereIp;
+        final String hostName;
+        final String datacenter;
+        final String cluster;
+
+        HostInfo(String vsphereIp, String hostName, String datacenter, String cluster)
+        {
+            this.vsphereIp = vsphereIp;
+            this.hostName = hostName;
+            this.datacenter = datacenter;
+            this.cluster = cluster;
+        }
+    }
+
+    /**
+     * One sample. The same instance is handed to the visitor for every row, copy what has to
+     * outlive the visit.
+     */
+    public static class Row
+    {
+        HostInfo host;
+        long timestamp;
+
+        // decoded values, -1 when missing
+        final long[] values = new long[ColumnarFormat.VALUE_COLUMNS];
+
+        public String
+        getVsphereIp()
+        {
+            return host.vsphereIp;
+        }
+
+        public String
+        getHostName()
+        {
+            return host.hostName;
+        }
+
+        public String
+        getDatacenter()
+        {
+            return host.datacenter;
+        }
+
+        public String
+        getCluster()
+        {
+            return host.cluster;
+        }
+
+        public long
+        getTimestamp()
+        {
+            return timestamp;
+        }
+
+        /**
+         * Hostd memory usage in MB, NaN when not collected
+         */
+        public float
+        getMemUsage()
+        {
+            return megabytes(values[ColumnarFormat.COL_MEM_USAGE]);
+        }
+
+        public float
+        getMemLimit()
+        {
+            return megabytes(values[ColumnarFormat.COL_MEM_LIMIT]);
+        }
+
+        /**
+         * Hostd thread count, -1 when not collected
+         */
+        public long
+        getThreadUsage()
+        {
+            return values[ColumnarFormat.COL_THREAD_USAGE];
+        }
+
+        public long
+        getThreadLimit()
+        {
+            return values[ColumnarFormat.COL_THREAD_LIMIT];
+        }
+
+        public long
+        getFdUsage()
+        {
+            return values[ColumnarFormat.COL_FD_USAGE];
+        }
+
+        public long
+        getFdLimit()
+        {
+            return values[ColumnarFormat.COL_FD_LIMIT];
+        }
+
+        /**
+         * Whether hostd was responsive, null when it was not probed
+         */
+        public Boolean
+        getResponsive()
+        {
+            if ((values[ColumnarFormat.COL_FLAGS] & ColumnarFormat.FLAG_RESPONSE_UNKNOWN) != 0) {
+                return null;
+            }
+            return (values[ColumnarFormat.COL_FLAGS] & ColumnarFormat.FLAG_RESPONSIVE) != 0;
+        }
+
+        public boolean
+        isMemAtLimit()
+        {
+            return (values[ColumnarFormat.COL_FLAGS] & ColumnarFormat.FLAG_MEM_AT_LIMIT) != 0;
+        }
+
+        /**
+         * Usage percentages, NaN when usage or limit was not collected
+         */
+        public float
+        getMemPercent()
+        {
+            return percent(ColumnarFormat.COL_MEM_USAGE, ColumnarFormat.COL_MEM_LIMIT);
+        }
+
+        public float
+        getThreadPercent()
+        {
+            return percent(ColumnarFormat.COL_THREAD_USAGE, ColumnarFormat.COL_THREAD_LIMIT);
+        }
+
+        public float
+        getFdPercent()
+        {
+            return percent(ColumnarFormat.COL_FD_USAGE, ColumnarFormat.COL_FD_LIMIT);
+        }
+
+        float
+        getMaxPercent()
+        {
+            float max = Float.NaN;
+            for (float pct : new float[] { getMemPercent(), getThreadPercent(), getFdPercent() }) {
+                if (!Float.isNaN(pct) && (Float.isNaN(max) || pct > max)) {
+                    max = pct;
+                }
+            }
+            return max;
+        }
+
+        private float
+        percent(int usageCol, int limitCol)
+        {
+            long usage = values[usageCol];
+            long limit = values[limitCol];
+            return usage < 0 || limit <= 0 ? Float.NaN : usage * 100f / limit;
+        }
+
+        private static float
+        megabytes(long hundredths)
+        {
+            return hundredths < 0 ? Float.NaN : hundredths / 100f;
+        }
+    }
+
+    /**
+     * Receives the rows matching the query, in file order
+     */
+    public interface RowVisitor
+    {
+        void
+        visit(Row row) throws IOException;
+    }
+
+    /**
+     * Block header, up to the new hosts
+     */
+    static class BlockHeader
+    {
+        int rows;
+        long minTime;
+        long maxTime;
+        final float[] maxPercent = new float[3];
+        final long[] columnMin = new long[ColumnarFormat.VALUE_COLUMNS];
+        final long[] columnMax = new long[ColumnarFormat.VALUE_COLUMNS];
+        int firstNewHost;
+        int newHosts;
+
+        void
+        read(ByteBuffer in)
+        {
+            rows = in.getInt();
+            minTime = in.getLong();
+            maxTime = in.getLong();
+            for (int i = 0; i < maxPercent.length; i++) {
+                maxPercent[i] = in.getFloat();
+            }
+            for (int i = 0; i < ColumnarFormat.VALUE_COLUMNS; i++) {
+                columnMin[i] = in.getLong();
+                columnMax[i] = in.getLong();
+            }
+            firstNewHost = in.getInt();
+            newHosts = in.getInt();
+        }
+    }
+
+    /**
+     * Reader of a single export file, or of every export file of a directory
+     */
+    public ColumnarReader(File source)
+    {
+        this.source = source;
+    }
+
+    /**
+     * Only rows sampled between from and to, in epoch milliseconds
+     */
+    public ColumnarReader
+    setTimeRange(long from, long to)
+    {
+        this.fromTime = from;
+        this.toTime = to;
+        return this;
+    }
+
+    /**
+     * Only rows where memory, thread or FD usage reached the given percentage of its limit
+     */
+    public ColumnarReader
+    setMinUsagePercent(float percent)
+    {
+        this.minUsagePercent = percent;
+        return this;
+    }
+
+    public ColumnarReader
+    setHostPattern(Pattern pattern)
+    {
+        this.hostPattern = pattern;
+        return this;
+    }
+
+    public long
+    getBlocksRead()
+    {
+        return blocksRead;
+    }
+
+    public long
+    getBlocksSkipped()
+    {
+        return blocksSkipped;
+    }
+
+    /**
+     * Hand every matching row to the visitor, returns the number of rows visited
+     */
+    public long
+    scan(RowVisitor visitor) throws IOException
+    {
+        long rows = 0;
+        for (File file : listFiles(source)) {
+            if (!mayCover(file)) {
+                continue;
+            }
+            rows += scanFile(file, visitor, new ArrayList<HostInfo>(), null);
+        }
+        return rows;
+    }
+
+    /**
+     * Load the hosts of a file, and return the length of its complete blocks, so that a
+     * writer can go on after a block torn by a crash
+     */
+    static long
+    loadDictionary(File file, List<HostInfo> hosts) throws IOException
+    {
+        long[] validLength = new long[1];
+        new ColumnarReader(file).scanFile(file, null, hosts, validLength);
+        return validLength[0];
+    }
+
+    /**
+     * Read the blocks of one file, decoding the ones that may match. Without a visitor only
+     * the host dictionary is loaded.
+     */
+    private long
+    scanFile(File file, RowVisitor visitor, List<HostInfo> dictionary, long[] validLength) throws IOException
+    {
+        long visited = 0;
+        FileChannel ch = new FileInputStream(file).getChannel();
+        try {
+            long size = ch.size();
+            ByteBuffer fileHeader = ByteBuffer.allocate(ColumnarFormat.FILE_HEADER_SIZE);
+            readFully(ch, fileHeader, 0);
+            fileHeader.flip();
+            if (fileHeader.remaining() < ColumnarFormat.FILE_HEADER_SIZE
+                || fileHeader.getInt() != ColumnarFormat.FILE_MAGIC) {
+                throw new IOException("Not a columnar export file: " + file);
+            }
+            if (fileHeader.getInt() != ColumnarFormat.FILE_VERSION) {
+                throw new IOException("Unsupported export file version: " + file);
+            }
+
+            BlockHeader header = new BlockHeader();
+            ByteBuffer prefix = ByteBuffer.allocate(8 + FIXED_HEADER_SIZE);
+            ByteBuffer body = ByteBuffer.allocate(64 * 1024);
+            Row row = new Row();
+            long[][] columns = new long[ColumnarFormat.VALUE_COLUMNS][];
+            long[] hostIds = new long[0];
+            long[] timestamps = new long[0];
+            CRC32 crc = new CRC32();
+            long pos = ColumnarFormat.FILE_HEADER_SIZE;
+
+            while (pos + prefix.capacity() <= size) {
+                prefix.clear();
+                readFully(ch, prefix, pos);
+                prefix.flip();
+                int bodyLength = prefix.getInt() == ColumnarFormat.BLOCK_MAGIC ? prefix.getInt() : -1;
+                if (bodyLength < FIXED_HEADER_SIZE + 4 || pos + 8 + bodyLength > size) {
+                    Log.warn("Ignoring incomplete block at offset " + pos + " of " + file);
+                    break;
+                }
+                header.read(prefix);
+                long blockEnd = pos + 8 + bodyLength;
+
+                boolean skip = visitor == null || header.maxTime < fromTime || header.minTime > toTime
+                    || (minUsagePercent > 0 && maxOf(header.maxPercent) < minUsagePercent);
+                if (skip && header.newHosts == 0) {
+                    blocksSkipped++;
+                    pos = blockEnd;
+                    continue;
+                }
+
+                if (body.capacity() < bodyLength) {
+                    body = ByteBuffer.allocate(bodyLength);
+                }
+                body.clear();
+                body.limit(bodyLength);
+                readFully(ch, body, pos + 8);
+                crc.reset();
+                crc.update(body.array(), 0, bodyLength - 4);
+                if ((int) crc.getValue() != body.getInt(bodyLength - 4)) {
+                    Log.warn("Ignoring corrupted block at offset " + pos + " of " + file);
+                    break;
+                }
+                body.position(FIXED_HEADER_SIZE);
+                if (header.firstNewHost != dictionary.size()) {
+                    throw new IOException("Host dictionary out of sequence at offset " + pos + " of " + file);
+                }
+                for (int i = 0; i < header.newHosts; i++) {
+                    dictionary.add(new HostInfo(ColumnarFormat.readString(body), ColumnarFormat.readString(body),
+                        ColumnarFormat.readString(body), ColumnarFormat.readString(body)));
+                }
+                pos = blockEnd;
+                if (skip) {
+                    blocksSkipped++;
+                    continue;
+                }
+
+                blocksRead++;
+                int rows = header.rows;
+                if (hostIds.length < rows) {
+                    hostIds = new long[rows];
+                    timestamps = new long[rows];
+                    for (int c = 0; c < columns.length; c++) {
+                        columns[c] = new long[rows];
+                    }
+                }
+                ColumnarFormat.unpack(body, rows, hostIds);
+                long time = header.minTime;
+                for (int r = 0; r < rows; r++) {
+                    time += ColumnarFormat.readVarLong(body);
+                    timestamps[r] = time;
+                }
+                for (int c = 0; c < columns.length; c++) {
+                    ColumnarFormat.unpack(body, rows, columns[c]);
+                }
+
+                for (int r = 0; r < rows; r++) {
+                    if (timestamps[r] < fromTime || timestamps[r] > toTime) {
+                        continue;
+                    }
+                    row.host = dictionary.get((int) hostIds[r]);
+                    if (hostPattern != null && !hostPattern.matcher(row.host.hostName).find()) {
+                        continue;
+                    }
+                    row.timestamp = timestamps[r];
+                    for (int c = 0; c < columns.length; c++) {
+                        long stored = columns[c][r];
+                        row.values[c] = stored == 0 ? -1 : header.columnMin[c] + stored - 1;
+                    }
+                    if (minUsagePercent > 0) {
+                        float max = row.getMaxPercent();
+                        if (Float.isNaN(max) || max < minUsagePercent) {
+                            continue;
+                        }
+                    }
+                    visitor.visit(row);
+                    visited++;
+                }
+            }
+            if (validLength != null) {
+                validLength[0] = pos;
+            }
+        } finally {
+            ch.close();
+        }
+        return visited;
+    }
+
+    /**
+     * Subcommand printing the matching rows of an export as CSV
+     */
+    public static void
+    run(String[] args) throws IOException, ParseException
+    {
+        String exportDir = null;
+        long now = System.currentTimeMillis();
+        long from = 0;
+        long to = Long.MAX_VALUE;
+        float minUsage = 0;
+        Pattern pattern = null;
+        for (int i = 1; i < args.length - 1; i++) {
+            if (args[i].equals("--export")) {
+                exportDir = args[i + 1];
+            } else if (args[i].equals("--from")) {
+                from = HistoryQuery.parseTime(args[i + 1]);
+            } else if (args[i].equals("--to")) {
+                to = HistoryQuery.parseTime(args[i + 1]);
+            } else if (args[i].equals("--last")) {
+                from = now - HistoryQuery.parseDuration(args[i + 1]);
+            } else if (args[i].equals("--min-usage")) {
+                minUsage = CollectorOptions.parseFloat(args[i], args[i + 1], minUsage);
+            } else if (args[i].equals("--host-regex")) {
+                pattern = Pattern.compile(args[i + 1]);
+            }
+        }
+        if (exportDir == null) {
+            usage();
+            return;
+        }
+
+        ColumnarReader reader = new ColumnarReader(new File(exportDir)).setTimeRange(from, to)
+            .setMinUsagePercent(minUsage).setHostPattern(pattern);
+        final Writer out = new BufferedWriter(new OutputStreamWriter(System.out), 1 << 16);
+        long start = System.currentTimeMillis();
+        long rows;
+        try {
+            out.write("timestamp,vsphere,host,datacenter,cluster,mem_mb,mem_limit_mb,threads,thread_limit,fds,"
+                + "fd_limit,responsive\n");
+            rows = reader.scan(new RowVisitor() {
+                @Override
+                public void
+                visit(Row row) throws IOException
+                {
+                    out.write(row.timestamp / 1000 + "," + csv(row.getVsphereIp()) + "," + csv(row.getHostName())
+                        + "," + csv(row.getDatacenter()) + "," + csv(row.getCluster()) + ","
+                        + csv(row.getMemUsage()) + "," + csv(row.getMemLimit()) + "," + csv(row.getThreadUsage())
+                        + "," + csv(row.getThreadLimit()) + "," + csv(row.getFdUsage()) + ","
+                        + csv(row.getFdLimit()) + "," + (row.getResponsive() != null ? row.getResponsive() : "") + "\n");
+                }
+            });
+        } finally {
+            out.flush();
+        }
+        Log.info(rows + " row(s) in " + (System.currentTimeMillis() - start) + " ms, blocks decoded: "
+            + reader.getBlocksRead() + ", skipped: " + reader.getBlocksSkipped());
+    }
+
+    /**
+     * Usage of the read-export subcommand
+     */
+    public static void
+    usage()
+    {
+        System.out.println("Usage (read export): java -jar hostdstat.jar " + SUBCOMMAND + " --export <dir|file> "
+            + "[--last <n>s|m|h|d | --from <time> --to <time>] [--min-usage <percent>] [--host-regex <regex>]");
+        System.out.println("  prints matching samples as CSV, --min-usage keeps samples where memory, thread or "
+            + "FD usage reached <percent> of its limit");
+    }
+
+    private static String
+    csv(float value)
+    {
+        return Float.isNaN(value) ? "" : String.format(Locale.ROOT, "%.2f", value);
+    }
+
+    private static String
+    csv(long value)
+    {
+        return value < 0 ? "" : String.valueOf(value);
+    }
+
+    /**
+     * CSV field, quoted when needed
+     */
+    private static String
+    csv(String value)
+    {
+        if (value == null) {
+            return "";
+        }
+        if (value.indexOf(',') < 0 && value.indexOf('"') < 0 && value.indexOf('\n') < 0) {
+            return value;
+        }
+        return '"' + value.replace("\"", "\"\"") + '"';
+    }
+
+    /**
+     * Whether an export file, named after its UTC day, may hold rows of the time range
+     */
+    private boolean
+    mayCover(File file)
+    {
+        String name = file.getName();
+        String day = name.substring(ColumnarFormat.FILE_PREFIX.length(),
+            name.length() - ColumnarFormat.FILE_SUFFIX.length());
+        try {
+            long dayStart = dayFormat().parse(day).getTime();
+            return dayStart <= toTime && dayStart + ColumnarFormat.DAY_MS > fromTime;
+        } catch (ParseException e) {
+            return true;
+        }
+    }
+
+    /**
+     * Export files of a directory in day order, or the given file
+     */
+    static List<File>
+    listFiles(File source)
+    {
+        List<File> files = new ArrayList<File>();
+        if (!source.isDirectory()) {
+            files.add(source);
+            return files;
+        }
+        File[] children = source.listFiles();
+        if (children != null) {
+            Arrays.sort(children);
+            for (File child : children) {
+                if (child.getName().startsWith(ColumnarFormat.FILE_PREFIX)
+                    && child.getName().endsWith(ColumnarFormat.FILE_SUFFIX)) {
+                    files.add(child);
+                }
+            }
+        }
+        return files;
+    }
+
+    static SimpleDateFormat
+    dayFormat()
+    {
+        SimpleDateFormat format = new SimpleDateFormat(ColumnarFormat.DAY_FORMAT);
+        format.setTimeZone(TimeZone.getTimeZone("UTC"));
+        return format;
+    }
+
+    private static float
+    maxOf(float[] values)
+    {
+        float max = Float.NEGATIVE_INFINITY;
+        for (float value : values) {
+            if (!Float.isNaN(value) && value > max) {
+                max = value;
+            }
+        }
+        return max;
+    }
+
+    private static void
+    readFully(FileChannel ch, ByteBuffer buf, long pos) throws IOException
+    {
+        while (buf.hasRemaining()) {
+            if (ch.read(buf, pos + buf.position()) < 0) {
+                break;
+            }
+        }
+    }
+}
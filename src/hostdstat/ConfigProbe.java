@@ -0,0 +1,101 @@
+/**
+ * Probe for the hostd thread and FD limits: fetches config.xml once, and parses it
+ * locally. Limits rarely change, so the probe runs rarely.
+ *
+ * Copyright (c) 2016
+ *
+ * Permission is hereby granted, free of charge, to any person
+ * obtaining a copy of this software and associated documentation files
+ * (the "Software"), to deal in the Software without restriction,
+ * including without limitation the rights to use, copy, modify, merge,
+ * publish, distribute, sublicense, and/or sell copies of the Software,
+ * and to permit persons to whom the Software is furnished to do so,
+ * subject to the following conditions:
+ *
+ * @author Gururaja Hegdal (ghegdal@vmware.com)
+ * @version 1.0
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES
+ * OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT
+ * HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY,
+ * WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING
+ * FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR
+ * OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+package hostdstat;
+
+import java.util.Map;
+
+public class ConfigProbe implements ConfigurationProbe
+{
+    public static final String HOSTD_CONFIG = "/etc/vmware/hostd/config.xml";
+
+    @Override
+    public String
+    getName()
+    {
+        return "config";
+    }
+
+    @Override
+    public String[]
+    getCommands()
+    {
+        return new String[] { "cat " + HOSTD_CONFIG, "vsish -e get /system/supportedVMs" };
+    }
+
+    /**
+     * Thread limit is TaskMax, FD limit is hostdMinFds plus two per supported VM
+     */
+    @Override
+    public void
+    parse(String[] outputs, HostdSample sample)
+    {
+        if (outputs[0] == null) {
+            return;
+        }
+        Map<String, String> config = HostdConfigParser.parse(outputs[0]);
+        String taskMax = config.get(HostdConfigParser.TASK_MAX);
+        if (taskMax != null) {
+            sample.threadLimit = taskMax;
+        } else {
+            Log.warn("No " + HostdConfigParser.TASK_MAX + " in " + HOSTD_CONFIG + " of host: " + sample.hostName);
+        }
+
+        String minFds = config.get(HostdConfigParser.HOSTD_MIN_FDS);
+        if (minFds != null && outputs[1] != null) {
+            try {
+                sample.fdLimit = String.valueOf(Long.parseLong(minFds) + 2 * Long.parseLong(outputs[1].trim()));
+            } catch (NumberFormatException e) {
+                Log.warn("Unable to compute the FD limit of host: " + sample.hostName);
+            }
+        }
+    }
+
+    @Override
+    public int
+    getCost()
+    {
+        return 1;
+    }
+
+    @Override
+    public int
+    getCadence()
+    {
+        return 30;
+    }
+
+    @Override
+    public boolean
+    isSatisfied(HostdSample sample)
+    {
+        return sample.threadLimit != null && sample.fdLimit != null;
+    }
+}
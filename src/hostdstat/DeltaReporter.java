@@ -0,0 +1,212 @@
+/**
+ * Change-only reporting for large fleets. Emits a host only when one of its alert
+ * levels changed, or a usage moved by more than epsilon since it was last emitted,
+ * plus a periodic compact snapshot of all hosts
+ *
+ * Copyright (c) 2016
+ *
+ * Permission is hereby granted, free of charge, to any person
+ * obtaining a copy of this software and associated documentation files
+ * (the "Software"), to deal in the Software without restriction,
+ * including without limitation the rights to use, copy, modify, merge,
+ * publish, distribute, sublicense, and/or sell copies of the Software,
+ * and to permit persons to whom the Software is furnished to do so,
+ * subject to the following conditions:
+ *
+ * @author Gururaja Hegdal (ghegdal@vmware.com)
+ * @version 1.0
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES
+ * OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT
+ * HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY,
+ * WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING
+ * FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR
+ * OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+package hostdstat;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+public class DeltaReporter implements SampleListener
+{
+    public static final float DEFAULT_EPSILON = 1.0f;
+    public static final int DEFAULT_SNAPSHOT_EVERY = 60;
+
+    // usage change, in percentage points, that is worth reporting
+    private final float epsilon;
+
+    // number of sweeps between two full snapshots, 0 disables snapshots
+    private final int snapshotEvery;
+
+    // longest gap between two samples of a host still in the inventory, after a success and
+    // after a failure, 0 never forgets hosts
+    private final long pollMs;
+    private final long backoffMs;
+
+    // MEM, THREAD and FD have a usage, RESPONSE only an alert level
+    private static final String[] METRICS = { "MEM", "THREAD", "FD", "RESPONSE" };
+
+    private final Map<String, Emitted> lastEmitted = new ConcurrentHashMap<String, Emitted>();
+    private final ConcurrentMap<String, HostdSample> lastSeen = new ConcurrentHashMap<String, HostdSample>();
+    private int sweeps = 0;
+
+    /**
+     * Values last reported for one host, by metric. Metrics missing from a sample, ex: a
+     * probe that was not due, keep the value they were last reported with.
+     */
+    private static class Emitted
+    {
+        final String[] alerts = new String[METRICS.length];
+        final Float[] usages = new Float[METRICS.length - 1];
+        HostCircuitBreaker.Failure failure;
+
+        void
+        update(String[] currAlerts, Float[] currUsages)
+        {
+            for (int i = 0; i < alerts.length; i++) {
+                if (currAlerts[i] != null) {
+                    alerts[i] = currAlerts[i];
+                }
+            }
+            for (int i = 0; i < usages.length; i++) {
+                if (currUsages[i] != null) {
+                    usages[i] = currUsages[i];
+                }
+            }
+        }
+    }
+
+    /**
+     * Constructor, hosts not sampled for two poll intervals, or two backoffs after a
+     * failure, are reported as gone and forgotten
+     */
+    public DeltaReporter(float epsilon, int snapshotEvery, long pollMs, long backoffMs)
+    {
+        this.epsilon = epsilon;
+        this.snapshotEvery = snapshotEvery;
+        this.pollMs = pollMs;
+        this.backoffMs = Math.max(pollMs, backoffMs);
+    }
+
+    @Override
+    public void
+    onSample(HostdSample sample)
+    {
+        String key = sample.vsphereIp + "/" + sample.hostName;
+        lastSeen.put(key, sample);
+
+        String[] alerts = { sample.MEM_ALERT, sample.THREAD_ALERT, sample.FD_ALERT, sample.RESPONSE_ALERT };
+        Float[] usages = { sample.memThreshold, sample.threadThreshold, sample.fdThreshold };
+        Emitted prev = lastEmitted.get(key);
+        List<String> changes = new ArrayList<String>();
+        if (prev == null) {
+            changes.add("NEW");
+            if (sample.failure != null) {
+                changes.add(state(sample.failure));
+            }
+            prev = new Emitted();
+            lastEmitted.put(key, prev);
+        } else {
+            if (sample.failure != prev.failure) {
+                changes.add("STATE:" + state(prev.failure) + "->" + state(sample.failure));
+            }
+            // a failed sample holds no values, the last reported ones still stand
+            if (sample.failure == null) {
+                for (int i = 0; i < alerts.length; i++) {
+                    compareAlert(METRICS[i], prev.alerts[i], alerts[i], changes);
+                }
+                for (int i = 0; i < usages.length; i++) {
+                    compareUsage(METRICS[i], prev.usages[i], usages[i], changes);
+                }
+            }
+        }
+
+        if (!changes.isEmpty()) {
+            prev.update(alerts, usages);
+            prev.failure = sample.failure;
+            StringBuilder sb = new StringBuilder("DELTA ").append(sample.formatCompact()).append(" changes:");
+            for (String change : changes) {
+                sb.append(' ').append(change);
+            }
+            Log.report(sb.toString());
+        }
+    }
+
+    @Override
+    public void
+    onSweepComplete()
+    {
+        sweeps++;
+        if (pollMs > 0) {
+            forgetGoneHosts(System.currentTimeMillis());
+        }
+        if (snapshotEvery > 0 && sweeps % snapshotEvery == 0) {
+            long now = System.currentTimeMillis() / 1000;
+            Log.report("SNAPSHOT BEGIN " + now + " hosts=" + lastSeen.size());
+            for (HostdSample sample : lastSeen.values()) {
+                Log.report("SNAPSHOT " + sample.formatCompact());
+            }
+            Log.report("SNAPSHOT END " + now);
+        }
+    }
+
+    /**
+     * Report and forget the hosts that were not sampled for longer than they can be while
+     * still in the inventory
+     */
+    private void
+    forgetGoneHosts(long now)
+    {
+        for (Map.Entry<String, HostdSample> entry : lastSeen.entrySet()) {
+            HostdSample sample = entry.getValue();
+            long staleMs = 2 * (sample.failure != null ? backoffMs : pollMs);
+            if (now - sample.timestamp > staleMs) {
+                lastSeen.remove(entry.getKey(), sample);
+                lastEmitted.remove(entry.getKey());
+                Log.report("DELTA " + now / 1000 + " " + sample.hostName + " changes: GONE");
+            }
+        }
+    }
+
+    private static String
+    state(HostCircuitBreaker.Failure failure)
+    {
+        return failure != null ? "FAILED/" + failure : "OK";
+    }
+
+    /**
+     * Record an alert level transition
+     */
+    private static void
+    compareAlert(String metric, String prevAlert, String currAlert, List<String> changes)
+    {
+        if (currAlert != null && !currAlert.equals(prevAlert)) {
+            changes.add(metric + ":" + prevAlert + "->" + currAlert);
+        }
+    }
+
+    /**
+     * Record a usage change beyond epsilon
+     */
+    private void
+    compareUsage(String metric, Float prevThreshold, Float currThreshold, List<String> changes)
+    {
+        if (currThreshold == null) {
+            return;
+        }
+        if (prevThreshold == null || Math.abs(currThreshold - prevThreshold) > epsilon) {
+            changes.add(metric + ":" + (prevThreshold != null ? String.format("%.1f", prevThreshold) : "-")
+                + "%->" + String.format("%.1f", currThreshold) + "%");
+        }
+    }
+}
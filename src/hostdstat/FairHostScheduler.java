@@ -0,0 +1,154 @@
+/**
+ * Work queue shared by the host worker pool, which hands out hosts of all
+ * vCenters in round robin fashion
+ *
+ * Copyright (c) 2016
+ *
+ * Permission is hereby granted, free of charge, to any person
+ * obtaining a copy of this software and associated documentation files
+ * (the "Software"), to deal in the Software without restriction,
+ * including without limitation the rights to use, copy, modify, merge,
+ * publish, distribute, sublicense, and/or sell copies of the Software,
+ * and to permit persons to whom the Software is furnished to do so,
+ * subject to the following conditions:
+ *
+ * @author Gururaja Hegdal (ghegdal@vmware.com)
+ * @version 1.0
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES
+ * OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT
+ * HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY,
+ * WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING
+ * FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR
+ * OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+package hostdstat;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+
+public class FairHostScheduler
+{
+    // hosts queued per vCenter before its producer has to wait for the workers
+    public static final int DEFAULT_QUEUE_CAPACITY = 2 * HostIterator.DEFAULT_PAGE_SIZE;
+
+    private final int queueCapacity;
+    private final List<String> vcOrder = new ArrayList<String>();
+    private final Map<String, LinkedList<HostTask>> vcQueues = new HashMap<String, LinkedList<HostTask>>();
+    private int cursor = 0;
+    private int openProducers = 0;
+
+    /**
+     * One host to be collected, along with the vCenter it belongs to
+     */
+    public static class HostTask
+    {
+        final FetchStats vCenter;
+        final HostRef hostRef;
+
+        // partial sample collected through APIs, to be completed over SSH
+        final HostdSample partialSample;
+
+        HostTask(FetchStats vCenter, HostRef hostRef)
+        {
+            this(vCenter, hostRef, null);
+        }
+
+        HostTask(FetchStats vCenter, HostRef hostRef, HostdSample partialSample)
+        {
+            this.vCenter = vCenter;
+            this.hostRef = hostRef;
+            this.partialSample = partialSample;
+        }
+    }
+
+    /**
+     * Constructor
+     */
+    public FairHostScheduler()
+    {
+        this(DEFAULT_QUEUE_CAPACITY);
+    }
+
+    /**
+     * Constructor, bounding the number of hosts queued per vCenter
+     */
+    public FairHostScheduler(int queueCapacity)
+    {
+        this.queueCapacity = queueCapacity > 0 ? queueCapacity : DEFAULT_QUEUE_CAPACITY;
+    }
+
+    /**
+     * Register a vCenter, which is going to submit hosts until producerDone is called
+     */
+    public synchronized void
+    register(String vcKey)
+    {
+        if (!vcQueues.containsKey(vcKey)) {
+            vcOrder.add(vcKey);
+            vcQueues.put(vcKey, new LinkedList<HostTask>());
+        }
+        openProducers++;
+    }
+
+    /**
+     * Queue a host of the given vCenter. Blocks while the vCenter queue is full, so that
+     * inventory paging does not run ahead of the workers.
+     */
+    public synchronized void
+    submit(String vcKey, HostTask task) throws InterruptedException
+    {
+        LinkedList<HostTask> queue = vcQueues.get(vcKey);
+        while (queue.size() >= queueCapacity) {
+            wait();
+        }
+        queue.add(task);
+        notifyAll();
+    }
+
+    /**
+     * Signal that the given vCenter has no more hosts to submit
+     */
+    public synchronized void
+    producerDone(String vcKey)
+    {
+        openProducers--;
+        notifyAll();
+    }
+
+    /**
+     * Take the next host, rotating between vCenters so that a large vCenter does not
+     * starve the others. Blocks while queues are empty and vCenters are still submitting,
+     * returns null once everything has been handed out.
+     */
+    public synchronized HostTask
+    take() throws InterruptedException
+    {
+        while (true) {
+            int vcCount = vcOrder.size();
+            for (int i = 0; i < vcCount; i++) {
+                int idx = (cursor + i) % vcCount;
+                LinkedList<HostTask> queue = vcQueues.get(vcOrder.get(idx));
+                if (!queue.isEmpty()) {
+                    cursor = (idx + 1) % vcCount;
+                    // wake up producers waiting for room
+                    notifyAll();
+                    return queue.removeFirst();
+                }
+            }
+            if (openProducers <= 0) {
+                return null;
+            }
+            wait();
+        }
+    }
+}
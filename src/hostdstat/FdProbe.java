@@ -0,0 +1,79 @@
+/**
+ * Probe for the file descriptors opened by hostd. The limit comes from ConfigProbe.
+ *
+ * Copyright (c) 2016
+ *
+ * Permission is hereby granted, free of charge, to any person
+ * obtaining a copy of this software and associated documentation files
+ * (the "Software"), to deal in the Software without restriction,
+ * including without limitation the rights to use, copy, modify, merge,
+ * publish, distribute, sublicense, and/or sell copies of the Software,
+ * and to permit persons to whom the Software is furnished to do so,
+ * subject to the following conditions:
+ *
+ * @author Gururaja Hegdal (ghegdal@vmware.com)
+ * @version 1.0
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES
+ * OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT
+ * HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY,
+ * WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING
+ * FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR
+ * OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+package hostdstat;
+
+public class FdProbe implements Probe
+{
+    @Override
+    public String
+    getName()
+    {
+        return "fd";
+    }
+
+    @Override
+    public String[]
+    getCommands()
+    {
+        return new String[] {
+            "vmkvsitools lsof | grep hostd-worker | wc -l" };
+    }
+
+    @Override
+    public void
+    parse(String[] outputs, HostdSample sample)
+    {
+        if (outputs[0] != null) {
+            sample.fdUsage = outputs[0].replace("\n", "");
+        }
+    }
+
+    @Override
+    public int
+    getCost()
+    {
+        // lsof walks every open file of the host
+        return 20;
+    }
+
+    @Override
+    public int
+    getCadence()
+    {
+        return 5;
+    }
+
+    @Override
+    public boolean
+    isSatisfied(HostdSample sample)
+    {
+        return sample.fdUsage != null;
+    }
+}
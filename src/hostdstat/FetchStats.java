@@ -31,14 +31,13 @@ package hostdstat;
 
 import java.net.URL;
 import java.util.ArrayList;
+import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
 
 import com.vmware.vim25.HostService;
 import com.vmware.vim25.mo.HostServiceSystem;
 import com.vmware.vim25.mo.HostSystem;
-import com.vmware.vim25.mo.InventoryNavigator;
-import com.vmware.vim25.mo.ManagedEntity;
 import com.vmware.vim25.mo.ServiceInstance;
 
 import ch.ethz.ssh2.Connection;
@@ -52,16 +51,11 @@ public class FetchStats
     private String esx_password;
     private String url;
     private ServiceInstance si;
-    private String hostdMemUsage;
-    private String hostdMemLimit;
-    private String fdUsage;
-    private String fdLimit;
-    private String threadUsage;
-    private String threadLimit;
-    private String MEM_ALERT;
-    private String THREAD_ALERT;
-    private String FD_ALERT;
-    private String RESPONSE_ALERT;
+    private CollectorOptions options;
+    private InventoryCache inventoryCache;
+    private ApiStatsCollector apiCollector;
+    private HostCircuitBreaker circuitBreaker;
+    private ProbeRunner probeRunner;
 
     // VC inventory related objects
     public static final String DC_MOR_TYPE = "Datacenter";
@@ -70,21 +64,32 @@ public class FetchStats
     public static final String HOST_MOR_TYPE = "HostSystem";
     public static final String VM_MOR_TYPE = "VirtualMachine";
     public static final String MANAGEDENTITY_PARENT_PROPERTYNAME = "parent";
-    private boolean ALERT_MEMORY_USAGE = false;
-    private boolean hostdResponsive = true;
 
     // SSH service
     private final String SSH_SERVICE = "TSM-SSH";
     private String SERVICE_RUNNING = "on";
     private String SERVICE_STOPPED = "off";
-    private boolean cleanupStopSSHService = false;
+    // hosts on which SSH service was started by us and has to be reverted
+    private final SshLeaseManager sshLeases;
 
     /**
      * Constructor
      */
     public FetchStats(String[] cmdProps)
     {
+        this(cmdProps, new CollectorOptions(new String[0]));
+    }
+
+    /**
+     * Constructor, with the global collector options
+     */
+    public FetchStats(String[] cmdProps, CollectorOptions options)
+    {
+        this.options = options;
+        this.circuitBreaker = new HostCircuitBreaker(options.baseBackoff, options.maxBackoff);
+        this.probeRunner = new ProbeRunner(options.getProbes(), options.probeCadences, options.probeBudget);
         makeProperties(cmdProps);
+        this.sshLeases = new SshLeaseManager(this, options.sshLease, options.sshLeaseJournalDir);
     }
 
     /**
@@ -94,28 +99,37 @@ public class FetchStats
     makeProperties(String[] cmdProps)
     {
         // get the property value and print it out
-        System.out.println("Reading vSphere IP and Credentials information from command line arguments");
-        System.out.println("-------------------------------------------------------------------");
+        Log.info("Reading vSphere IP and Credentials information from command line arguments");
+        Log.info("-------------------------------------------------------------------");
 
         for (int i = 0; i < cmdProps.length; i++) {
             if (cmdProps[i].equals("--vsphereip")) {
                 vsphereIp = cmdProps[i + 1];
-                System.out.println("vSphere IP:" + vsphereIp);
+                Log.info("vSphere IP:" + vsphereIp);
             } else if (cmdProps[i].equals("--username")) {
                 userName = cmdProps[i + 1];
-                System.out.println("VC Username:" + userName);
+                Log.info("VC Username:" + userName);
             } else if (cmdProps[i].equals("--password")) {
                 password = cmdProps[i + 1];
-                System.out.println("VC password: ******");
+                Log.info("VC password: ******");
             }  else if (cmdProps[i].equals("--esxUsername")) {
                 esx_username = cmdProps[i + 1];
-                System.out.println("ESXi Username:" + userName);
+                Log.info("ESXi Username:" + userName);
             } else if (cmdProps[i].equals("--esxPassword")) {
                 esx_password = cmdProps[i + 1];
-                System.out.println("ESXi Password: ******");
+                Log.info("ESXi Password: ******");
             }
         }
-        System.out.println("-------------------------------------------------------------------\n");
+        Log.info("-------------------------------------------------------------------\n");
+    }
+
+    /**
+     * vSphere server this object collects from
+     */
+    public String
+    getVsphereIp()
+    {
+        return vsphereIp;
     }
 
     /**
@@ -125,24 +139,29 @@ public class FetchStats
     validateProperties()
     {
         boolean val = false;
-        if (vsphereIp != null) {
+        if (si != null) {
+            // already logged in
+            val = true;
+        } else if (vsphereIp != null) {
             url = "https://" + vsphereIp + "/sdk";
 
             // Login to provided server IP to determine if we are running against single ESXi
             try {
-                System.out.println("Logging into vSphere : " + vsphereIp + ", with provided credentials");
+                Log.info("Logging into vSphere : " + vsphereIp + ", with provided credentials");
                 si = loginTovSphere(url);
 
                 if (si != null) {
-                    System.out.println("Succesfully logged into vSphere: " + vsphereIp);
+                    Log.info("Succesfully logged into vSphere: " + vsphereIp);
+                    // revert SSH services left running by a previous run that did not exit cleanly
+                    sshLeases.recover();
                     val = true;
                 } else {
-                    System.err.println(
+                    Log.error(
                         "Service Instance object for vSphere:" + vsphereIp + " is null, probably we failed to login");
                     printFailedLoginReasons();
                 }
             } catch (Exception e) {
-                System.err.println(
+                Log.error(
                     "Caught an exception, while logging into vSphere :" + vsphereIp + " with provided credentials");
                 printFailedLoginReasons();
             }
@@ -156,7 +175,7 @@ public class FetchStats
     private void
     printFailedLoginReasons()
     {
-        System.err.println(
+        Log.error(
             "Possible reasons:\n1. Provided username/password credentials are incorrect\n"
                 + "2. If username/password or other fields contain special characters, surround them with double "
                 + "quotes and for non-windows environment with single quotes (Refer readme doc for more information)\n"
@@ -170,10 +189,18 @@ public class FetchStats
     loginTovSphere(String url)
     {
         try {
+            if (options.sessionCache != null) {
+                si = options.sessionCache.reconnect(new URL(url), vsphereIp, userName);
+                if (si != null) {
+                    return si;
+                }
+            }
             si = new ServiceInstance(new URL(url), userName, password, true);
+            if (options.sessionCache != null) {
+                options.sessionCache.store(si, vsphereIp, userName);
+            }
         } catch (Exception e) {
-            System.out.println("Caught exception while logging into vSphere server");
-            e.printStackTrace();
+            Log.error("Caught exception while logging into vSphere server", e);
         }
         return si;
     }
@@ -184,524 +211,297 @@ public class FetchStats
     public void
     fetchHostdStats()
     {
-        String tempHostName = null;
-        System.out.println("Retrieving all hosts from VC ...");
-        ManagedEntity[] allHosts = retrieveAllHosts();
-
-        if (allHosts != null) {
-            Connection sshConn = null;
-            for (ManagedEntity host : allHosts) {
-
-                try {
-                    tempHostName = host.getName();
-                    System.out.println(
-                        "\n******************************************************************************");
-                    System.out.println("\t\t\tHost : " + tempHostName);
-                    System.out.println(
-                        "******************************************************************************");
-
-                    if (startSSHService((HostSystem)host)) {
-                        // Get SSHConnection
-                        sshConn = SSHUtil.getSSHConnection(tempHostName, esx_username,
-                            esx_password);
-                        if (sshConn != null) {
-                            System.out.println("\n*** About to retrieve hostd MEMORY information ...");
-                            memoryResourceChecker(sshConn);
-                            System.out.println("\n*** About to retrieve hostd THREAD information ...");
-                            threadResourceChecker(sshConn);
-                            System.out.println("\n*** About to retrieve hostd FD information ...");
-                            FDResourceChecker(sshConn);
-                            System.out.println("\n*** About to retrieve hostd RESPONSIVENESS information ...");
-                            responseChecker(sshConn);
-                        } else {
-                            System.err.println("Caught exception while fetching SSH Connection object");
-                        }
-                    }
-
-                } catch (Exception e) {
-                    System.err.println("Caught exception while fetching stats from host: " + tempHostName);
-                } finally {
-                    if (cleanupStopSSHService) {
-                        System.out.println("Reverting the SSH Service state, as it was before");
-                        stopSSHService((HostSystem)host);
-                    }
-                    if (sshConn != null) {
-                        sshConn.close();
-                    }
-                }
-
-                // Report the stats
-                System.out.println("\n^^^^^^^^^^^^^^^^^   S T A T S   ^^^^^^^^^^^^^^^^^");
-                try {
-                    if (hostdMemUsage != null && hostdMemLimit != null) {
-                        System.out.println("* MEMORY:");
-                        System.out.println("--- Usage:" + hostdMemUsage + " MB, Limit:"
-                                 + hostdMemLimit + " MB");
-                        // memory threshold checker
-                        Float tempMemUsage = Float.parseFloat(hostdMemUsage);
-                        Float tempMemLimit = Float.parseFloat(hostdMemLimit);
-                        Float currMemThreshold = (((tempMemUsage) / tempMemLimit)) * 100;
-                        if (currMemThreshold >= 95) {
-                           MEM_ALERT = "RED";
-                        } else if (currMemThreshold >= 85 && currMemThreshold < 95) {
-                           MEM_ALERT = "WARNING";
-                        } else if (currMemThreshold < 85) {
-                           MEM_ALERT = "GREEN";
-                        }
-                        System.out.println("--- Threshold: " + currMemThreshold
-                                 + "%, ALERT:" + MEM_ALERT);
-                     }
-                } catch (Exception e) {
-                    System.err.println("Caught exception while reporting Memory stats");
-                }
+        List<FetchStats> vcList = new ArrayList<FetchStats>();
+        vcList.add(this);
+        new SweepCollector(vcList, options).run();
+    }
 
-                try {
-                    if (threadLimit != null && threadUsage != null) {
-                        //Thread usage can be empty
-                        if (threadUsage.equals("")) {
-                            threadUsage = "0";
-                        }
-                        System.out.println("* THREAD:");
-                        System.out.println("--- Usage:" + threadUsage + ", Limit:"
-                                 + threadLimit);
-                        // thread threshold checker
-                        Float tempThreadLimit = Float.parseFloat(threadLimit);
-                        Float tempThreadUsage = Float.parseFloat(threadUsage);
-
-                        Float currThreadThreshold = ((((tempThreadUsage) / tempThreadLimit)) * 100);
-                        if (currThreadThreshold >= 95) {
-                           THREAD_ALERT = "RED";
-                        } else if (currThreadThreshold >= 85 && currThreadThreshold < 95) {
-                           THREAD_ALERT = "WARNING";
-                        } else if (currThreadThreshold < 85) {
-                           THREAD_ALERT = "GREEN";
-                        }
-                        System.out.println("--- Threshold: " + currThreadThreshold
-                                 + "%, ALERT:" + THREAD_ALERT);
-                     }
+    /**
+     * Connect to the given host over SSH and collect its hostd stats
+     */
+    HostdSample
+    collectHost(HostSystem host)
+    {
+        return collectHost(host, null);
+    }
 
-                } catch (Exception e) {
-                    System.err.println("Caught exception while reporting Thread stats");
-                }
+    /**
+     * Connect to the given host over SSH and collect the hostd stats missing from the given
+     * sample, ex: the ones that could not be collected through APIs
+     */
+    HostdSample
+    collectHost(HostSystem host, HostdSample sample)
+    {
+        String tempHostName = sample != null ? sample.hostName : host.getName();
+        if (sample == null) {
+            sample = new HostdSample(vsphereIp, tempHostName);
+        }
+        Connection sshConn = null;
+        TraceRecorder.begin(TraceRecorder.CAT_HOST, tempHostName, tempHostName);
 
-                try {
-                    if (fdLimit != null && fdUsage != null) {
-                        System.out.println("* FD:");
-                        System.out.println("--- Usage:" + fdUsage + ", Limit:" + fdLimit);
-                        // FD threshold checker
-                        Float tempFdLimit = Float.parseFloat(fdLimit);
-                        Float tempFdUsage = Float.parseFloat(fdUsage);
-
-                        Float currFdThreshold = ((((tempFdUsage) / tempFdLimit)) * 100);
-                        if (currFdThreshold >= 95) {
-                           FD_ALERT = "RED";
-                        } else if (currFdThreshold >= 85 && currFdThreshold < 95) {
-                           FD_ALERT = "WARNING";
-                        } else if (currFdThreshold < 85) {
-                           FD_ALERT = "GREEN";
-                        }
-                        System.out.println("--- Threshold: " + currFdThreshold + "%, ALERT:"
-                                 + FD_ALERT);
-                     }
+        try {
+            if (Log.isDebugEnabled()) {
+                Log.debug("******************** Host : " + tempHostName + " ********************");
+            }
 
-                } catch (Exception e) {
-                    System.err.println("Caught exception while reporting FD stats");
+            if (sshLeases.acquire(host)) {
+                // Get SSHConnection
+                sshConn = openSSHConnection(tempHostName);
+                if (sshConn != null) {
+                    collectOnce(sshConn, sample);
+                    circuitBreaker.recordSuccess(tempHostName);
+                } else {
+                    Log.error("Caught exception while fetching SSH Connection object");
+                    sample.failure = HostCircuitBreaker.Failure.OTHER;
                 }
+            } else {
+                sample.failure = HostCircuitBreaker.Failure.SERVICE_START_FAILED;
+                circuitBreaker.recordFailure(tempHostName, sample.failure, System.currentTimeMillis());
+            }
 
-                System.out.println("* RESPONSIVENESS:");
-                 System.out.println("--- Hostd responsive:" + hostdResponsive
-                          + ", RESPONSE ALERT:" + RESPONSE_ALERT);
+        } catch (Exception e) {
+            Log.error("Caught exception while fetching stats from host: " + tempHostName);
+            sample.failure = HostCircuitBreaker.classify(e);
+            circuitBreaker.recordFailure(tempHostName, sample.failure, System.currentTimeMillis());
+        } finally {
+            if (sshConn != null) {
+                sshConn.close();
+            }
+            sshLeases.release(host);
+            TraceRecorder.end(TraceRecorder.CAT_HOST, tempHostName, tempHostName);
+        }
 
-            } // End of hosts for loop
+        sample.evaluate();
+        return sample;
+    }
 
-        } else {
-            System.err.println("Could not find any hosts in inventory");
-        }
+    /**
+     * Run the probes that are due over an open SSH connection, skipping the metrics
+     * already present in the sample
+     */
+    void
+    collectOnce(Connection sshConn, HostdSample sample) throws Exception
+    {
+        probeRunner.run(sshConn, sample);
     }
 
     /**
-     * Get All hosts
+     * Open an SSH connection to the host, with the ESXi credentials
      */
-    private ManagedEntity[]
-    retrieveAllHosts()
+    Connection
+    openSSHConnection(String hostName) throws Exception
     {
-        // get first datacenters in the environment.
-        InventoryNavigator navigator = new InventoryNavigator(si.getRootFolder());
-        ManagedEntity[] hosts = null;
+        TraceRecorder.begin(TraceRecorder.CAT_SSH, "ssh connect", hostName);
         try {
-            hosts = navigator.searchManagedEntities(HOST_MOR_TYPE);
-        } catch (Exception e) {
-            System.err.println("[Error] Unable to retrive Hosts from inventory");
-            e.printStackTrace();
+            return SSHUtil.getSSHConnection(hostName, esx_username, esx_password, options.getSshProfile());
+        } finally {
+            TraceRecorder.end(TraceRecorder.CAT_SSH, "ssh connect", hostName);
         }
-        return hosts;
     }
 
     /**
-     * memory checker
+     * Get the SSH service running on the host, keeping it running for the idle lease if it
+     * had to be started
      */
-    private void
-    memoryResourceChecker(Connection sshConn) throws Exception
+    boolean
+    acquireSSHService(HostSystem host)
     {
-       /*
-        * Memory Usage
-        */
-       String memCurrUsageCmd = "esxcfg-resgrp -l host/vim/vmvisor/hostd |"
-                + "grep -E \"Group Name|Effective Minimum\" |"
-                + "grep -E \"hostd.[0-9]+\" -A 2 |" + "grep -o -E "
-                + "\"[0-9]+\\" + "." + "[0-9]* MB\"";
-
-       Map<String, String> memUsageMap = SSHUtil.getRemoteSSHCmdOutput(sshConn,
-                memCurrUsageCmd);
-
-       List<Boolean> errorStream = null;
-       for (String key : memUsageMap.keySet()) {
-          if (key.equals(SSHUtil.SSH_ERROR_STREAM)) {
-             errorStream = new ArrayList<Boolean>();
-             System.out.println("memusage:" + memUsageMap.get(key));
-
-             if (!(memUsageMap.get(key).equals(""))) {
-                System.out.println("[SSHErrorStream-Usage] Error in executing the command");
-                errorStream.add(true);
-                break;
-             } else {
-                errorStream.add(false);
-             }
-          }
-       }
-
-       for (String key : memUsageMap.keySet()) {
-          if (key.equals(SSHUtil.SSH_OUTPUT_STREAM)) {
-             if (errorStream != null && errorStream.get(0).equals(false)) {
-                hostdMemUsage = memUsageMap.get(key);
-             }
-
-          }
-       }
-
-       /*
-        * Memory Limit
-        */
-       String memLimitCmd = "esxcfg-resgrp -l host/vim/vmvisor/hostd | "
-                + "grep \"Group Capacity\" -A 4 | " + "grep \"Total Memory\" | "
-                + "head -n 1 | " + "grep -o -E " + "\"[0-9]+\\" + "."
-                + "[0-9]* MB\"";
-
-       Map<String, String> memLimitMap = SSHUtil.getRemoteSSHCmdOutput(sshConn,
-                memLimitCmd);
-
-       errorStream = null;
-       for (String key : memLimitMap.keySet()) {
-          if (key.equals(SSHUtil.SSH_ERROR_STREAM)) {
-             errorStream = new ArrayList<Boolean>();
-             if (!(memLimitMap.get(key).equals(""))) {
-                System.out.println("[SSHErrorStream-Limit] Error in executing the command");
-                errorStream.add(true);
-                break;
-             } else {
-                errorStream.add(false);
-             }
-          }
-       }
-
-       for (String key : memLimitMap.keySet()) {
-          if (key.equals(SSHUtil.SSH_OUTPUT_STREAM)) {
-             if (errorStream != null && errorStream.get(0).equals(false)) {
-                hostdMemLimit = memLimitMap.get(key);
-             }
-
-          }
-       }
-
-       hostdMemUsage = hostdMemUsage.substring(0, hostdMemUsage.indexOf("MB")).trim();
-       hostdMemLimit = hostdMemLimit.substring(0, hostdMemLimit.indexOf("MB")).trim();
-
-       if (hostdMemUsage.equals(hostdMemLimit)) {
-          ALERT_MEMORY_USAGE = true;
-       }
+        return sshLeases.acquire(host);
+    }
 
+    /**
+     * Done with the host for now, the SSH service state is reverted once its lease expires
+     */
+    void
+    releaseSSHService(HostSystem host)
+    {
+        sshLeases.release(host);
     }
 
     /**
-     * Thread resource checker
+     * Collect the API based stats of a batch of hosts, without SSH
      */
-    private void
-    threadResourceChecker(Connection sshConn) throws Exception
+    Map<String, HostdSample>
+    collectHostsViaApi(List<HostSystem> hosts) throws Exception
     {
-        /*
-         * Thread usage
-         */
-       String threadCurrUsageCmd = "grep \"HandleWork(type:\" /var/log/hostd.log |"
-                + " tail -n 1 | "
-                + " grep -o -E \"busy_long:[0-9]+\" |"
-                + " grep -o -E  \"[0-9]\"";
-
-       Map<String, String> threadUsageMap = SSHUtil.getRemoteSSHCmdOutput(
-                sshConn, threadCurrUsageCmd);
-
-       List<Boolean> errorStream = null;
-       for (String key : threadUsageMap.keySet()) {
-          if (key.equals(SSHUtil.SSH_ERROR_STREAM)) {
-             errorStream = new ArrayList<Boolean>();
-             System.out.println("threadusage:" + threadUsageMap.get(key));
-
-             if (!(threadUsageMap.get(key).equals(""))) {
-                System.out.println("[SSHErrorStream-ThreadUsage] Error in executing the command");
-                errorStream.add(true);
-                break;
-             } else {
-                errorStream.add(false);
-             }
-          }
-       }
-
-       for (String key : threadUsageMap.keySet()) {
-          if (key.equals(SSHUtil.SSH_OUTPUT_STREAM)) {
-             if (errorStream != null && errorStream.get(0).equals(false)) {
-                threadUsage = threadUsageMap.get(key);
-             }
-
-          }
-       }
-
-       /*
-        * Thread Limit
-        */
-       String threadLimitCmd = "grep \"<TaskMax>\" /etc/vmware/hostd/config.xml | "
-                + "grep -o -E \"[0-9]+\"";
-
-       Map<String, String> threadLimitMap = SSHUtil.getRemoteSSHCmdOutput(
-                sshConn, threadLimitCmd);
-
-       errorStream = null;
-       for (String key : threadLimitMap.keySet()) {
-          if (key.equals(SSHUtil.SSH_ERROR_STREAM)) {
-             errorStream = new ArrayList<Boolean>();
-             System.out.println("threadlimit:" + threadLimitMap.get(key));
-
-             if (!(threadLimitMap.get(key).equals(""))) {
-                System.out.println("[SSHErrorStream-ThreadLimit] Error in executing the command");
-                errorStream.add(true);
-                break;
-             } else {
-                errorStream.add(false);
-             }
-          }
-       }
-
-       for (String key : threadLimitMap.keySet()) {
-          if (key.equals(SSHUtil.SSH_OUTPUT_STREAM)) {
-             if (errorStream != null && errorStream.get(0).equals(false)) {
-                threadLimit = threadLimitMap.get(key);
-             }
-
-          }
-       }
-
-       threadUsage = threadUsage.replace("\n", "");
-       threadLimit = threadLimit.replace("\n", "");
+        synchronized (this) {
+            if (apiCollector == null) {
+                apiCollector = new ApiStatsCollector(si, vsphereIp);
+            }
+        }
+        Map<String, HostdSample> samples = apiCollector.collect(hosts);
+        for (HostdSample sample : samples.values()) {
+            sample.evaluate();
+        }
+        return samples;
+    }
 
+    /**
+     * Stop tracking inventory changes, once no more sweeps will run
+     */
+    synchronized void
+    stopInventoryTracking()
+    {
+        if (inventoryCache != null) {
+            inventoryCache.stop();
+            inventoryCache = null;
+        }
     }
 
     /**
-     * File Descriptor resource checker
+     * Iterate over the hosts to collect from, as selected by the host filter. Hosts are paged from the inventory as the
+     * iteration goes, so memory stays flat whatever the size of the inventory. In long running
+     * mode hosts come from the change tracking inventory cache, instead of paging through the
+     * whole inventory again on every sweep.
      */
-    private void
-    FDResourceChecker(Connection sshConn) throws Exception
+    synchronized Iterator<HostRef>
+    iterateHosts() throws Exception
     {
-        /*
-         * FD current usage
-         */
-       String fdCurrUsageCmd = "vmkvsitools lsof | grep hostd-worker | wc -l";
-
-       Map<String, String> fdUsageMap = SSHUtil.getRemoteSSHCmdOutput(sshConn,
-                fdCurrUsageCmd);
-
-       List<Boolean> errorStream = null;
-       for (String key : fdUsageMap.keySet()) {
-          if (key.equals(SSHUtil.SSH_ERROR_STREAM)) {
-             errorStream = new ArrayList<Boolean>();
-             System.out.println("FDusage:" + fdUsageMap.get(key));
-
-             if (!(fdUsageMap.get(key).equals(""))) {
-                System.out.println("[SSHErrorStream-FDUsage] Error in executing the command");
-                errorStream.add(true);
-                break;
-             } else {
-                errorStream.add(false);
-             }
-          }
-       }
-
-       for (String key : fdUsageMap.keySet()) {
-          if (key.equals(SSHUtil.SSH_OUTPUT_STREAM)) {
-             if (errorStream != null && errorStream.get(0).equals(false)) {
-                fdUsage = fdUsageMap.get(key);
-             }
-
-          }
-       }
-
-       /*
-        * FD Limit
-        */
-       String fdLimitCmd = "Base=`grep \"<hostdMinFds>\" /etc/vmware/hostd/config.xml | "
-                + "grep -o -E \"[0-9]+\"`; "
-                + "SupportedVMs=`vsish -e get /system/supportedVMs`; "
-                + "Limit=$(expr $Base + $SupportedVMs \\* 2); " + "echo $Limit";
-
-       Map<String, String> fdLimitMap = SSHUtil.getRemoteSSHCmdOutput(sshConn,
-                fdLimitCmd);
-
-       errorStream = null;
-       for (String key : fdLimitMap.keySet()) {
-          if (key.equals(SSHUtil.SSH_ERROR_STREAM)) {
-             errorStream = new ArrayList<Boolean>();
-             System.out.println("fdlimit:" + fdLimitMap.get(key));
-
-             if (!(fdLimitMap.get(key).equals(""))) {
-                System.out.println("[SSHErrorStream-FDLimit] Error in executing the command");
-                errorStream.add(true);
-                break;
-             } else {
-                errorStream.add(false);
-             }
-          }
-       }
-
-       for (String key : fdLimitMap.keySet()) {
-          if (key.equals(SSHUtil.SSH_OUTPUT_STREAM)) {
-             if (errorStream != null && errorStream.get(0).equals(false)) {
-                fdLimit = fdLimitMap.get(key);
-             }
-
-          }
-       }
-
-       fdUsage = fdUsage.replace("\n", "");
-       fdLimit = fdLimit.replace("\n", "");
+        if (options.isLongRunning()) {
+            try {
+                if (inventoryCache == null) {
+                    InventoryCache cache = new InventoryCache(si, options.hostFilter.resolveRoots(si),
+                        options.hostFilter);
+                    cache.start();
+                    inventoryCache = cache;
+                }
+                return inventoryCache.getHostRefs().iterator();
+            } catch (Exception e) {
+                Log.error("[Error] Unable to track inventory changes, falling back to inventory paging");
+            }
+        }
+        return new HostIterator(si, options.pageSize, options.hostFilter.resolveRoots(si), options.hostFilter);
+    }
 
+    /**
+     * Whether the host may be collected now, or is skipped after repeated failures
+     */
+    boolean
+    allowHost(String hostName, long now)
+    {
+        return circuitBreaker.allow(hostName, now);
     }
 
     /**
-     * Response checker
+     * Managed object of a host returned by iterateHosts
      */
-    private void
-    responseChecker(Connection sshConn) throws Exception
+    HostSystem
+    toHostSystem(HostRef ref)
     {
-       String respCheckerCmd = "grep \"hostd detected to be non-responsive\" /var/log/hostd-probe.log";
-
-       Map<String, String> respChkerMap = SSHUtil.getRemoteSSHCmdOutput(sshConn,
-                respCheckerCmd);
-
-       List<Boolean> errorStream = null;
-       for (String key : respChkerMap.keySet()) {
-          if (key.equals(SSHUtil.SSH_ERROR_STREAM)) {
-             errorStream = new ArrayList<Boolean>();
-             //System.out.println("RespChecker:" + respChkerMap.get(key));
-
-             if (!(respChkerMap.get(key).equals(""))) {
-                System.out.println("[SSHErrorStream-RespChecker] Error in executing the command");
-                errorStream.add(true);
-                break;
-             } else {
-                errorStream.add(false);
-             }
-          }
-       }
-
-       for (String key : respChkerMap.keySet()) {
-          if (key.equals(SSHUtil.SSH_OUTPUT_STREAM)) {
-             if (errorStream != null && errorStream.get(0).equals(false)) {
-                if (!(respChkerMap.get(key).equals(""))) {
-                   hostdResponsive = false;
-                   RESPONSE_ALERT = "RED";
-                } else {
-                   RESPONSE_ALERT = "GREEN";
-                }
-             }
+        return ref.toHostSystem(si.getServerConnection());
+    }
 
-          }
-       }
+    /**
+     * SSH service state of the host as tracked by the inventory cache, null when unknown or
+     * not in long running mode
+     */
+    private synchronized Boolean
+    cachedSshRunning(HostSystem hostSys)
+    {
+        return inventoryCache != null ? inventoryCache.isSshRunning(hostSys.getMOR()) : null;
+    }
+
+    private synchronized void
+    setCachedSshRunning(HostSystem hostSys, boolean running)
+    {
+        if (inventoryCache != null) {
+            inventoryCache.setSshRunning(hostSys.getMOR(), running);
+        }
     }
 
     /**
-     * Start SSH Services
+     * Start SSH Services. When the inventory cache knows the service state, the host is not
+     * asked for it first.
      */
-    private boolean
+    boolean
     startSSHService(HostSystem hostSys)
     {
         boolean startedService = false;
+        Boolean cachedRunning = cachedSshRunning(hostSys);
+        if (Boolean.TRUE.equals(cachedRunning)) {
+            Log.debug(SSH_SERVICE + " service is already in running state, as tracked by the inventory cache");
+            return true;
+        }
 
         try {
             HostServiceSystem hss = hostSys.getHostServiceSystem();
             for (HostService tempHs : hss.getServiceInfo().getService()) {
                 String id = tempHs.getKey();
                 if (SSH_SERVICE.equalsIgnoreCase(id)) {
-                    if (!(getServiceState(hostSys, id).equalsIgnoreCase(SERVICE_RUNNING))) {
+                    if (cachedRunning != null || !(getServiceState(hostSys, id).equalsIgnoreCase(SERVICE_RUNNING))) {
+                        // journaled first, so that a crash right after still gets it reverted
+                        sshLeases.onStarting(hostSys);
                         hss.startService(id);
 
                         // Check if we indeed were successful in starting services
                         if (getServiceState(hostSys, id).equalsIgnoreCase(SERVICE_RUNNING)) {
-                            System.out.println(SSH_SERVICE + " service is in running state now");
+                            Log.debug(SSH_SERVICE + " service is in running state now");
                             startedService = true;
+                            setCachedSshRunning(hostSys, true);
 
-                            // below flag is for cleanup purpose - restoring
+                            // below lease is for cleanup purpose - restoring
                             // previous state
-                            cleanupStopSSHService = true;
+                            sshLeases.onStarted(hostSys);
                             break;
                         } else {
-                            System.err.println(SSH_SERVICE + " service could not be started");
+                            Log.error(SSH_SERVICE + " service could not be started");
                             break;
                         }
                     } else {
-                        System.out.println(SSH_SERVICE + " service is already in running state");
+                        Log.debug(SSH_SERVICE + " service is already in running state");
                         startedService = true;
                         break;
                     }
                 }
             }
         } catch (Exception e) {
-            System.err.println("Caught exception while starting SSH service");
+            Log.error("Caught exception while starting SSH service");
         }
 
         return startedService;
     }
 
     /**
-     * Stop SSH Services
+     * Stop SSH Services. When the inventory cache knows the service state, the host is not
+     * asked for it first.
      */
-    private boolean
+    boolean
     stopSSHService(HostSystem hostSys)
     {
         boolean stoppedService = false;
+        Boolean cachedRunning = cachedSshRunning(hostSys);
+        if (Boolean.FALSE.equals(cachedRunning)) {
+            Log.debug(SSH_SERVICE + " service is already stopped, as tracked by the inventory cache");
+            return true;
+        }
 
         try {
             HostServiceSystem hss = hostSys.getHostServiceSystem();
             for (HostService tempHs : hss.getServiceInfo().getService()) {
                 String id = tempHs.getKey();
                 if (SSH_SERVICE.equalsIgnoreCase(id)) {
-                    if (!(getServiceState(hostSys, id).equalsIgnoreCase(SERVICE_STOPPED))) {
+                    if (cachedRunning != null || !(getServiceState(hostSys, id).equalsIgnoreCase(SERVICE_STOPPED))) {
                         hss.stopService(id);
 
                         // Check if we indeed were successful in stopping services
                         if (getServiceState(hostSys, id).equalsIgnoreCase(SERVICE_STOPPED)) {
-                            System.out.println(SSH_SERVICE + " service is stopped now");
+                            Log.debug(SSH_SERVICE + " service is stopped now");
                             stoppedService = true;
+                            setCachedSshRunning(hostSys, false);
                             break;
                         } else {
-                            System.err.println(SSH_SERVICE + " service could not be stopped");
+                            Log.error(SSH_SERVICE + " service could not be stopped");
                             break;
                         }
                     } else {
-                        System.out.println(SSH_SERVICE + " service is already stopped");
+                        Log.debug(SSH_SERVICE + " service is already stopped");
                         stoppedService = true;
                         break;
                     }
                 }
             }
         } catch (Exception e) {
-            System.err.println("Caught exception while turning off SSH service");
+            Log.error("Caught exception while turning off SSH service");
         }
 
         return stoppedService;
@@ -0,0 +1,156 @@
+/**
+ * Rolls samples up per cluster, per datacenter and fleet wide as hosts complete,
+ * and prints usage percentiles once the sweep ends
+ *
+ * Copyright (c) 2016
+ *
+ * Permission is hereby granted, free of charge, to any person
+ * obtaining a copy of this software and associated documentation files
+ * (the "Software"), to deal in the Software without restriction,
+ * including without limitation the rights to use, copy, modify, merge,
+ * publish, distribute, sublicense, and/or sell copies of the Software,
+ * and to permit persons to whom the Software is furnished to do so,
+ * subject to the following conditions:
+ *
+ * @author Gururaja Hegdal (ghegdal@vmware.com)
+ * @version 1.0
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES
+ * OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT
+ * HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY,
+ * WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING
+ * FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR
+ * OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+package hostdstat;
+
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+public class FleetAggregator implements SampleListener
+{
+    public static final String STANDALONE = "(standalone)";
+    public static final String UNKNOWN = "(unknown)";
+    public static final String FLEET = "FLEET";
+
+    // leaf groups, one per vCenter/datacenter/cluster, updated concurrently by the workers
+    private volatile ConcurrentMap<String, Rollup> clusters = new ConcurrentHashMap<String, Rollup>();
+
+    /**
+     * Accumulators of one group of hosts
+     */
+    public static class Rollup
+    {
+        final AtomicLong hosts = new AtomicLong();
+        final UsageSketch mem = new UsageSketch();
+        final UsageSketch thread = new UsageSketch();
+        final UsageSketch fd = new UsageSketch();
+
+        void
+        add(HostdSample sample)
+        {
+            hosts.incrementAndGet();
+            if (sample.memThreshold != null) {
+                mem.add(sample.memThreshold);
+            }
+            if (sample.threadThreshold != null) {
+                thread.add(sample.threadThreshold);
+            }
+            if (sample.fdThreshold != null) {
+                fd.add(sample.fdThreshold);
+            }
+        }
+
+        void
+        merge(Rollup other)
+        {
+            hosts.addAndGet(other.hosts.get());
+            mem.merge(other.mem);
+            thread.merge(other.thread);
+            fd.merge(other.fd);
+        }
+    }
+
+    @Override
+    public void
+    onSample(HostdSample sample)
+    {
+        String key = sample.vsphereIp + "/" + (sample.datacenter != null ? sample.datacenter : UNKNOWN) + "/"
+            + (sample.cluster != null ? sample.cluster : STANDALONE);
+        Rollup rollup = clusters.get(key);
+        if (rollup == null) {
+            clusters.putIfAbsent(key, new Rollup());
+            rollup = clusters.get(key);
+        }
+        rollup.add(sample);
+    }
+
+    /**
+     * Merge the cluster rollups into datacenter and fleet rollups, print them all, and
+     * start over for the next sweep
+     */
+    @Override
+    public void
+    onSweepComplete()
+    {
+        Map<String, Rollup> sweepClusters = new TreeMap<String, Rollup>(clusters);
+        clusters = new ConcurrentHashMap<String, Rollup>();
+
+        Map<String, Rollup> datacenters = new TreeMap<String, Rollup>();
+        Rollup fleet = new Rollup();
+        for (Map.Entry<String, Rollup> entry : sweepClusters.entrySet()) {
+            String dcKey = entry.getKey().substring(0, entry.getKey().lastIndexOf('/'));
+            Rollup dc = datacenters.get(dcKey);
+            if (dc == null) {
+                dc = new Rollup();
+                datacenters.put(dcKey, dc);
+            }
+            dc.merge(entry.getValue());
+            fleet.merge(entry.getValue());
+        }
+
+        StringBuilder sb = new StringBuilder();
+        sb.append("\n==================== R O L L U P ====================");
+        sb.append(String.format("%n%-40s %6s %-7s %7s %7s %7s %7s %7s %7s", "SCOPE", "HOSTS", "METRIC", "MIN",
+            "MEAN", "P50", "P90", "P99", "MAX"));
+        for (Map.Entry<String, Rollup> entry : sweepClusters.entrySet()) {
+            format(sb, "cluster " + entry.getKey(), entry.getValue());
+        }
+        for (Map.Entry<String, Rollup> entry : datacenters.entrySet()) {
+            format(sb, "datacenter " + entry.getKey(), entry.getValue());
+        }
+        format(sb, FLEET, fleet);
+        Log.report(sb.toString());
+    }
+
+    /**
+     * One line per metric of the rollup
+     */
+    private static void
+    format(StringBuilder sb, String scope, Rollup rollup)
+    {
+        formatMetric(sb, scope, rollup.hosts.get(), "MEM", rollup.mem);
+        formatMetric(sb, scope, rollup.hosts.get(), "THREAD", rollup.thread);
+        formatMetric(sb, scope, rollup.hosts.get(), "FD", rollup.fd);
+    }
+
+    private static void
+    formatMetric(StringBuilder sb, String scope, long hosts, String metric, UsageSketch sketch)
+    {
+        if (sketch.getCount() == 0) {
+            return;
+        }
+        sb.append(String.format("%n%-40s %6d %-7s %7.1f %7.1f %7.1f %7.1f %7.1f %7.1f", scope, hosts, metric,
+            sketch.getMin(), sketch.getMean(), sketch.quantile(0.5), sketch.quantile(0.9), sketch.quantile(0.99),
+            sketch.getMax()));
+    }
+}
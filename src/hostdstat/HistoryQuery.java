@@ -0,0 +1,325 @@
+/**
+ * Query subcommand over the history stored with --history: top N hosts by metric, or
+ * the records of a time range, optionally restricted to a cluster, datacenter or hosts
+ *
+ * Copyright (c) 2016
+ *
+ * Permission is hereby granted, free of charge, to any person
+ * obtaining a copy of this software and associated documentation files
+ * (the "Software"), to deal in the Software without restriction,
+ * including without limitation the rights to use, copy, modify, merge,
+ * publish, distribute, sublicense, and/or sell copies of the Software,
+ * and to permit persons to whom the Software is furnished to do so,
+ * subject to the following conditions:
+ *
+ * @author Gururaja Hegdal (ghegdal@vmware.com)
+ * @version 1.0
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES
+ * OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT
+ * HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY,
+ * WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING
+ * FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR
+ * OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+package hostdstat;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.PriorityQueue;
+import java.util.regex.Pattern;
+
+public class HistoryQuery
+{
+    public static final String SUBCOMMAND = "query";
+    public static final String TIME_FORMAT = "yyyy-MM-dd'T'HH:mm:ss";
+
+    public static final String METRIC_MEM = "mem";
+    public static final String METRIC_THREAD = "thread";
+    public static final String METRIC_FD = "fd";
+
+    // records read from a host file per call
+    private static final int READ_RECORDS = 2048;
+
+    private String historyDir;
+    private String metric = METRIC_MEM;
+    private int top = 0;
+    private long fromTime = 0;
+    private long toTime = Long.MAX_VALUE;
+    private String datacenter;
+    private String cluster;
+    private Pattern hostPattern;
+    private final SimpleDateFormat timeFormat = new SimpleDateFormat(TIME_FORMAT);
+
+    /**
+     * Highest value of the metric for one host, in the queried range
+     */
+    private static class HostPeak
+    {
+        final HistoryStore.HostEntry host;
+        final float value;
+        final long timestamp;
+
+        HostPeak(HistoryStore.HostEntry host, float value, long timestamp)
+        {
+            this.host = host;
+            this.value = value;
+            this.timestamp = timestamp;
+        }
+    }
+
+    private static final Comparator<HostPeak> PEAK_ORDER = new Comparator<HostPeak>() {
+        @Override
+        public int
+        compare(HostPeak a, HostPeak b)
+        {
+            return Float.compare(a.value, b.value);
+        }
+    };
+
+    /**
+     * Constructor, reading the query from the subcommand arguments
+     */
+    public HistoryQuery(String[] args) throws ParseException
+    {
+        long now = System.currentTimeMillis();
+        for (int i = 1; i < args.length - 1; i++) {
+            if (args[i].equals("--history")) {
+                historyDir = args[i + 1];
+            } else if (args[i].equals("--metric")) {
+                metric = args[i + 1].toLowerCase();
+            } else if (args[i].equals("--top")) {
+                top = CollectorOptions.parseInt(args[i], args[i + 1], top);
+            } else if (args[i].equals("--from")) {
+                fromTime = parseTime(args[i + 1]);
+            } else if (args[i].equals("--to")) {
+                toTime = parseTime(args[i + 1]);
+            } else if (args[i].equals("--last")) {
+                fromTime = now - parseDuration(args[i + 1]);
+            } else if (args[i].equals("--datacenter")) {
+                datacenter = args[i + 1];
+            } else if (args[i].equals("--cluster")) {
+                cluster = args[i + 1];
+            } else if (args[i].equals("--host-regex")) {
+                hostPattern = Pattern.compile(args[i + 1]);
+            }
+        }
+    }
+
+    /**
+     * Whether the query is complete enough to run
+     */
+    public boolean
+    isValid()
+    {
+        return historyDir != null && (METRIC_MEM.equals(metric) || METRIC_THREAD.equals(metric)
+            || METRIC_FD.equals(metric));
+    }
+
+    /**
+     * Run the query, writing its results to stdout as they are found
+     */
+    public void
+    run() throws IOException
+    {
+        File dir = new File(historyDir);
+        List<HistoryStore.HostEntry> hosts = new ArrayList<HistoryStore.HostEntry>();
+        for (HistoryStore.HostEntry host : HistoryStore.loadIndex(dir)) {
+            if (matches(host)) {
+                hosts.add(host);
+            }
+        }
+
+        Writer out = new BufferedWriter(new OutputStreamWriter(System.out));
+        try {
+            if (top > 0) {
+                runTop(dir, hosts, out);
+            } else {
+                for (HistoryStore.HostEntry host : hosts) {
+                    scan(dir, host, out);
+                }
+            }
+        } finally {
+            out.flush();
+        }
+    }
+
+    /**
+     * Top N hosts by peak value of the metric, keeping only N hosts in a min heap
+     */
+    private void
+    runTop(File dir, List<HistoryStore.HostEntry> hosts, Writer out) throws IOException
+    {
+        PriorityQueue<HostPeak> heap = new PriorityQueue<HostPeak>(top + 1, PEAK_ORDER);
+        for (HistoryStore.HostEntry host : hosts) {
+            HostPeak peak = scan(dir, host, null);
+            if (peak == null) {
+                continue;
+            }
+            if (heap.size() < top) {
+                heap.add(peak);
+            } else if (peak.value > heap.peek().value) {
+                heap.poll();
+                heap.add(peak);
+            }
+        }
+
+        List<HostPeak> peaks = new ArrayList<HostPeak>(heap);
+        Collections.sort(peaks, Collections.reverseOrder(PEAK_ORDER));
+        int rank = 1;
+        for (HostPeak peak : peaks) {
+            out.write(String.format("%3d %-40s %-20s %-20s %s=%.1f%% at %s%n", rank++, peak.host.hostName,
+                orDash(peak.host.datacenter), orDash(peak.host.cluster), metric, peak.value,
+                formatTime(peak.timestamp)));
+        }
+    }
+
+    /**
+     * Read the records of one host in the queried range. Writes every record out, or without
+     * a writer returns the peak of the metric.
+     */
+    private HostPeak
+    scan(File dir, HistoryStore.HostEntry host, Writer out) throws IOException
+    {
+        HostPeak peak = null;
+        File dataFile = host.dataFile(dir);
+        if (!dataFile.exists()) {
+            return null;
+        }
+        FileChannel ch = new FileInputStream(dataFile).getChannel();
+        try {
+            long recordCount = ch.size() / HistoryStore.RECORD_SIZE;
+            long idx = HistoryStore.findFirst(ch, fromTime);
+            ByteBuffer buf = ByteBuffer.allocate(READ_RECORDS * HistoryStore.RECORD_SIZE);
+            while (idx < recordCount) {
+                buf.clear();
+                int toRead = (int) Math.min(READ_RECORDS, recordCount - idx) * HistoryStore.RECORD_SIZE;
+                buf.limit(toRead);
+                long pos = idx * HistoryStore.RECORD_SIZE;
+                while (buf.hasRemaining() && ch.read(buf, pos + buf.position()) > 0) {
+                    // read the whole chunk
+                }
+                buf.flip();
+                while (buf.remaining() >= HistoryStore.RECORD_SIZE) {
+                    long timestamp = buf.getLong();
+                    if (timestamp > toTime) {
+                        return peak;
+                    }
+                    float memPct = buf.getFloat();
+                    float threadPct = buf.getFloat();
+                    float fdPct = buf.getFloat();
+                    float memMb = buf.getFloat();
+                    float threads = buf.getFloat();
+                    float fds = buf.getFloat();
+                    int flags = buf.getInt();
+                    idx++;
+
+                    if (out == null) {
+                        float value = METRIC_MEM.equals(metric) ? memPct : METRIC_THREAD.equals(metric)
+                            ? threadPct : fdPct;
+                        if (!Float.isNaN(value) && (peak == null || value > peak.value)) {
+                            peak = new HostPeak(host, value, timestamp);
+                        }
+                    } else {
+                        out.write(formatTime(timestamp) + " " + host.hostName + " mem=" + memMb + "MB("
+                            + memPct + "%) thread=" + threads + "(" + threadPct + "%) fd=" + fds + "(" + fdPct
+                            + "%) responsive=" + ((flags & HistoryStore.FLAG_RESPONSE_UNKNOWN) != 0 ? "unknown"
+                            : String.valueOf((flags & HistoryStore.FLAG_RESPONSIVE) != 0)) + "\n");
+                    }
+                }
+            }
+        } finally {
+            ch.close();
+        }
+        return peak;
+    }
+
+    private boolean
+    matches(HistoryStore.HostEntry host)
+    {
+        if (datacenter != null && !datacenter.equals(host.datacenter)) {
+            return false;
+        }
+        if (cluster != null && !cluster.equals(host.cluster)) {
+            return false;
+        }
+        return hostPattern == null || hostPattern.matcher(host.hostName).find();
+    }
+
+    /**
+     * Epoch seconds, or local time as yyyy-MM-ddTHH:mm:ss
+     */
+    static long
+    parseTime(String value) throws ParseException
+    {
+        if (value.matches("[0-9]+")) {
+            return Long.parseLong(value) * 1000;
+        }
+        return new SimpleDateFormat(TIME_FORMAT).parse(value).getTime();
+    }
+
+    /**
+     * Duration such as 90s, 30m, 24h or 7d, in milliseconds
+     */
+    static long
+    parseDuration(String value) throws ParseException
+    {
+        if (!value.matches("[0-9]+[smhd]")) {
+            throw new ParseException("Invalid duration: " + value, 0);
+        }
+        long amount = Long.parseLong(value.substring(0, value.length() - 1));
+        switch (value.charAt(value.length() - 1)) {
+        case 's':
+            return amount * 1000;
+        case 'm':
+            return amount * 60 * 1000;
+        case 'h':
+            return amount * 60 * 60 * 1000;
+        default:
+            return amount * 24 * 60 * 60 * 1000;
+        }
+    }
+
+    private String
+    formatTime(long timestamp)
+    {
+        return timeFormat.format(timestamp);
+    }
+
+    private static String
+    orDash(String value)
+    {
+        return value != null ? value : "-";
+    }
+
+    /**
+     * Usage of the query subcommand
+     */
+    public static void
+    usage()
+    {
+        System.out.println("Usage (query history): java -jar hostdstat.jar query --history <dir> "
+            + "[--top <n> [--metric mem|thread|fd]] [--last <n>s|m|h|d | --from <time> --to <time>] "
+            + "[--datacenter <name>] [--cluster <name>] [--host-regex <regex>]");
+        System.out.println("  <time> is epoch seconds or " + TIME_FORMAT + ", without --top every record "
+            + "in the range is printed");
+    }
+}
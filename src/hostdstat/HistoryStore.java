@@ -0,0 +1,389 @@
+/**
+ * Stores samples on disk for later queries: one file of fixed size binary records per
+ * host, appended in time order, and a text index of the hosts with their placement.
+ * Being sorted and fixed size, records of a time range are found by binary search.
+ *
+ * Copyright (c) 2016
+ *
+ * Permission is hereby granted, free of charge, to any person
+ * obtaining a copy of this software and associated documentation files
+ * (the "Software"), to deal in the Software without restriction,
+ * including without limitation the rights to use, copy, modify, merge,
+ * publish, distribute, sublicense, and/or sell copies of the Software,
+ * and to permit persons to whom the Software is furnished to do so,
+ * subject to the following conditions:
+ *
+ * @author Gururaja Hegdal (ghegdal@vmware.com)
+ * @version 1.0
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES
+ * OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT
+ * HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY,
+ * WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING
+ * FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR
+ * OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+package hostdstat;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.RandomAccessFile;
+import java.io.Writer;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+public class HistoryStore implements SampleListener
+{
+    public static final String INDEX_FILE = "hosts.idx";
+    public static final String DATA_SUFFIX = ".dat";
+
+    // timestamp, mem/thread/fd usage %, mem MB, threads, fds, flags
+    public static final int RECORD_SIZE = 8 + 6 * 4 + 4;
+    public static final int FLAG_RESPONSIVE = 1;
+    public static final int FLAG_MEM_AT_LIMIT = 2;
+    public static final int FLAG_RESPONSE_UNKNOWN = 4;
+
+    // pending records written out before the end of the sweep
+    public static final int FLUSH_RECORDS = 4096;
+    // pending records kept, the oldest first dropped, while the history can not be written
+    public static final int MAX_PENDING_RECORDS = 4 * FLUSH_RECORDS;
+
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    private final File dir;
+    private final Map<String, HostEntry> hosts = new HashMap<String, HostEntry>();
+    private final Map<HostEntry, List<HostdSample>> pending = new LinkedHashMap<HostEntry, List<HostdSample>>();
+    private int pendingCount = 0;
+    // records left pending by the last failed flush
+    private int keptCount = 0;
+    private int nextId = 0;
+
+    /**
+     * One host of the index
+     */
+    public static class HostEntry
+    {
+        final int id;
+        final String vsphereIp;
+        final String hostName;
+        String datacenter;
+        String cluster;
+
+        HostEntry(int id, String vsphereIp, String hostName, String datacenter, String cluster)
+        {
+            this.id = id;
+            this.vsphereIp = vsphereIp;
+            this.hostName = hostName;
+            this.datacenter = datacenter;
+            this.cluster = cluster;
+        }
+
+        File
+        dataFile(File dir)
+        {
+            return new File(dir, "h" + id + DATA_SUFFIX);
+        }
+    }
+
+    /**
+     * Open the store in the given directory, creating it if needed
+     */
+    public HistoryStore(String dirName) throws IOException
+    {
+        this.dir = new File(dirName);
+        if (!dir.isDirectory() && !dir.mkdirs()) {
+            throw new IOException("Unable to create history directory: " + dirName);
+        }
+        for (HostEntry entry : loadIndex(dir)) {
+            hosts.put(entry.vsphereIp + "/" + entry.hostName, entry);
+            nextId = Math.max(nextId, entry.id + 1);
+        }
+    }
+
+    @Override
+    public void
+    onSample(HostdSample sample)
+    {
+        boolean flush;
+        synchronized (this) {
+            HostEntry entry = hosts.get(sample.vsphereIp + "/" + sample.hostName);
+            if (entry == null) {
+                entry = new HostEntry(nextId++, sample.vsphereIp, sample.hostName, null, null);
+                hosts.put(sample.vsphereIp + "/" + sample.hostName, entry);
+            }
+            List<HostdSample> hostPending = pending.get(entry);
+            if (hostPending == null) {
+                hostPending = new ArrayList<HostdSample>();
+                pending.put(entry, hostPending);
+            }
+            hostPending.add(sample);
+            pendingCount++;
+            flush = pendingCount - keptCount >= FLUSH_RECORDS;
+        }
+        if (flush) {
+            flush();
+        }
+    }
+
+    @Override
+    public void
+    onSweepComplete()
+    {
+        flush();
+    }
+
+    /**
+     * Append pending records to the host files, one write per host. Records of the hosts
+     * not written stay pending for the next flush.
+     */
+    public synchronized void
+    flush()
+    {
+        if (pending.isEmpty()) {
+            return;
+        }
+        try {
+            List<HostdSample> moved = new ArrayList<HostdSample>();
+            Writer index = new OutputStreamWriter(new FileOutputStream(new File(dir, INDEX_FILE), true), UTF8);
+            try {
+                for (Map.Entry<HostEntry, List<HostdSample>> entry : pending.entrySet()) {
+                    HostEntry host = entry.getKey();
+                    HostdSample last = entry.getValue().get(entry.getValue().size() - 1);
+                    // new hosts, and hosts that moved, get a new index line, the last one wins
+                    if (!host.dataFile(dir).exists() || !equals(host.datacenter, last.datacenter)
+                        || !equals(host.cluster, last.cluster)) {
+                        index.write(host.id + "\t" + host.vsphereIp + "\t" + host.hostName + "\t"
+                            + nullToEmpty(last.datacenter) + "\t" + nullToEmpty(last.cluster) + "\n");
+                        moved.add(last);
+                    }
+                }
+            } finally {
+                index.close();
+            }
+            for (HostdSample last : moved) {
+                HostEntry host = hosts.get(last.vsphereIp + "/" + last.hostName);
+                host.datacenter = last.datacenter;
+                host.cluster = last.cluster;
+            }
+        } catch (IOException e) {
+            Log.error("Caught exception while writing history index to: " + dir, e);
+            keepPending();
+            return;
+        }
+
+        // a host whose file can not be written does not hold back the others
+        IOException failure = null;
+        Iterator<Map.Entry<HostEntry, List<HostdSample>>> it = pending.entrySet().iterator();
+        while (it.hasNext()) {
+            Map.Entry<HostEntry, List<HostdSample>> entry = it.next();
+            try {
+                append(entry.getKey().dataFile(dir), entry.getValue());
+            } catch (IOException e) {
+                failure = e;
+                continue;
+            }
+            pendingCount -= entry.getValue().size();
+            it.remove();
+        }
+        if (failure != null) {
+            Log.error("Caught exception while writing history to: " + dir, failure);
+            keepPending();
+        } else {
+            keptCount = 0;
+        }
+    }
+
+    /**
+     * Append the records to a host file
+     */
+    private static void
+    append(File dataFile, List<HostdSample> samples) throws IOException
+    {
+        ByteBuffer buf = ByteBuffer.allocate(samples.size() * RECORD_SIZE);
+        for (HostdSample sample : samples) {
+            encode(sample, buf);
+        }
+        buf.flip();
+        FileChannel ch = new RandomAccessFile(dataFile, "rw").getChannel();
+        try {
+            // a crash in the middle of a previous append leaves a partial record at the
+            // end, cut it so that the new records stay aligned
+            long end = ch.size() - ch.size() % RECORD_SIZE;
+            if (end != ch.size()) {
+                Log.warn("Dropping partial history record at the end of: " + dataFile);
+                ch.truncate(end);
+            }
+            ch.position(end);
+            try {
+                while (buf.hasRemaining()) {
+                    ch.write(buf);
+                }
+            } catch (IOException e) {
+                // the records are retried on the next flush, do not keep a part of them
+                ch.truncate(end);
+                throw e;
+            }
+        } finally {
+            ch.close();
+        }
+    }
+
+    /**
+     * Keep the records left by a failed flush pending, up to MAX_PENDING_RECORDS
+     */
+    private void
+    keepPending()
+    {
+        if (pendingCount > MAX_PENDING_RECORDS) {
+            Log.warn("Dropping the " + (pendingCount - MAX_PENDING_RECORDS) + " oldest pending history records");
+            dropOldest(pendingCount - MAX_PENDING_RECORDS);
+        }
+        keptCount = pendingCount;
+    }
+
+    /**
+     * Drop the given number of pending records, the oldest first
+     */
+    private void
+    dropOldest(int count)
+    {
+        long[] times = new long[pendingCount];
+        int i = 0;
+        for (List<HostdSample> hostPending : pending.values()) {
+            for (HostdSample sample : hostPending) {
+                times[i++] = sample.timestamp;
+            }
+        }
+        Arrays.sort(times);
+        long cutoff = times[count - 1];
+
+        int dropped = 0;
+        Iterator<List<HostdSample>> it = pending.values().iterator();
+        while (it.hasNext() && dropped < count) {
+            List<HostdSample> hostPending = it.next();
+            int n = 0;
+            while (n < hostPending.size() && dropped < count && hostPending.get(n).timestamp <= cutoff) {
+                n++;
+                dropped++;
+            }
+            hostPending.subList(0, n).clear();
+            if (hostPending.isEmpty()) {
+                it.remove();
+            }
+        }
+        pendingCount -= dropped;
+    }
+
+    /**
+     * Hosts of the index, by id
+     */
+    static List<HostEntry>
+    loadIndex(File dir) throws IOException
+    {
+        Map<Integer, HostEntry> entries = new LinkedHashMap<Integer, HostEntry>();
+        File indexFile = new File(dir, INDEX_FILE);
+        if (!indexFile.exists()) {
+            return new ArrayList<HostEntry>();
+        }
+        BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(indexFile), UTF8));
+        try {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                String[] fields = line.split("\t", -1);
+                if (fields.length < 5) {
+                    continue;
+                }
+                int id = Integer.parseInt(fields[0]);
+                entries.put(id, new HostEntry(id, fields[1], fields[2], emptyToNull(fields[3]),
+                    emptyToNull(fields[4])));
+            }
+        } finally {
+            reader.close();
+        }
+        return new ArrayList<HostEntry>(entries.values());
+    }
+
+    /**
+     * Index of the first record at or after the given time, in a host file
+     */
+    static long
+    findFirst(FileChannel ch, long fromTime) throws IOException
+    {
+        long lo = 0;
+        long hi = ch.size() / RECORD_SIZE;
+        ByteBuffer ts = ByteBuffer.allocate(8);
+        while (lo < hi) {
+            long mid = (lo + hi) >>> 1;
+            ts.clear();
+            ch.read(ts, mid * RECORD_SIZE);
+            if (ts.getLong(0) < fromTime) {
+                lo = mid + 1;
+            } else {
+                hi = mid;
+            }
+        }
+        return lo;
+    }
+
+    private static void
+    encode(HostdSample sample, ByteBuffer buf)
+    {
+        buf.putLong(sample.timestamp);
+        buf.putFloat(sample.memThreshold != null ? sample.memThreshold : Float.NaN);
+        buf.putFloat(sample.threadThreshold != null ? sample.threadThreshold : Float.NaN);
+        buf.putFloat(sample.fdThreshold != null ? sample.fdThreshold : Float.NaN);
+        buf.putFloat(parse(sample.hostdMemUsage));
+        buf.putFloat(parse(sample.threadUsage));
+        buf.putFloat(parse(sample.fdUsage));
+        int flags = sample.hostdResponsive == null ? FLAG_RESPONSE_UNKNOWN
+            : sample.hostdResponsive ? FLAG_RESPONSIVE : 0;
+        buf.putInt(flags | (sample.memAtLimit ? FLAG_MEM_AT_LIMIT : 0));
+    }
+
+    private static float
+    parse(String value)
+    {
+        try {
+            return value != null ? Float.parseFloat(value.trim()) : Float.NaN;
+        } catch (NumberFormatException e) {
+            return Float.NaN;
+        }
+    }
+
+    private static boolean
+    equals(String a, String b)
+    {
+        return a == null ? b == null : a.equals(b);
+    }
+
+    private static String
+    nullToEmpty(String value)
+    {
+        return value != null ? value : "";
+    }
+
+    private static String
+    emptyToNull(String value)
+    {
+        return value.length() > 0 ? value : null;
+    }
+}
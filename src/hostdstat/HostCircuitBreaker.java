@@ -0,0 +1,183 @@
+/**
+ * Per host circuit breaker. Hosts failing repeatedly are skipped with exponential
+ * backoff, and a single half-open probe is let through to detect recovery.
+ *
+ * Copyright (c) 2016
+ *
+ * Permission is hereby granted, free of charge, to any person
+ * obtaining a copy of this software and associated documentation files
+ * (the "Software"), to deal in the Software without restriction,
+ * including without limitation the rights to use, copy, modify, merge,
+ * publish, distribute, sublicense, and/or sell copies of the Software,
+ * and to permit persons to whom the Software is furnished to do so,
+ * subject to the following conditions:
+ *
+ * @author Gururaja Hegdal (ghegdal@vmware.com)
+ * @version 1.0
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES
+ * OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT
+ * HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY,
+ * WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING
+ * FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR
+ * OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+package hostdstat;
+
+import java.net.ConnectException;
+import java.net.NoRouteToHostException;
+import java.net.SocketTimeoutException;
+import java.net.UnknownHostException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+public class HostCircuitBreaker
+{
+    public static final int DEFAULT_BASE_BACKOFF = 60;
+    public static final int DEFAULT_MAX_BACKOFF = 3600;
+
+    // wrong credentials do not fix themselves, back off harder
+    private static final int AUTH_BACKOFF_FACTOR = 8;
+
+    /**
+     * Kind of failure, as seen by the collector
+     */
+    public enum Failure
+    {
+        AUTH,
+        CONNECT_REFUSED,
+        TIMEOUT,
+        UNREACHABLE,
+        SERVICE_START_FAILED,
+        OTHER
+    }
+
+    private enum State
+    {
+        CLOSED,
+        OPEN,
+        HALF_OPEN
+    }
+
+    // delays are in milliseconds
+    private final long baseBackoff;
+    private final long maxBackoff;
+    private final ConcurrentMap<String, Circuit> circuits = new ConcurrentHashMap<String, Circuit>();
+
+    /**
+     * Failure history of one host
+     */
+    private static class Circuit
+    {
+        State state = State.CLOSED;
+        int failures;
+        Failure lastFailure;
+        long retryAt;
+    }
+
+    /**
+     * Constructor, backoff in seconds
+     */
+    public HostCircuitBreaker(int baseBackoff, int maxBackoff)
+    {
+        this.baseBackoff = baseBackoff * 1000L;
+        this.maxBackoff = Math.max(this.baseBackoff, maxBackoff * 1000L);
+    }
+
+    /**
+     * Whether the host may be collected now. Once the backoff of an open circuit elapsed,
+     * only one caller gets through as a probe until its outcome is recorded.
+     */
+    public boolean
+    allow(String hostName, long now)
+    {
+        Circuit circuit = circuits.get(hostName);
+        if (circuit == null) {
+            return true;
+        }
+        synchronized (circuit) {
+            switch (circuit.state) {
+            case CLOSED:
+                return true;
+            case OPEN:
+                if (now >= circuit.retryAt) {
+                    circuit.state = State.HALF_OPEN;
+                    Log.info("Probing host " + hostName + " after " + circuit.failures + " failure(s), last: "
+                        + circuit.lastFailure);
+                    return true;
+                }
+                return false;
+            default:
+                // probe in flight
+                return false;
+            }
+        }
+    }
+
+    /**
+     * Record a successful collection, closing the circuit
+     */
+    public void
+    recordSuccess(String hostName)
+    {
+        Circuit circuit = circuits.remove(hostName);
+        if (circuit != null && circuit.state != State.CLOSED) {
+            Log.info("Host " + hostName + " recovered after " + circuit.failures + " failure(s)");
+        }
+    }
+
+    /**
+     * Record a failed collection, opening the circuit for an exponentially growing backoff
+     */
+    public void
+    recordFailure(String hostName, Failure failure, long now)
+    {
+        circuits.putIfAbsent(hostName, new Circuit());
+        Circuit circuit = circuits.get(hostName);
+        synchronized (circuit) {
+            circuit.failures++;
+            circuit.lastFailure = failure;
+            long backoff = baseBackoff << Math.min(circuit.failures - 1, 20);
+            if (failure == Failure.AUTH) {
+                backoff *= AUTH_BACKOFF_FACTOR;
+            }
+            backoff = Math.min(backoff, maxBackoff);
+            circuit.retryAt = now + backoff;
+            circuit.state = State.OPEN;
+            Log.warn("Host " + hostName + " failed (" + failure + "), skipping it for " + (backoff / 1000)
+                + " seconds");
+        }
+    }
+
+    /**
+     * Classify an exception raised while connecting to a host over SSH
+     */
+    static Failure
+    classify(Throwable t)
+    {
+        for (Throwable cause = t; cause != null; cause = cause.getCause()) {
+            if (cause instanceof ConnectException) {
+                return Failure.CONNECT_REFUSED;
+            } else if (cause instanceof SocketTimeoutException) {
+                return Failure.TIMEOUT;
+            } else if (cause instanceof NoRouteToHostException || cause instanceof UnknownHostException) {
+                return Failure.UNREACHABLE;
+            }
+            String msg = cause.getMessage() != null ? cause.getMessage().toLowerCase() : "";
+            if (msg.contains("authentication")) {
+                return Failure.AUTH;
+            } else if (msg.contains("timed out") || msg.contains("timeout")) {
+                return Failure.TIMEOUT;
+            } else if (msg.contains("refused")) {
+                return Failure.CONNECT_REFUSED;
+            }
+        }
+        return Failure.OTHER;
+    }
+}
@@ -0,0 +1,113 @@
+/**
+ * Selects the hosts to collect from, by datacenter, cluster, name pattern and
+ * state. Datacenter and cluster become the roots of the inventory traversal, so
+ * hosts outside of them are never retrieved.
+ *
+ * Copyright (c) 2016
+ *
+ * Permission is hereby granted, free of charge, to any person
+ * obtaining a copy of this software and associated documentation files
+ * (the "Software"), to deal in the Software without restriction,
+ * including without limitation the rights to use, copy, modify, merge,
+ * publish, distribute, sublicense, and/or sell copies of the Software,
+ * and to permit persons to whom the Software is furnished to do so,
+ * subject to the following conditions:
+ *
+ * @author Gururaja Hegdal (ghegdal@vmware.com)
+ * @version 1.0
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES
+ * OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT
+ * HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY,
+ * WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING
+ * FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR
+ * OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+package hostdstat;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.regex.Pattern;
+
+import com.vmware.vim25.HostSystemConnectionState;
+import com.vmware.vim25.mo.InventoryNavigator;
+import com.vmware.vim25.mo.ManagedEntity;
+import com.vmware.vim25.mo.ServiceInstance;
+
+public class HostFilter
+{
+    // null selects all
+    String datacenter;
+    String cluster;
+    Pattern hostPattern;
+
+    boolean skipMaintenance = false;
+    boolean connectedOnly = false;
+
+    /**
+     * Whether host states have to be retrieved along with the host names
+     */
+    public boolean
+    needsState()
+    {
+        return skipMaintenance || connectedOnly;
+    }
+
+    /**
+     * Whether a host with the given name and state is selected. Unknown states are
+     * treated as not connected and not in maintenance.
+     */
+    public boolean
+    matches(String hostName, HostSystemConnectionState connectionState, boolean inMaintenanceMode)
+    {
+        if (hostPattern != null && (hostName == null || !hostPattern.matcher(hostName).find())) {
+            return false;
+        }
+        if (connectedOnly && connectionState != HostSystemConnectionState.connected) {
+            return false;
+        }
+        if (skipMaintenance && inMaintenanceMode) {
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * Traversal roots covering the selected datacenter and cluster: the cluster itself
+     * when one is selected, the datacenters otherwise
+     */
+    public List<HostIterator.TraversalRoot>
+    resolveRoots(ServiceInstance si) throws Exception
+    {
+        List<HostIterator.TraversalRoot> roots = new ArrayList<HostIterator.TraversalRoot>();
+        ManagedEntity[] dcs = new InventoryNavigator(si.getRootFolder()).searchManagedEntities(
+            FetchStats.DC_MOR_TYPE);
+        if (dcs == null) {
+            return roots;
+        }
+        for (ManagedEntity dc : dcs) {
+            if (datacenter != null && !datacenter.equals(dc.getName())) {
+                continue;
+            }
+            if (cluster == null) {
+                roots.add(new HostIterator.TraversalRoot(dc.getMOR(), dc.getName(), null));
+                continue;
+            }
+            ManagedEntity clusterEntity = new InventoryNavigator(dc).searchManagedEntity(
+                FetchStats.CLUSTER_COMPRES_MOR_TYPE, cluster);
+            if (clusterEntity != null) {
+                roots.add(new HostIterator.TraversalRoot(clusterEntity.getMOR(), dc.getName(), cluster));
+            }
+        }
+        if (roots.isEmpty()) {
+            Log.error("No inventory matches datacenter: " + datacenter + ", cluster: " + cluster);
+        }
+        return roots;
+    }
+}
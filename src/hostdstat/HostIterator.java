@@ -0,0 +1,246 @@
+/**
+ * Iterates over the hosts of a vCenter one page at a time, traversal root by
+ * traversal root (datacenter or cluster), using RetrievePropertiesEx paging. Only
+ * the current page is held in memory, whatever the size of the inventory.
+ *
+ * Copyright (c) 2016
+ *
+ * Permission is hereby granted, free of charge, to any person
+ * obtaining a copy of this software and associated documentation files
+ * (the "Software"), to deal in the Software without restriction,
+ * including without limitation the rights to use, copy, modify, merge,
+ * publish, distribute, sublicense, and/or sell copies of the Software,
+ * and to permit persons to whom the Software is furnished to do so,
+ * subject to the following conditions:
+ *
+ * @author Gururaja Hegdal (ghegdal@vmware.com)
+ * @version 1.0
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES
+ * OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT
+ * HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY,
+ * WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING
+ * FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR
+ * OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+package hostdstat;
+
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+
+import com.vmware.vim25.DynamicProperty;
+import com.vmware.vim25.HostSystemConnectionState;
+import com.vmware.vim25.ManagedObjectReference;
+import com.vmware.vim25.ObjectContent;
+import com.vmware.vim25.ObjectSpec;
+import com.vmware.vim25.PropertyFilterSpec;
+import com.vmware.vim25.PropertySpec;
+import com.vmware.vim25.RetrieveOptions;
+import com.vmware.vim25.RetrieveResult;
+import com.vmware.vim25.mo.PropertyCollector;
+import com.vmware.vim25.mo.ServiceInstance;
+
+public class HostIterator implements Iterator<HostRef>
+{
+    public static final int DEFAULT_PAGE_SIZE = 100;
+
+    private static final String PROP_NAME = "name";
+    private static final String PROP_PARENT = "parent";
+
+    private final ServiceInstance si;
+    private final int pageSize;
+    private final HostFilter filter;
+    private final LinkedList<TraversalRoot> pendingRoots = new LinkedList<TraversalRoot>();
+    private final LinkedList<HostRef> page = new LinkedList<HostRef>();
+    private TraversalRoot currRoot;
+    private String token;
+    private Map<String, String> clusterNames;
+
+    /**
+     * Inventory object to start the host traversal from, with the datacenter it belongs to,
+     * and the cluster when the root is a cluster
+     */
+    public static class TraversalRoot
+    {
+        final ManagedObjectReference mor;
+        final String datacenter;
+        final String cluster;
+
+        public TraversalRoot(ManagedObjectReference mor, String datacenter, String cluster)
+        {
+            this.mor = mor;
+            this.datacenter = datacenter;
+            this.cluster = cluster;
+        }
+    }
+
+    /**
+     * Iterate over the hosts below the given roots, selected by the filter
+     */
+    public HostIterator(ServiceInstance si, int pageSize, List<TraversalRoot> roots, HostFilter filter)
+    {
+        this.si = si;
+        this.pageSize = pageSize > 0 ? pageSize : DEFAULT_PAGE_SIZE;
+        this.pendingRoots.addAll(roots);
+        this.filter = filter;
+    }
+
+    @Override
+    public boolean
+    hasNext()
+    {
+        while (page.isEmpty()) {
+            try {
+                if (token != null) {
+                    RetrieveResult result = getCollector().continueRetrievePropertiesEx(token);
+                    addPage(result);
+                } else if (!pendingRoots.isEmpty()) {
+                    currRoot = pendingRoots.removeFirst();
+                    clusterNames = currRoot.cluster == null ? retrieveClusterNames(currRoot)
+                        : new HashMap<String, String>();
+                    // host states come in the same pages, when the filter needs them
+                    String[] props = filter.needsState() ? new String[] { PROP_NAME, PROP_PARENT,
+                        InventoryCache.PROP_CONNECTION_STATE, InventoryCache.PROP_MAINTENANCE_MODE }
+                        : new String[] { PROP_NAME, PROP_PARENT };
+                    RetrieveResult result = getCollector().retrievePropertiesEx(
+                        new PropertyFilterSpec[] { buildFilterSpec(currRoot, FetchStats.HOST_MOR_TYPE, props) },
+                        retrieveOptions());
+                    addPage(result);
+                } else {
+                    return false;
+                }
+            } catch (Exception e) {
+                Log.error("Caught exception while paging hosts of datacenter: "
+                    + (currRoot != null ? currRoot.datacenter : null), e);
+                token = null;
+            }
+        }
+        return true;
+    }
+
+    @Override
+    public HostRef
+    next()
+    {
+        if (!hasNext()) {
+            throw new NoSuchElementException();
+        }
+        return page.removeFirst();
+    }
+
+    @Override
+    public void
+    remove()
+    {
+        throw new UnsupportedOperationException();
+    }
+
+    /**
+     * Turn one page of results into references of the selected hosts
+     */
+    private void
+    addPage(RetrieveResult result)
+    {
+        token = null;
+        if (result == null) {
+            return;
+        }
+        token = result.getToken();
+        if (result.getObjects() == null) {
+            return;
+        }
+        for (ObjectContent oc : result.getObjects()) {
+            String name = null;
+            String cluster = currRoot.cluster;
+            HostSystemConnectionState connectionState = null;
+            boolean inMaintenanceMode = false;
+            if (oc.getPropSet() != null) {
+                for (DynamicProperty prop : oc.getPropSet()) {
+                    if (PROP_NAME.equals(prop.getName())) {
+                        name = (String) prop.getVal();
+                    } else if (PROP_PARENT.equals(prop.getName()) && cluster == null) {
+                        ManagedObjectReference parent = (ManagedObjectReference) prop.getVal();
+                        cluster = parent != null ? clusterNames.get(parent.getVal()) : null;
+                    } else if (InventoryCache.PROP_CONNECTION_STATE.equals(prop.getName())) {
+                        connectionState = (HostSystemConnectionState) prop.getVal();
+                    } else if (InventoryCache.PROP_MAINTENANCE_MODE.equals(prop.getName())) {
+                        inMaintenanceMode = Boolean.TRUE.equals(prop.getVal());
+                    }
+                }
+            }
+            if (!filter.matches(name, connectionState, inMaintenanceMode)) {
+                continue;
+            }
+            page.add(new HostRef(oc.getObj(), name, currRoot.datacenter, cluster));
+        }
+    }
+
+    /**
+     * Names of the clusters below the root, by managed object id
+     */
+    private Map<String, String>
+    retrieveClusterNames(TraversalRoot root) throws Exception
+    {
+        Map<String, String> names = new HashMap<String, String>();
+        PropertyFilterSpec[] specs = new PropertyFilterSpec[] { buildFilterSpec(root,
+            FetchStats.CLUSTER_COMPRES_MOR_TYPE, new String[] { PROP_NAME }) };
+        RetrieveResult result = getCollector().retrievePropertiesEx(specs, retrieveOptions());
+        while (result != null) {
+            if (result.getObjects() != null) {
+                for (ObjectContent oc : result.getObjects()) {
+                    if (oc.getPropSet() != null && oc.getPropSet().length > 0) {
+                        names.put(oc.getObj().getVal(), (String) oc.getPropSet()[0].getVal());
+                    }
+                }
+            }
+            result = result.getToken() != null ? getCollector().continueRetrievePropertiesEx(result.getToken())
+                : null;
+        }
+        return names;
+    }
+
+    /**
+     * Filter spec, selecting objects of the given type below the root
+     */
+    static PropertyFilterSpec
+    buildFilterSpec(TraversalRoot root, String type, String[] props)
+    {
+        PropertySpec propSpec = new PropertySpec();
+        propSpec.setType(type);
+        propSpec.setPathSet(props);
+
+        ObjectSpec rootSpec = new ObjectSpec();
+        rootSpec.setObj(root.mor);
+        rootSpec.setSkip(Boolean.TRUE);
+        rootSpec.setSelectSet(InventoryCache.buildHostTraversal());
+
+        PropertyFilterSpec filterSpec = new PropertyFilterSpec();
+        filterSpec.setPropSet(new PropertySpec[] { propSpec });
+        filterSpec.setObjectSet(new ObjectSpec[] { rootSpec });
+        return filterSpec;
+    }
+
+    private RetrieveOptions
+    retrieveOptions()
+    {
+        RetrieveOptions options = new RetrieveOptions();
+        options.setMaxObjects(pageSize);
+        return options;
+    }
+
+    private PropertyCollector
+    getCollector()
+    {
+        return si.getPropertyCollector();
+    }
+}
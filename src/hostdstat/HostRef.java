@@ -0,0 +1,83 @@
+/**
+ * Lightweight reference to a host, with its placement in the inventory. Managed
+ * objects are only created when the host actually gets collected.
+ *
+ * Copyright (c) 2016
+ *
+ * Permission is hereby granted, free of charge, to any person
+ * obtaining a copy of this software and associated documentation files
+ * (the "Software"), to deal in the Software without restriction,
+ * including without limitation the rights to use, copy, modify, merge,
+ * publish, distribute, sublicense, and/or sell copies of the Software,
+ * and to permit persons to whom the Software is furnished to do so,
+ * subject to the following conditions:
+ *
+ * @author Gururaja Hegdal (ghegdal@vmware.com)
+ * @version 1.0
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES
+ * OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT
+ * HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY,
+ * WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING
+ * FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR
+ * OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+package hostdstat;
+
+import com.vmware.vim25.ManagedObjectReference;
+import com.vmware.vim25.mo.HostSystem;
+import com.vmware.vim25.mo.ServerConnection;
+
+public class HostRef
+{
+    final ManagedObjectReference mor;
+    final String name;
+    final String datacenter;
+
+    // null for standalone hosts
+    final String cluster;
+
+    /**
+     * Constructor
+     */
+    public HostRef(ManagedObjectReference mor, String name, String datacenter, String cluster)
+    {
+        this.mor = mor;
+        this.name = name;
+        this.datacenter = datacenter;
+        this.cluster = cluster;
+    }
+
+    public String
+    getName()
+    {
+        return name;
+    }
+
+    public String
+    getDatacenter()
+    {
+        return datacenter;
+    }
+
+    public String
+    getCluster()
+    {
+        return cluster;
+    }
+
+    /**
+     * Managed object of this host
+     */
+    public HostSystem
+    toHostSystem(ServerConnection conn)
+    {
+        return new HostSystem(conn, mor);
+    }
+}
@@ -0,0 +1,92 @@
+/**
+ * Single pass scanner of /etc/vmware/hostd/config.xml, collecting the text of every
+ * leaf element by element name, without building a document
+ *
+ * Copyright (c) 2016
+ *
+ * Permission is hereby granted, free of charge, to any person
+ * obtaining a copy of this software and associated documentation files
+ * (the "Software"), to deal in the Software without restriction,
+ * including without limitation the rights to use, copy, modify, merge,
+ * publish, distribute, sublicense, and/or sell copies of the Software,
+ * and to permit persons to whom the Software is furnished to do so,
+ * subject to the following conditions:
+ *
+ * @author Gururaja Hegdal (ghegdal@vmware.com)
+ * @version 1.0
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES
+ * OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT
+ * HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY,
+ * WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING
+ * FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR
+ * OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+package hostdstat;
+
+import java.util.HashMap;
+import java.util.Map;
+
+public class HostdConfigParser
+{
+    public static final String TASK_MAX = "TaskMax";
+    public static final String HOSTD_MIN_FDS = "hostdMinFds";
+
+    /**
+     * Text of every leaf element, by element name. The first occurrence of a name wins.
+     */
+    public static Map<String, String>
+    parse(String xml)
+    {
+        Map<String, String> values = new HashMap<String, String>();
+        String openName = null;
+        int textStart = -1;
+        int len = xml.length();
+        int pos = 0;
+
+        while (pos < len) {
+            int lt = xml.indexOf('<', pos);
+            if (lt < 0 || lt + 1 >= len) {
+                break;
+            }
+            char next = xml.charAt(lt + 1);
+            if (xml.startsWith("<!--", lt)) {
+                int endComment = xml.indexOf("-->", lt + 4);
+                pos = endComment < 0 ? len : endComment + 3;
+                continue;
+            }
+            int gt = xml.indexOf('>', lt);
+            if (gt < 0) {
+                break;
+            }
+
+            if (next == '?' || next == '!') {
+                // declaration, doctype
+            } else if (next == '/') {
+                String name = xml.substring(lt + 2, gt).trim();
+                if (openName != null && name.equals(openName) && !values.containsKey(name)) {
+                    values.put(name, xml.substring(textStart, lt).trim());
+                }
+                openName = null;
+            } else if (xml.charAt(gt - 1) == '/') {
+                // empty element
+                openName = null;
+            } else {
+                int nameEnd = lt + 1;
+                while (nameEnd < gt && !Character.isWhitespace(xml.charAt(nameEnd))) {
+                    nameEnd++;
+                }
+                openName = xml.substring(lt + 1, nameEnd);
+                textStart = gt + 1;
+            }
+            pos = gt + 1;
+        }
+        return values;
+    }
+}
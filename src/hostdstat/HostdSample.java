@@ -0,0 +1,271 @@
+/**
+ * Holds the hostd MEM, Threads, FD, Responsiveness stats collected from one ESXi host
+ *
+ * Copyright (c) 2016
+ *
+ * Permission is hereby granted, free of charge, to any person
+ * obtaining a copy of this software and associated documentation files
+ * (the "Software"), to deal in the Software without restriction,
+ * including without limitation the rights to use, copy, modify, merge,
+ * publish, distribute, sublicense, and/or sell copies of the Software,
+ * and to permit persons to whom the Software is furnished to do so,
+ * subject to the following conditions:
+ *
+ * @author Gururaja Hegdal (ghegdal@vmware.com)
+ * @version 1.0
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES
+ * OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT
+ * HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY,
+ * WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING
+ * FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR
+ * OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+package hostdstat;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+public class HostdSample
+{
+    public static final String ALERT_RED = "RED";
+    public static final String ALERT_WARNING = "WARNING";
+    public static final String ALERT_GREEN = "GREEN";
+
+    final String vsphereIp;
+    final String hostName;
+    final long timestamp;
+
+    // placement of the host, null when unknown or standalone
+    String datacenter;
+    String cluster;
+
+    // Raw values, as retrieved by the resource checkers
+    String hostdMemUsage;
+    String hostdMemLimit;
+    String fdUsage;
+    String fdLimit;
+    String threadUsage;
+    String threadLimit;
+    // null when responsiveness was not probed, ex: API only collection
+    Boolean hostdResponsive;
+    boolean memAtLimit = false;
+
+    // why the host could not be collected, null when it was
+    HostCircuitBreaker.Failure failure;
+
+    // Values of probes other than the built-in ones, by name
+    final Map<String, String> probeValues = new LinkedHashMap<String, String>();
+
+    // Evaluated thresholds and alerts
+    Float memThreshold;
+    Float threadThreshold;
+    Float fdThreshold;
+    String MEM_ALERT;
+    String THREAD_ALERT;
+    String FD_ALERT;
+    String RESPONSE_ALERT;
+
+    /**
+     * Constructor
+     */
+    public HostdSample(String vsphereIp, String hostName)
+    {
+        this(vsphereIp, hostName, System.currentTimeMillis());
+    }
+
+    /**
+     * Constructor, for samples taken at the given time
+     */
+    public HostdSample(String vsphereIp, String hostName, long timestamp)
+    {
+        this.vsphereIp = vsphereIp;
+        this.hostName = hostName;
+        this.timestamp = timestamp;
+    }
+
+    public String
+    getVsphereIp()
+    {
+        return vsphereIp;
+    }
+
+    public String
+    getHostName()
+    {
+        return hostName;
+    }
+
+    public long
+    getTimestamp()
+    {
+        return timestamp;
+    }
+
+    public String
+    getDatacenter()
+    {
+        return datacenter;
+    }
+
+    public String
+    getCluster()
+    {
+        return cluster;
+    }
+
+    /**
+     * Record a value collected by a probe that has no field of its own
+     */
+    public void
+    putProbeValue(String name, String value)
+    {
+        probeValues.put(name, value);
+    }
+
+    /**
+     * Record where the host sits in the inventory
+     */
+    void
+    setPlacement(HostRef ref)
+    {
+        datacenter = ref.datacenter;
+        cluster = ref.cluster;
+    }
+
+    /**
+     * Compute usage thresholds and alert levels from the collected raw values
+     */
+    public void
+    evaluate()
+    {
+        try {
+            if (hostdMemUsage != null && hostdMemLimit != null) {
+                memThreshold = (Float.parseFloat(hostdMemUsage) / Float.parseFloat(hostdMemLimit)) * 100;
+                MEM_ALERT = alertLevel(memThreshold);
+            }
+        } catch (Exception e) {
+            Log.error("Caught exception while evaluating Memory stats of host: " + hostName);
+        }
+
+        try {
+            if (threadLimit != null && threadUsage != null) {
+                //Thread usage can be empty
+                if (threadUsage.equals("")) {
+                    threadUsage = "0";
+                }
+                threadThreshold = (Float.parseFloat(threadUsage) / Float.parseFloat(threadLimit)) * 100;
+                THREAD_ALERT = alertLevel(threadThreshold);
+            }
+        } catch (Exception e) {
+            Log.error("Caught exception while evaluating Thread stats of host: " + hostName);
+        }
+
+        try {
+            if (fdLimit != null && fdUsage != null) {
+                fdThreshold = (Float.parseFloat(fdUsage) / Float.parseFloat(fdLimit)) * 100;
+                FD_ALERT = alertLevel(fdThreshold);
+            }
+        } catch (Exception e) {
+            Log.error("Caught exception while evaluating FD stats of host: " + hostName);
+        }
+    }
+
+    /**
+     * Map a usage percentage onto an alert level
+     */
+    static String
+    alertLevel(float threshold)
+    {
+        if (threshold >= 95) {
+            return ALERT_RED;
+        } else if (threshold >= 85) {
+            return ALERT_WARNING;
+        }
+        return ALERT_GREEN;
+    }
+
+    /**
+     * Build the STATS report block of this host, so that parallel workers print it in one piece
+     */
+    public String
+    formatReport()
+    {
+        StringBuilder sb = new StringBuilder();
+        sb.append("\n^^^^^^^^^^^^^^^^^   S T A T S   ^^^^^^^^^^^^^^^^^");
+        sb.append("\n* HOST: ").append(hostName).append(" (vSphere: ").append(vsphereIp);
+        if (datacenter != null) {
+            sb.append(", datacenter: ").append(datacenter);
+        }
+        if (cluster != null) {
+            sb.append(", cluster: ").append(cluster);
+        }
+        sb.append(")");
+        if (memThreshold != null) {
+            sb.append("\n* MEMORY:");
+            sb.append("\n--- Usage:").append(hostdMemUsage).append(" MB, Limit:").append(hostdMemLimit).append(" MB");
+            sb.append("\n--- Threshold: ").append(memThreshold).append("%, ALERT:").append(MEM_ALERT);
+        }
+        if (threadThreshold != null) {
+            sb.append("\n* THREAD:");
+            sb.append("\n--- Usage:").append(threadUsage).append(", Limit:").append(threadLimit);
+            sb.append("\n--- Threshold: ").append(threadThreshold).append("%, ALERT:").append(THREAD_ALERT);
+        }
+        if (fdThreshold != null) {
+            sb.append("\n* FD:");
+            sb.append("\n--- Usage:").append(fdUsage).append(", Limit:").append(fdLimit);
+            sb.append("\n--- Threshold: ").append(fdThreshold).append("%, ALERT:").append(FD_ALERT);
+        }
+        for (Map.Entry<String, String> probeValue : probeValues.entrySet()) {
+            sb.append("\n* ").append(probeValue.getKey().toUpperCase()).append(": ").append(probeValue.getValue());
+        }
+        if (failure != null) {
+            sb.append("\n* FAILED: ").append(failure);
+        }
+        sb.append("\n* RESPONSIVENESS:");
+        sb.append("\n--- Hostd responsive:").append(formatResponsive()).append(", RESPONSE ALERT:").append(RESPONSE_ALERT);
+        return sb.toString();
+    }
+
+    /**
+     * Single line summary of this sample, for high volume output
+     */
+    public String
+    formatCompact()
+    {
+        StringBuilder sb = new StringBuilder();
+        sb.append(timestamp / 1000).append(' ').append(hostName);
+        if (memThreshold != null) {
+            sb.append(" mem=").append(hostdMemUsage).append('/').append(hostdMemLimit).append("MB(")
+                .append(String.format("%.1f", memThreshold)).append("%,").append(MEM_ALERT).append(')');
+        }
+        if (threadThreshold != null) {
+            sb.append(" thread=").append(threadUsage).append('/').append(threadLimit).append('(')
+                .append(String.format("%.1f", threadThreshold)).append("%,").append(THREAD_ALERT).append(')');
+        }
+        if (fdThreshold != null) {
+            sb.append(" fd=").append(fdUsage).append('/').append(fdLimit).append('(')
+                .append(String.format("%.1f", fdThreshold)).append("%,").append(FD_ALERT).append(')');
+        }
+        for (Map.Entry<String, String> probeValue : probeValues.entrySet()) {
+            sb.append(' ').append(probeValue.getKey()).append('=').append(probeValue.getValue());
+        }
+        if (failure != null) {
+            sb.append(" failed=").append(failure);
+        }
+        sb.append(" responsive=").append(formatResponsive());
+        return sb.toString();
+    }
+
+    private String
+    formatResponsive()
+    {
+        return hostdResponsive != null ? hostdResponsive.toString() : "unknown";
+    }
+}
@@ -0,0 +1,430 @@
+/**
+ * In-memory map of the hosts of a vCenter, kept up to date with PropertyCollector
+ * WaitForUpdatesEx, so that long running collection does not re-read the inventory
+ * on every cycle
+ *
+ * Copyright (c) 2016
+ *
+ * Permission is hereby granted, free of charge, to any person
+ * obtaining a copy of this software and associated documentation files
+ * (the "Software"), to deal in the Software without restriction,
+ * including without limitation the rights to use, copy, modify, merge,
+ * publish, distribute, sublicense, and/or sell copies of the Software,
+ * and to permit persons to whom the Software is furnished to do so,
+ * subject to the following conditions:
+ *
+ * @author Gururaja Hegdal (ghegdal@vmware.com)
+ * @version 1.0
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES
+ * OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT
+ * HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY,
+ * WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING
+ * FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR
+ * OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+package hostdstat;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import com.vmware.vim25.HostService;
+import com.vmware.vim25.HostServiceInfo;
+import com.vmware.vim25.HostSystemConnectionState;
+import com.vmware.vim25.ManagedObjectReference;
+import com.vmware.vim25.ObjectSpec;
+import com.vmware.vim25.ObjectUpdate;
+import com.vmware.vim25.ObjectUpdateKind;
+import com.vmware.vim25.PropertyChange;
+import com.vmware.vim25.PropertyChangeOp;
+import com.vmware.vim25.PropertyFilterSpec;
+import com.vmware.vim25.PropertyFilterUpdate;
+import com.vmware.vim25.PropertySpec;
+import com.vmware.vim25.SelectionSpec;
+import com.vmware.vim25.TraversalSpec;
+import com.vmware.vim25.UpdateSet;
+import com.vmware.vim25.WaitOptions;
+import com.vmware.vim25.mo.ClusterComputeResource;
+import com.vmware.vim25.mo.Datacenter;
+import com.vmware.vim25.mo.HostSystem;
+import com.vmware.vim25.mo.ManagedEntity;
+import com.vmware.vim25.mo.PropertyCollector;
+import com.vmware.vim25.mo.ServiceInstance;
+
+public class InventoryCache implements Runnable
+{
+    // long poll timeout, vCenter returns earlier as soon as something changed
+    public static final int UPDATE_WAIT_SECONDS = 30;
+    public static final int RETRY_DELAY_SECONDS = 5;
+
+    public static final String PROP_NAME = "name";
+    public static final String PROP_CONNECTION_STATE = "runtime.connectionState";
+    public static final String PROP_MAINTENANCE_MODE = "runtime.inMaintenanceMode";
+    public static final String PROP_SERVICES = "config.service";
+    public static final String SSH_SERVICE = "TSM-SSH";
+
+    private final ServiceInstance si;
+    private final List<HostIterator.TraversalRoot> roots;
+    private final HostFilter filter;
+    private final Map<String, CachedHost> hosts = new ConcurrentHashMap<String, CachedHost>();
+    private PropertyCollector collector;
+    private String version = "";
+    private volatile boolean running = false;
+    private Thread updater;
+
+    /**
+     * Last known state of one host
+     */
+    private static class CachedHost
+    {
+        final ManagedObjectReference mor;
+        volatile String name;
+        volatile HostSystemConnectionState connectionState;
+        volatile boolean inMaintenanceMode;
+
+        // state of the SSH service, null when unknown
+        volatile Boolean sshRunning;
+
+        // placement, resolved once per host
+        volatile String datacenter;
+        volatile String cluster;
+        volatile boolean placed;
+
+        CachedHost(ManagedObjectReference mor)
+        {
+            this.mor = mor;
+        }
+    }
+
+    /**
+     * Constructor, tracking the hosts below the given roots that are selected by the filter
+     */
+    public InventoryCache(ServiceInstance si, List<HostIterator.TraversalRoot> roots, HostFilter filter)
+    {
+        this.si = si;
+        this.roots = roots;
+        this.filter = filter;
+    }
+
+    /**
+     * Load the full host map, then keep applying deltas from a background thread
+     */
+    public synchronized void
+    start() throws Exception
+    {
+        if (running) {
+            return;
+        }
+
+        // own collector, so our filter and version do not clash with other users of the session
+        collector = si.getPropertyCollector().createPropertyCollector();
+        collector.createFilter(buildFilterSpec(), true);
+
+        // initial version "" returns every host as an 'enter' update
+        UpdateSet updates;
+        do {
+            updates = collector.waitForUpdatesEx(version, waitOptions(0));
+            applyUpdates(updates);
+        } while (updates != null && Boolean.TRUE.equals(updates.getTruncated()));
+        Log.info("Inventory cache loaded " + hosts.size() + " hosts");
+        loadPlacement();
+
+        running = true;
+        updater = new Thread(this, "inventory-cache-" + si.getServerConnection().getUrl().getHost());
+        updater.setDaemon(true);
+        updater.start();
+    }
+
+    /**
+     * Stop the background updates and release the server side collector
+     */
+    public synchronized void
+    stop()
+    {
+        running = false;
+        try {
+            if (collector != null) {
+                collector.cancelWaitForUpdates();
+                collector.destroyPropertyCollector();
+            }
+        } catch (Exception e) {
+            Log.error("Caught exception while destroying inventory cache property collector");
+        }
+    }
+
+    /**
+     * Background loop, long polling for inventory changes
+     */
+    @Override
+    public void
+    run()
+    {
+        while (running) {
+            try {
+                UpdateSet updates = collector.waitForUpdatesEx(version, waitOptions(UPDATE_WAIT_SECONDS));
+                applyUpdates(updates);
+            } catch (Exception e) {
+                if (!running) {
+                    break;
+                }
+                Log.error("Caught exception while waiting for inventory updates, retrying");
+                try {
+                    Thread.sleep(RETRY_DELAY_SECONDS * 1000);
+                } catch (InterruptedException ie) {
+                    break;
+                }
+            }
+        }
+    }
+
+    /**
+     * Current hosts selected by the filter, as references carrying their datacenter and cluster
+     */
+    public List<HostRef>
+    getHostRefs()
+    {
+        List<HostRef> refs = new ArrayList<HostRef>();
+        for (CachedHost cachedHost : hosts.values()) {
+            if (!filter.matches(cachedHost.name, cachedHost.connectionState, cachedHost.inMaintenanceMode)) {
+                continue;
+            }
+            if (!cachedHost.placed) {
+                resolvePlacement(cachedHost);
+            }
+            refs.add(new HostRef(cachedHost.mor, cachedHost.name, cachedHost.datacenter, cachedHost.cluster));
+        }
+        return refs;
+    }
+
+    /**
+     * Last known state of the SSH service of the host, null when unknown
+     */
+    public Boolean
+    isSshRunning(ManagedObjectReference mor)
+    {
+        CachedHost cachedHost = hosts.get(mor.getVal());
+        return cachedHost != null ? cachedHost.sshRunning : null;
+    }
+
+    /**
+     * Record an SSH service state change made by this process, so that it is known before
+     * the update from vCenter comes in
+     */
+    public void
+    setSshRunning(ManagedObjectReference mor, boolean running)
+    {
+        CachedHost cachedHost = hosts.get(mor.getVal());
+        if (cachedHost != null) {
+            cachedHost.sshRunning = running;
+        }
+    }
+
+    /**
+     * Place all hosts of the initial load with one paged pass over the datacenters
+     */
+    private void
+    loadPlacement()
+    {
+        try {
+            HostIterator iter = new HostIterator(si, HostIterator.DEFAULT_PAGE_SIZE, roots, new HostFilter());
+            while (iter.hasNext()) {
+                HostRef ref = iter.next();
+                CachedHost cachedHost = hosts.get(ref.mor.getVal());
+                if (cachedHost != null) {
+                    cachedHost.datacenter = ref.datacenter;
+                    cachedHost.cluster = ref.cluster;
+                    cachedHost.placed = true;
+                }
+            }
+        } catch (Exception e) {
+            Log.error("Caught exception while loading host placement, resolving it per host");
+        }
+    }
+
+    /**
+     * Place a host that entered the inventory later, by walking up its parents
+     */
+    private void
+    resolvePlacement(CachedHost cachedHost)
+    {
+        try {
+            ManagedEntity entity = new HostSystem(si.getServerConnection(), cachedHost.mor).getParent();
+            while (entity != null) {
+                if (entity instanceof ClusterComputeResource) {
+                    cachedHost.cluster = entity.getName();
+                } else if (entity instanceof Datacenter) {
+                    cachedHost.datacenter = entity.getName();
+                    break;
+                }
+                entity = entity.getParent();
+            }
+        } catch (Exception e) {
+            Log.error("Caught exception while resolving placement of host: " + cachedHost.name);
+        }
+        cachedHost.placed = true;
+    }
+
+    /**
+     * Apply one batch of deltas onto the host map
+     */
+    private void
+    applyUpdates(UpdateSet updates)
+    {
+        if (updates == null) {
+            // wait timed out without any change
+            return;
+        }
+        version = updates.getVersion();
+        if (updates.getFilterSet() == null) {
+            return;
+        }
+
+        for (PropertyFilterUpdate filterUpdate : updates.getFilterSet()) {
+            if (filterUpdate.getObjectSet() == null) {
+                continue;
+            }
+            for (ObjectUpdate objUpdate : filterUpdate.getObjectSet()) {
+                ManagedObjectReference mor = objUpdate.getObj();
+                if (!FetchStats.HOST_MOR_TYPE.equals(mor.getType())) {
+                    continue;
+                }
+
+                if (objUpdate.getKind() == ObjectUpdateKind.leave) {
+                    CachedHost removed = hosts.remove(mor.getVal());
+                    if (removed != null) {
+                        Log.info("Host removed from inventory: " + removed.name);
+                    }
+                    continue;
+                }
+
+                CachedHost cachedHost = hosts.get(mor.getVal());
+                if (cachedHost == null) {
+                    cachedHost = new CachedHost(mor);
+                }
+                if (objUpdate.getChangeSet() != null) {
+                    for (PropertyChange change : objUpdate.getChangeSet()) {
+                        applyChange(cachedHost, change);
+                    }
+                }
+                // hosts entering after the initial load are new to the inventory
+                if (objUpdate.getKind() == ObjectUpdateKind.enter && hosts.put(mor.getVal(), cachedHost) == null
+                    && running) {
+                    Log.info("Host added to inventory: " + cachedHost.name);
+                }
+            }
+        }
+    }
+
+    /**
+     * Apply one property change onto the cached host
+     */
+    private void
+    applyChange(CachedHost cachedHost, PropertyChange change)
+    {
+        Object val = change.getOp() == PropertyChangeOp.remove ? null : change.getVal();
+        String prop = change.getName();
+
+        if (PROP_NAME.equals(prop)) {
+            cachedHost.name = (String) val;
+        } else if (PROP_CONNECTION_STATE.equals(prop)) {
+            HostSystemConnectionState prevState = cachedHost.connectionState;
+            cachedHost.connectionState = (HostSystemConnectionState) val;
+            if (prevState != null && prevState != val) {
+                Log.info("Host " + cachedHost.name + " connection state changed to: " + val);
+            }
+        } else if (PROP_MAINTENANCE_MODE.equals(prop)) {
+            cachedHost.inMaintenanceMode = val != null && (Boolean) val;
+        } else if (PROP_SERVICES.equals(prop)) {
+            Boolean sshRunning = null;
+            if (val instanceof HostServiceInfo && ((HostServiceInfo) val).getService() != null) {
+                for (HostService service : ((HostServiceInfo) val).getService()) {
+                    if (SSH_SERVICE.equalsIgnoreCase(service.getKey())) {
+                        sshRunning = service.isRunning();
+                    }
+                }
+            }
+            cachedHost.sshRunning = sshRunning;
+        }
+    }
+
+    /**
+     * WaitForUpdatesEx options
+     */
+    private static WaitOptions
+    waitOptions(int maxWaitSeconds)
+    {
+        WaitOptions options = new WaitOptions();
+        options.setMaxWaitSeconds(maxWaitSeconds);
+        return options;
+    }
+
+    /**
+     * Filter spec selecting all hosts below the traversal roots
+     */
+    private PropertyFilterSpec
+    buildFilterSpec()
+    {
+        PropertySpec hostProps = new PropertySpec();
+        hostProps.setType(FetchStats.HOST_MOR_TYPE);
+        hostProps.setPathSet(new String[] { PROP_NAME, PROP_CONNECTION_STATE, PROP_MAINTENANCE_MODE,
+            PROP_SERVICES });
+
+        ObjectSpec[] rootSpecs = new ObjectSpec[roots.size()];
+        for (int i = 0; i < rootSpecs.length; i++) {
+            rootSpecs[i] = new ObjectSpec();
+            rootSpecs[i].setObj(roots.get(i).mor);
+            rootSpecs[i].setSkip(Boolean.TRUE);
+            rootSpecs[i].setSelectSet(buildHostTraversal());
+        }
+
+        PropertyFilterSpec filterSpec = new PropertyFilterSpec();
+        filterSpec.setPropSet(new PropertySpec[] { hostProps });
+        filterSpec.setObjectSet(rootSpecs);
+        return filterSpec;
+    }
+
+    /**
+     * Traversal from a folder, datacenter or compute resource down to the HostSystem objects
+     */
+    static SelectionSpec[]
+    buildHostTraversal()
+    {
+        SelectionSpec folderRecurse = new SelectionSpec();
+        folderRecurse.setName("folderTraversal");
+
+        TraversalSpec dcToHostFolder = new TraversalSpec();
+        dcToHostFolder.setName("dcToHostFolder");
+        dcToHostFolder.setType(FetchStats.DC_MOR_TYPE);
+        dcToHostFolder.setPath("hostFolder");
+        dcToHostFolder.setSkip(Boolean.FALSE);
+        dcToHostFolder.setSelectSet(new SelectionSpec[] { folderRecurse });
+
+        TraversalSpec crToHost = new TraversalSpec();
+        crToHost.setName("crToHost");
+        crToHost.setType("ComputeResource");
+        crToHost.setPath("host");
+        crToHost.setSkip(Boolean.FALSE);
+
+        SelectionSpec dcRecurse = new SelectionSpec();
+        dcRecurse.setName("dcToHostFolder");
+        SelectionSpec crRecurse = new SelectionSpec();
+        crRecurse.setName("crToHost");
+
+        TraversalSpec folderTraversal = new TraversalSpec();
+        folderTraversal.setName("folderTraversal");
+        folderTraversal.setType("Folder");
+        folderTraversal.setPath("childEntity");
+        folderTraversal.setSkip(Boolean.FALSE);
+        folderTraversal.setSelectSet(new SelectionSpec[] { folderRecurse, dcRecurse, crRecurse });
+
+        return new SelectionSpec[] { folderTraversal, dcToHostFolder, crToHost };
+    }
+}
@@ -0,0 +1,368 @@
+/**
+ * Append-only journal of tab separated records. Records are written and fsynced in
+ * batches by a background thread; the ones that must survive a crash before the caller
+ * goes on wait for the next batch sync.
+ *
+ * Copyright (c) 2016
+ *
+ * Permission is hereby granted, free of charge, to any person
+ * obtaining a copy of this software and associated documentation files
+ * (the "Software"), to deal in the Software without restriction,
+ * including without limitation the rights to use, copy, modify, merge,
+ * publish, distribute, sublicense, and/or sell copies of the Software,
+ * and to permit persons to whom the Software is furnished to do so,
+ * subject to the following conditions:
+ *
+ * @author Gururaja Hegdal (ghegdal@vmware.com)
+ * @version 1.0
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES
+ * OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT
+ * HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY,
+ * WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING
+ * FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR
+ * OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+package hostdstat;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+
+public class Journal implements Runnable
+{
+    public static final long DEFAULT_SYNC_INTERVAL_MS = 200;
+
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    private final File file;
+    private final long syncIntervalMs;
+
+    // held while writing to the file, so that appenders never wait on a sync
+    private final Object writeLock = new Object();
+    private FileChannel channel;
+
+    // records appended and not written yet, and sequence numbers of the last appended and synced record
+    private StringBuilder pending = new StringBuilder();
+    private long appendedSeq;
+    private long syncedSeq;
+
+    // records of the last batch that could not be written
+    private long failedFrom;
+    private long failedTo;
+    private boolean syncRequested;
+    private long records;
+    private Thread syncer;
+
+    /**
+     * Constructor. A record torn by a crash at the end of the file is dropped.
+     */
+    public Journal(File file, long syncIntervalMs) throws IOException
+    {
+        this.file = file;
+        this.syncIntervalMs = syncIntervalMs;
+        File dir = file.getAbsoluteFile().getParentFile();
+        if (dir != null) {
+            Files.createDirectories(dir.toPath());
+        }
+        open();
+    }
+
+    /**
+     * Read every complete record of a journal file, empty if there is none
+     */
+    public static List<String[]>
+    read(File file) throws IOException
+    {
+        List<String[]> records = new ArrayList<String[]>();
+        if (!file.isFile()) {
+            return records;
+        }
+        BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(file), UTF8));
+        try {
+            StringBuilder line = new StringBuilder();
+            int c;
+            while ((c = reader.read()) >= 0) {
+                if (c == '\n') {
+                    if (line.length() > 0) {
+                        records.add(line.toString().split("\t", -1));
+                    }
+                    line.setLength(0);
+                } else {
+                    line.append((char) c);
+                }
+            }
+        } finally {
+            reader.close();
+        }
+        return records;
+    }
+
+    /**
+     * Append a record, synced to disk within the sync interval
+     */
+    public void
+    append(String... fields)
+    {
+        synchronized (this) {
+            appendRecord(fields);
+        }
+    }
+
+    /**
+     * Append a record, and return once it is synced to disk. Concurrent callers share
+     * the same sync.
+     */
+    public void
+    appendDurable(String... fields) throws IOException
+    {
+        synchronized (this) {
+            long seq = appendRecord(fields);
+            syncRequested = true;
+            notifyAll();
+            while (syncedSeq < seq) {
+                if (channel == null) {
+                    throw new IOException("Journal closed: " + file);
+                }
+                try {
+                    wait();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new IOException("Interrupted while syncing journal: " + file);
+                }
+            }
+            if (seq >= failedFrom && seq <= failedTo) {
+                throw new IOException("Unable to write journal: " + file);
+            }
+        }
+    }
+
+    /**
+     * Records appended since the journal was opened or last rewritten
+     */
+    public synchronized long
+    getRecordCount()
+    {
+        return records;
+    }
+
+    /**
+     * Replace the whole journal with the given records, atomically, ex: to compact it or
+     * to empty it once nothing in it is needed anymore
+     */
+    public void
+    rewrite(List<String[]> newRecords) throws IOException
+    {
+        synchronized (writeLock) {
+            synchronized (this) {
+                rewriteLocked(newRecords);
+            }
+        }
+    }
+
+    private void
+    rewriteLocked(List<String[]> newRecords) throws IOException
+    {
+        StringBuilder sb = new StringBuilder();
+        for (String[] fields : newRecords) {
+            format(sb, fields);
+        }
+        Path dir = file.getAbsoluteFile().getParentFile().toPath();
+        Path tmp = Files.createTempFile(dir, file.getName(), ".tmp");
+        FileChannel tmpChannel = FileChannel.open(tmp, StandardOpenOption.WRITE);
+        try {
+            write(tmpChannel, sb);
+            tmpChannel.force(true);
+        } finally {
+            tmpChannel.close();
+        }
+        Files.move(tmp, file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+
+        // whatever was pending is part of the old journal, now superseded
+        if (channel != null) {
+            channel.close();
+        }
+        pending = new StringBuilder();
+        syncedSeq = appendedSeq;
+        records = newRecords.size();
+        open();
+        notifyAll();
+    }
+
+    /**
+     * Sync what is pending and stop the background thread
+     */
+    public void
+    close()
+    {
+        try {
+            sync();
+        } catch (IOException e) {
+            Log.error("Caught exception while syncing journal: " + file, e);
+        }
+        synchronized (writeLock) {
+            synchronized (this) {
+                try {
+                    if (channel != null) {
+                        channel.close();
+                    }
+                } catch (IOException e) {
+                    Log.error("Caught exception while closing journal: " + file, e);
+                }
+                channel = null;
+                notifyAll();
+            }
+        }
+        if (syncer != null) {
+            syncer.interrupt();
+        }
+    }
+
+    /**
+     * Sync loop, one batch every sync interval or as soon as a durable record waits
+     */
+    @Override
+    public void
+    run()
+    {
+        while (true) {
+            synchronized (this) {
+                try {
+                    if (!syncRequested) {
+                        wait(syncIntervalMs);
+                    }
+                } catch (InterruptedException e) {
+                    return;
+                }
+                if (channel == null) {
+                    return;
+                }
+            }
+            try {
+                sync();
+            } catch (IOException e) {
+                Log.error("Caught exception while syncing journal: " + file, e);
+            }
+        }
+    }
+
+    private long
+    appendRecord(String[] fields)
+    {
+        format(pending, fields);
+        records++;
+        startSyncer();
+        return ++appendedSeq;
+    }
+
+    /**
+     * Write the pending records and force them to disk
+     */
+    private void
+    sync() throws IOException
+    {
+        synchronized (writeLock) {
+            StringBuilder batch;
+            long batchSeq;
+            synchronized (this) {
+                syncRequested = false;
+                if (channel == null || syncedSeq == appendedSeq) {
+                    return;
+                }
+                batch = pending;
+                batchSeq = appendedSeq;
+                pending = new StringBuilder();
+            }
+            // channel only changes under the write lock
+            try {
+                write(channel, batch);
+                channel.force(false);
+            } catch (IOException e) {
+                synchronized (this) {
+                    failedFrom = syncedSeq + 1;
+                    failedTo = batchSeq;
+                    syncedSeq = batchSeq;
+                    notifyAll();
+                }
+                throw e;
+            }
+            synchronized (this) {
+                syncedSeq = batchSeq;
+                notifyAll();
+            }
+        }
+    }
+
+    /**
+     * Open for appending, cutting a torn last record
+     */
+    private void
+    open() throws IOException
+    {
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        long length = raf.length();
+        long end = length;
+        while (end > 0) {
+            raf.seek(end - 1);
+            if (raf.read() == '\n') {
+                break;
+            }
+            end--;
+        }
+        if (end < length) {
+            raf.setLength(end);
+        }
+        channel = raf.getChannel();
+        channel.position(end);
+    }
+
+    private synchronized void
+    startSyncer()
+    {
+        if (syncer == null) {
+            syncer = new Thread(this, "journal-" + file.getName());
+            syncer.setDaemon(true);
+            syncer.start();
+        }
+    }
+
+    private static void
+    format(StringBuilder sb, String[] fields)
+    {
+        for (int i = 0; i < fields.length; i++) {
+            if (i > 0) {
+                sb.append('\t');
+            }
+            String field = fields[i] != null ? fields[i] : "";
+            sb.append(field.replace('\t', ' ').replace('\n', ' '));
+        }
+        sb.append('\n');
+    }
+
+    private static void
+    write(FileChannel target, StringBuilder sb) throws IOException
+    {
+        ByteBuffer buf = ByteBuffer.wrap(sb.toString().getBytes(UTF8));
+        while (buf.hasRemaining()) {
+            target.write(buf);
+        }
+    }
+}
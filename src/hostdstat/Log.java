@@ -0,0 +1,277 @@
+/**
+ * Leveled logging with an asynchronous ring buffer appender. Diagnostics are
+ * handed to a background thread instead of contending on the console lock, and
+ * the report stream (stdout) is kept apart from them
+ *
+ * Copyright (c) 2016
+ *
+ * Permission is hereby granted, free of charge, to any person
+ * obtaining a copy of this software and associated documentation files
+ * (the "Software"), to deal in the Software without restriction,
+ * including without limitation the rights to use, copy, modify, merge,
+ * publish, distribute, sublicense, and/or sell copies of the Software,
+ * and to permit persons to whom the Software is furnished to do so,
+ * subject to the following conditions:
+ *
+ * @author Gururaja Hegdal (ghegdal@vmware.com)
+ * @version 1.0
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES
+ * OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT
+ * HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY,
+ * WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING
+ * FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR
+ * OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+package hostdstat;
+
+import java.io.FileOutputStream;
+import java.io.PrintStream;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+public final class Log
+{
+    public static final int ERROR = 0;
+    public static final int WARN = 1;
+    public static final int INFO = 2;
+    public static final int DEBUG = 3;
+    private static final String[] LEVEL_NAMES = { "ERROR", "WARN", "INFO", "DEBUG" };
+
+    public static final int RING_SIZE = 8192;
+    public static final int DRAIN_BATCH = 256;
+    public static final long FLUSH_TIMEOUT_MS = 5000;
+
+    private static volatile int level = INFO;
+    private static volatile PrintStream sink = System.err;
+    private static final ArrayBlockingQueue<LogEvent> ring = new ArrayBlockingQueue<LogEvent>(RING_SIZE);
+    private static final AtomicLong dropped = new AtomicLong();
+    private static final AtomicLong pending = new AtomicLong();
+
+    static {
+        Thread appender = new Thread(new Runnable() {
+            @Override
+            public void
+            run()
+            {
+                drainLoop();
+            }
+        }, "log-appender");
+        appender.setDaemon(true);
+        appender.start();
+
+        Runtime.getRuntime().addShutdownHook(new Thread() {
+            @Override
+            public void
+            run()
+            {
+                flush();
+            }
+        });
+    }
+
+    /**
+     * One queued log message, formatted by the appender thread
+     */
+    private static class LogEvent
+    {
+        final long time;
+        final int level;
+        final String thread;
+        final String message;
+        final Throwable error;
+
+        LogEvent(int level, String message, Throwable error)
+        {
+            this.time = System.currentTimeMillis();
+            this.level = level;
+            this.thread = Thread.currentThread().getName();
+            this.message = message;
+            this.error = error;
+        }
+    }
+
+    private Log()
+    {
+    }
+
+    /**
+     * Set the level by name (error, warn, info, debug)
+     */
+    public static void
+    setLevel(String levelName)
+    {
+        for (int i = 0; i < LEVEL_NAMES.length; i++) {
+            if (LEVEL_NAMES[i].equalsIgnoreCase(levelName)) {
+                level = i;
+                return;
+            }
+        }
+        error("Unknown log level: " + levelName + ", keeping " + LEVEL_NAMES[level]);
+    }
+
+    /**
+     * Send diagnostics to a file instead of stderr
+     */
+    public static void
+    setLogFile(String logFile)
+    {
+        try {
+            sink = new PrintStream(new FileOutputStream(logFile, true), false, "UTF-8");
+        } catch (Exception e) {
+            error("Could not open log file: " + logFile + ", logging to stderr", e);
+        }
+    }
+
+    public static boolean
+    isEnabled(int msgLevel)
+    {
+        return msgLevel <= level;
+    }
+
+    /**
+     * Guard for debug messages, so that building them costs nothing when disabled
+     */
+    public static boolean
+    isDebugEnabled()
+    {
+        return DEBUG <= level;
+    }
+
+    public static void
+    error(String message)
+    {
+        log(ERROR, message, null);
+    }
+
+    public static void
+    error(String message, Throwable error)
+    {
+        log(ERROR, message, error);
+    }
+
+    public static void
+    warn(String message)
+    {
+        log(WARN, message, null);
+    }
+
+    public static void
+    info(String message)
+    {
+        log(INFO, message, null);
+    }
+
+    public static void
+    debug(String message)
+    {
+        log(DEBUG, message, null);
+    }
+
+    /**
+     * Write to the report stream. Reports go straight to stdout, apart from diagnostics.
+     */
+    public static void
+    report(String line)
+    {
+        System.out.println(line);
+    }
+
+    /**
+     * Queue a message for the appender. Info and debug messages are dropped when the ring is
+     * full, rather than stalling collection, errors and warnings wait for room.
+     */
+    private static void
+    log(int msgLevel, String message, Throwable error)
+    {
+        if (msgLevel > level) {
+            return;
+        }
+        LogEvent event = new LogEvent(msgLevel, message, error);
+        pending.incrementAndGet();
+        if (!ring.offer(event)) {
+            if (msgLevel <= WARN) {
+                try {
+                    ring.put(event);
+                    return;
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+            pending.decrementAndGet();
+            dropped.incrementAndGet();
+        }
+    }
+
+    /**
+     * Wait until all queued messages have been written
+     */
+    public static void
+    flush()
+    {
+        long deadline = System.currentTimeMillis() + FLUSH_TIMEOUT_MS;
+        while (pending.get() > 0 && System.currentTimeMillis() < deadline) {
+            try {
+                Thread.sleep(10);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                break;
+            }
+        }
+        sink.flush();
+    }
+
+    /**
+     * Appender loop, writing messages in batches
+     */
+    private static void
+    drainLoop()
+    {
+        SimpleDateFormat dateFormat = new SimpleDateFormat("yyyy-MM-dd HH:mm:ss.SSS");
+        List<LogEvent> batch = new ArrayList<LogEvent>(DRAIN_BATCH);
+        while (true) {
+            try {
+                LogEvent first = ring.poll(1, TimeUnit.SECONDS);
+                if (first == null) {
+                    continue;
+                }
+                batch.add(first);
+                ring.drainTo(batch, DRAIN_BATCH - 1);
+
+                PrintStream out = sink;
+                long droppedCount = dropped.getAndSet(0);
+                if (droppedCount > 0) {
+                    out.println(dateFormat.format(new Date()) + " [WARN] [log-appender] " + droppedCount
+                        + " log messages dropped, log ring buffer was full");
+                }
+                for (LogEvent event : batch) {
+                    out.println(dateFormat.format(new Date(event.time)) + " [" + LEVEL_NAMES[event.level] + "] ["
+                        + event.thread + "] " + event.message);
+                    if (event.error != null) {
+                        event.error.printStackTrace(out);
+                    }
+                }
+                out.flush();
+                pending.addAndGet(-batch.size());
+                batch.clear();
+            } catch (InterruptedException e) {
+                return;
+            } catch (Exception e) {
+                // never let the appender die
+                pending.addAndGet(-batch.size());
+                batch.clear();
+            }
+        }
+    }
+}
@@ -0,0 +1,105 @@
+/**
+ * Probe for the hostd memory usage and limit, from the hostd resource group
+ *
+ * Copyright (c) 2016
+ *
+ * Permission is hereby granted, free of charge, to any person
+ * obtaining a copy of this software and associated documentation files
+ * (the "Software"), to deal in the Software without restriction,
+ * including without limitation the rights to use, copy, modify, merge,
+ * publish, distribute, sublicense, and/or sell copies of the Software,
+ * and to permit persons to whom the Software is furnished to do so,
+ * subject to the following conditions:
+ *
+ * @author Gururaja Hegdal (ghegdal@vmware.com)
+ * @version 1.0
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES
+ * OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT
+ * HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY,
+ * WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING
+ * FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR
+ * OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+package hostdstat;
+
+import java.util.List;
+import java.util.regex.Pattern;
+
+public class MemoryProbe implements Probe
+{
+    // group of the running hostd process, ex: hostd.12345
+    private static final Pattern HOSTD_GROUP = Pattern.compile("hostd\\.[0-9]+");
+
+    @Override
+    public String
+    getName()
+    {
+        return "memory";
+    }
+
+    @Override
+    public String[]
+    getCommands()
+    {
+        // raw output, parsed locally
+        return new String[] { "esxcfg-resgrp -l " + ApiStatsCollector.HOSTD_RESOURCE_GROUP };
+    }
+
+    /**
+     * Usage is the effective memory minimum of the hostd.<pid> group, limit is the total memory
+     * of the first group capacity
+     */
+    @Override
+    public void
+    parse(String[] outputs, HostdSample sample)
+    {
+        if (outputs[0] == null) {
+            return;
+        }
+        List<ResourceGroupParser.Group> groups = ResourceGroupParser.parse(outputs[0]);
+        String usage = ResourceGroupParser.findValue(groups, HOSTD_GROUP, null, "Effective Minimum",
+            ResourceGroupParser.UNIT_MB);
+        String limit = ResourceGroupParser.findValue(groups, null, "Group Capacity", "Total Memory",
+            ResourceGroupParser.UNIT_MB);
+        if (usage != null) {
+            sample.hostdMemUsage = usage;
+        }
+        if (limit != null) {
+            sample.hostdMemLimit = limit;
+        }
+        if (usage == null || limit == null) {
+            Log.warn("Unexpected esxcfg-resgrp output on host: " + sample.hostName);
+        }
+        if (sample.hostdMemUsage != null && sample.hostdMemUsage.equals(sample.hostdMemLimit)) {
+            sample.memAtLimit = true;
+        }
+    }
+
+    @Override
+    public int
+    getCost()
+    {
+        return 1;
+    }
+
+    @Override
+    public int
+    getCadence()
+    {
+        return 1;
+    }
+
+    @Override
+    public boolean
+    isSatisfied(HostdSample sample)
+    {
+        return sample.hostdMemUsage != null && sample.hostdMemLimit != null;
+    }
+}
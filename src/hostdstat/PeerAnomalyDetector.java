@@ -0,0 +1,249 @@
+/**
+ * Flags hosts whose hostd usage stands out from the other hosts of the same cluster,
+ * using running mean/variance of every metric per cluster
+ *
+ * Copyright (c) 2016
+ *
+ * Permission is hereby granted, free of charge, to any person
+ * obtaining a copy of this software and associated documentation files
+ * (the "Software"), to deal in the Software without restriction,
+ * including without limitation the rights to use, copy, modify, merge,
+ * publish, distribute, sublicense, and/or sell copies of the Software,
+ * and to permit persons to whom the Software is furnished to do so,
+ * subject to the following conditions:
+ *
+ * @author Gururaja Hegdal (ghegdal@vmware.com)
+ * @version 1.0
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES
+ * OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT
+ * HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY,
+ * WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING
+ * FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR
+ * OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+package hostdstat;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+public class PeerAnomalyDetector implements SampleListener
+{
+    public static final double DEFAULT_Z_THRESHOLD = 3.0;
+
+    // hosts compared with fewer peers than this are never flagged
+    public static final int MIN_PEERS = 4;
+
+    // peers that are all alike still get some spread, as a fraction of their mean, so that one
+    // extra thread on an otherwise identical cluster is not an anomaly
+    public static final double MIN_RELATIVE_SPREAD = 0.05;
+
+    static final String[] METRICS = { "MEM", "THREAD", "FD" };
+
+    private final double zThreshold;
+    // statistics of the current sweep, by vCenter/datacenter/cluster
+    Map<String, ClusterStats> clusters = new HashMap<String, ClusterStats>();
+
+    /**
+     * Running count, mean and sum of squared deviations (Welford)
+     */
+    static class RunningStats
+    {
+        long count;
+        double mean;
+        double m2;
+
+        void
+        add(double value)
+        {
+            count++;
+            double delta = value - mean;
+            mean += delta / count;
+            m2 += delta * (value - mean);
+        }
+
+        /**
+         * Z-score of a value that was added, against the other values only, so that a
+         * single outlier does not hide itself by inflating the variance
+         */
+        double
+        peerZScore(double value)
+        {
+            long peers = count - 1;
+            if (peers < MIN_PEERS) {
+                return 0;
+            }
+            double peerMean = (count * mean - value) / peers;
+            double peerM2 = Math.max(0, m2 - (value - mean) * (value - peerMean));
+            double sd = Math.sqrt(peerM2 / (peers - 1));
+            sd = Math.max(sd, Math.max(1.0, Math.abs(peerMean) * MIN_RELATIVE_SPREAD));
+            return (value - peerMean) / sd;
+        }
+
+        double
+        peerMean(double value)
+        {
+            return (count * mean - value) / (count - 1);
+        }
+    }
+
+    /**
+     * Statistics and host values of one cluster, for the current sweep
+     */
+    static class ClusterStats
+    {
+        final RunningStats[] stats = new RunningStats[METRICS.length];
+        final List<String> hostNames = new ArrayList<String>();
+        final List<double[]> hostValues = new ArrayList<double[]>();
+
+        ClusterStats()
+        {
+            for (int i = 0; i < stats.length; i++) {
+                stats[i] = new RunningStats();
+            }
+        }
+    }
+
+    /**
+     * Metric of a host far from its peers
+     */
+    static class Anomaly
+    {
+        final String cluster;
+        final String hostName;
+        final String metric;
+        final double value;
+        final double peerMean;
+        final double zScore;
+
+        Anomaly(String cluster, String hostName, String metric, double value, double peerMean, double zScore)
+        {
+            this.cluster = cluster;
+            this.hostName = hostName;
+            this.metric = metric;
+            this.value = value;
+            this.peerMean = peerMean;
+            this.zScore = zScore;
+        }
+    }
+
+    /**
+     * Constructor
+     */
+    public PeerAnomalyDetector(double zThreshold)
+    {
+        this.zThreshold = zThreshold;
+    }
+
+    /**
+     * Add the raw usage of the host to the statistics of its cluster. Standalone hosts
+     * have no peers and are ignored.
+     */
+    @Override
+    public void
+    onSample(HostdSample sample)
+    {
+        if (sample.cluster == null) {
+            return;
+        }
+        double[] values = new double[] { parse(sample.hostdMemUsage), parse(sample.threadUsage),
+            parse(sample.fdUsage) };
+        String key = sample.vsphereIp + "/" + sample.datacenter + "/" + sample.cluster;
+
+        synchronized (this) {
+            ClusterStats cluster = clusters.get(key);
+            if (cluster == null) {
+                cluster = new ClusterStats();
+                clusters.put(key, cluster);
+            }
+            cluster.hostNames.add(sample.hostName);
+            cluster.hostValues.add(values);
+            for (int i = 0; i < values.length; i++) {
+                if (!Double.isNaN(values[i])) {
+                    cluster.stats[i].add(values[i]);
+                }
+            }
+        }
+    }
+
+    /**
+     * Score every host of the sweep against its peers, print the ones above the threshold,
+     * and start over for the next sweep
+     */
+    @Override
+    public void
+    onSweepComplete()
+    {
+        Map<String, ClusterStats> sweepClusters;
+        synchronized (this) {
+            sweepClusters = clusters;
+            clusters = new HashMap<String, ClusterStats>();
+        }
+
+        List<Anomaly> anomalies = new ArrayList<Anomaly>();
+        for (Map.Entry<String, ClusterStats> entry : sweepClusters.entrySet()) {
+            ClusterStats cluster = entry.getValue();
+            for (int h = 0; h < cluster.hostNames.size(); h++) {
+                double[] values = cluster.hostValues.get(h);
+                for (int i = 0; i < values.length; i++) {
+                    if (Double.isNaN(values[i])) {
+                        continue;
+                    }
+                    double z = cluster.stats[i].peerZScore(values[i]);
+                    if (Math.abs(z) >= zThreshold) {
+                        anomalies.add(new Anomaly(entry.getKey(), cluster.hostNames.get(h), METRICS[i], values[i],
+                            cluster.stats[i].peerMean(values[i]), z));
+                    }
+                }
+            }
+        }
+        if (anomalies.isEmpty()) {
+            Log.info("No host stands out from its cluster peers");
+            return;
+        }
+
+        Collections.sort(anomalies, new Comparator<Anomaly>() {
+            @Override
+            public int
+            compare(Anomaly a, Anomaly b)
+            {
+                return Double.compare(Math.abs(b.zScore), Math.abs(a.zScore));
+            }
+        });
+        StringBuilder sb = new StringBuilder();
+        sb.append("\n==================== P E E R   A N O M A L I E S ====================");
+        sb.append(String.format("%n%-40s %-30s %-7s %10s %10s %7s", "CLUSTER", "HOST", "METRIC", "VALUE",
+            "PEER MEAN", "Z"));
+        for (Anomaly anomaly : anomalies) {
+            sb.append(String.format("%n%-40s %-30s %-7s %10.1f %10.1f %7.1f", anomaly.cluster, anomaly.hostName,
+                anomaly.metric, anomaly.value, anomaly.peerMean, anomaly.zScore));
+        }
+        Log.report(sb.toString());
+    }
+
+    /**
+     * Raw value of a metric, NaN when it was not collected
+     */
+    private static double
+    parse(String value)
+    {
+        if (value == null || value.length() == 0) {
+            return Double.NaN;
+        }
+        try {
+            return Double.parseDouble(value.trim());
+        } catch (NumberFormatException e) {
+            return Double.NaN;
+        }
+    }
+}
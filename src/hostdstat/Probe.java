@@ -0,0 +1,73 @@
+/**
+ * A hostd probe: the remote commands it runs on a host, how their output is parsed
+ * into a sample, its estimated cost and how often it has to run. Probes other than
+ * the built-in ones are found through java.util.ServiceLoader.
+ *
+ * Copyright (c) 2016
+ *
+ * Permission is hereby granted, free of charge, to any person
+ * obtaining a copy of this software and associated documentation files
+ * (the "Software"), to deal in the Software without restriction,
+ * including without limitation the rights to use, copy, modify, merge,
+ * publish, distribute, sublicense, and/or sell copies of the Software,
+ * and to permit persons to whom the Software is furnished to do so,
+ * subject to the following conditions:
+ *
+ * @author Gururaja Hegdal (ghegdal@vmware.com)
+ * @version 1.0
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES
+ * OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT
+ * HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY,
+ * WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING
+ * FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR
+ * OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+package hostdstat;
+
+public interface Probe
+{
+    /**
+     * Short unique name, ex: fd
+     */
+    String
+    getName();
+
+    /**
+     * Commands run on the host over SSH, in order
+     */
+    String[]
+    getCommands();
+
+    /**
+     * Parse the standard output of every command into the sample. Outputs of commands that
+     * wrote to their error stream are null.
+     */
+    void
+    parse(String[] outputs, HostdSample sample);
+
+    /**
+     * Estimated cost of one run, relative to the other probes
+     */
+    int
+    getCost();
+
+    /**
+     * Run every that many collections of a host. In between, the values of the probe are left
+     * unset, unless it is a ConfigurationProbe whose last run is reused.
+     */
+    int
+    getCadence();
+
+    /**
+     * Whether the sample already holds what this probe collects, ex: through APIs
+     */
+    boolean
+    isSatisfied(HostdSample sample);
+}
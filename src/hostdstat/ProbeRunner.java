@@ -0,0 +1,180 @@
+/**
+ * Runs the probes that are due on a host, cheapest first and within the cost budget,
+ * and fills in the values of the probes that are not due from their last run
+ *
+ * Copyright (c) 2016
+ *
+ * Permission is hereby granted, free of charge, to any person
+ * obtaining a copy of this software and associated documentation files
+ * (the "Software"), to deal in the Software without restriction,
+ * including without limitation the rights to use, copy, modify, merge,
+ * publish, distribute, sublicense, and/or sell copies of the Software,
+ * and to permit persons to whom the Software is furnished to do so,
+ * subject to the following conditions:
+ *
+ * @author Gururaja Hegdal (ghegdal@vmware.com)
+ * @version 1.0
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES
+ * OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT
+ * HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY,
+ * WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING
+ * FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR
+ * OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+package hostdstat;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.ServiceLoader;
+import java.util.concurrent.ConcurrentHashMap;
+
+import ch.ethz.ssh2.Connection;
+
+public class ProbeRunner
+{
+    private final List<Probe> probes;
+    private final Map<String, Integer> cadences;
+
+    // total cost of the probes run per collection, 0 for no limit
+    private final int budget;
+    private final Map<String, HostProbeState> hostStates = new ConcurrentHashMap<String, HostProbeState>();
+
+    /**
+     * Probe runs of one host, which is only collected by one worker at a time
+     */
+    private static class HostProbeState
+    {
+        int collections;
+        final Map<String, Integer> lastRun = new HashMap<String, Integer>();
+
+        // outputs of the last run of the configuration probes
+        final Map<String, String[]> lastOutputs = new HashMap<String, String[]>();
+    }
+
+    /**
+     * Constructor, with per probe cadence overrides
+     */
+    public ProbeRunner(List<Probe> probes, Map<String, Integer> cadences, int budget)
+    {
+        this.probes = new ArrayList<Probe>(probes);
+        Collections.sort(this.probes, new Comparator<Probe>() {
+            @Override
+            public int
+            compare(Probe a, Probe b)
+            {
+                return a.getCost() - b.getCost();
+            }
+        });
+        this.cadences = cadences;
+        this.budget = budget;
+    }
+
+    /**
+     * Built-in probes, followed by the ones registered as java.util.ServiceLoader providers
+     * of hostdstat.Probe
+     */
+    public static List<Probe>
+    loadProbes()
+    {
+        List<Probe> probes = new ArrayList<Probe>();
+        probes.add(new ConfigProbe());
+        probes.add(new MemoryProbe());
+        probes.add(new ThreadProbe());
+        probes.add(new FdProbe());
+        probes.add(new ResponseProbe());
+        for (Probe probe : ServiceLoader.load(Probe.class)) {
+            Log.info("Loaded probe: " + probe.getName() + " (" + probe.getClass().getName() + ")");
+            probes.add(probe);
+        }
+        return probes;
+    }
+
+    /**
+     * Run the due probes on the host over the open SSH connection
+     */
+    public void
+    run(Connection sshConn, HostdSample sample) throws Exception
+    {
+        HostProbeState state = hostStates.get(sample.hostName);
+        if (state == null) {
+            state = new HostProbeState();
+            hostStates.put(sample.hostName, state);
+        }
+        int collection = state.collections++;
+        int spent = 0;
+
+        for (Probe probe : probes) {
+            if (probe.isSatisfied(sample)) {
+                continue;
+            }
+            Integer lastRun = state.lastRun.get(probe.getName());
+            boolean due = lastRun == null || collection - lastRun >= getCadence(probe);
+            // a probe never run on the host always runs, otherwise it waits for room in the budget
+            if (due && (lastRun == null || budget <= 0 || spent + probe.getCost() <= budget)) {
+                if (Log.isDebugEnabled()) {
+                    Log.debug("*** About to run probe " + probe.getName() + " on host: " + sample.hostName);
+                }
+                String[] outputs = runCommands(sshConn, probe, sample.hostName);
+                probe.parse(outputs, sample);
+                state.lastRun.put(probe.getName(), collection);
+                if (probe instanceof ConfigurationProbe) {
+                    state.lastOutputs.put(probe.getName(), outputs);
+                }
+                spent += probe.getCost();
+            } else if (state.lastOutputs.containsKey(probe.getName())) {
+                // usage probes that did not run leave their values unset rather than report old ones
+                probe.parse(state.lastOutputs.get(probe.getName()), sample);
+            }
+        }
+    }
+
+    /**
+     * Run the commands of a probe, null for the ones writing to their error stream
+     */
+    private static String[]
+    runCommands(Connection sshConn, Probe probe, String hostName) throws Exception
+    {
+        String[] commands = probe.getCommands();
+        String[] outputs = new String[commands.length];
+        for (int i = 0; i < commands.length; i++) {
+            Map<String, String> result;
+            TraceRecorder.begin(TraceRecorder.CAT_COMMAND, commands[i], hostName);
+            try {
+                result = SSHUtil.getRemoteSSHCmdOutput(sshConn, commands[i]);
+            } finally {
+                TraceRecorder.end(TraceRecorder.CAT_COMMAND, commands[i], hostName);
+            }
+            String errors = result.get(SSHUtil.SSH_ERROR_STREAM);
+            if (errors == null) {
+                continue;
+            }
+            if (!errors.equals("")) {
+                Log.warn("[SSHErrorStream-" + probe.getName() + "] Error in executing the command");
+                if (Log.isDebugEnabled()) {
+                    Log.debug(probe.getName() + ":" + errors);
+                }
+                continue;
+            }
+            outputs[i] = result.get(SSHUtil.SSH_OUTPUT_STREAM);
+        }
+        return outputs;
+    }
+
+    private int
+    getCadence(Probe probe)
+    {
+        Integer cadence = cadences.get(probe.getName());
+        return Math.max(1, cadence != null ? cadence : probe.getCadence());
+    }
+}
@@ -0,0 +1,166 @@
+/**
+ * Parses the output of esxcfg-resgrp -l locally, in a single pass, into the fields of
+ * every resource group. Fields are keyed by the path of their nested sections, ex:
+ * Group Capacity/Total Memory or Group Capacity/Memory/Total.
+ *
+ * Copyright (c) 2016
+ *
+ * Permission is hereby granted, free of charge, to any person
+ * obtaining a copy of this software and associated documentation files
+ * (the "Software"), to deal in the Software without restriction,
+ * including without limitation the rights to use, copy, modify, merge,
+ * publish, distribute, sublicense, and/or sell copies of the Software,
+ * and to permit persons to whom the Software is furnished to do so,
+ * subject to the following conditions:
+ *
+ * @author Gururaja Hegdal (ghegdal@vmware.com)
+ * @version 1.0
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES
+ * OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT
+ * HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY,
+ * WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING
+ * FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR
+ * OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+package hostdstat;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.regex.Pattern;
+
+public class ResourceGroupParser
+{
+    public static final String GROUP_NAME = "Group Name";
+    public static final String UNIT_MB = "MB";
+
+    /**
+     * Fields of one resource group, in output order
+     */
+    public static class Group
+    {
+        final String name;
+        final Map<String, String> fields = new LinkedHashMap<String, String>();
+
+        Group(String name)
+        {
+            this.name = name;
+        }
+
+        public String
+        getName()
+        {
+            return name;
+        }
+
+        public Map<String, String>
+        getFields()
+        {
+            return fields;
+        }
+    }
+
+    /**
+     * Split the output into groups. A 'Group Name' line starts a group, a key without a value
+     * opens a section for the more indented lines that follow it, sections nest.
+     */
+    public static List<Group>
+    parse(String output)
+    {
+        List<Group> groups = new ArrayList<Group>();
+        Group curr = new Group("");
+
+        // open sections, outermost first: their path and indent
+        String[] sectionPaths = new String[8];
+        int[] sectionIndents = new int[8];
+        int sections = 0;
+
+        int len = output.length();
+        int start = 0;
+        while (start < len) {
+            int end = output.indexOf('\n', start);
+            if (end < 0) {
+                end = len;
+            }
+            int indent = start;
+            while (indent < end && Character.isWhitespace(output.charAt(indent))) {
+                indent++;
+            }
+            int colon = output.indexOf(':', indent);
+            if (colon > indent && colon < end) {
+                String key = output.substring(indent, colon).trim();
+                String value = output.substring(colon + 1, end).trim();
+                int depth = indent - start;
+                while (sections > 0 && depth <= sectionIndents[sections - 1]) {
+                    sections--;
+                }
+                String section = sections > 0 ? sectionPaths[sections - 1] : null;
+
+                if (GROUP_NAME.equals(key)) {
+                    if (curr.name.length() > 0 || !curr.fields.isEmpty()) {
+                        groups.add(curr);
+                    }
+                    curr = new Group(value);
+                    sections = 0;
+                } else if (value.length() == 0) {
+                    if (sections == sectionPaths.length) {
+                        sectionPaths = Arrays.copyOf(sectionPaths, 2 * sections);
+                        sectionIndents = Arrays.copyOf(sectionIndents, 2 * sections);
+                    }
+                    sectionPaths[sections] = section != null ? section + "/" + key : key;
+                    sectionIndents[sections] = depth;
+                    sections++;
+                } else {
+                    String fieldKey = section != null ? section + "/" + key : key;
+                    if (!curr.fields.containsKey(fieldKey)) {
+                        curr.fields.put(fieldKey, value);
+                    }
+                }
+            }
+            start = end + 1;
+        }
+        if (curr.name.length() > 0 || !curr.fields.isEmpty()) {
+            groups.add(curr);
+        }
+        return groups;
+    }
+
+    /**
+     * Number of the first field, in output order, named field within a section containing
+     * the given text (any section when null), in a group matching the pattern (any group
+     * when null), and expressed in the given unit. Null when not found.
+     */
+    public static String
+    findValue(List<Group> groups, Pattern groupName, String section, String field, String unit)
+    {
+        for (Group group : groups) {
+            if (groupName != null && !groupName.matcher(group.name).find()) {
+                continue;
+            }
+            for (Map.Entry<String, String> entry : group.fields.entrySet()) {
+                String key = entry.getKey();
+                int slash = key.lastIndexOf('/');
+                if (!key.substring(slash + 1).equals(field)) {
+                    continue;
+                }
+                if (section != null && (slash < 0 || !key.substring(0, slash).contains(section))) {
+                    continue;
+                }
+                String value = entry.getValue();
+                if (value.endsWith(unit)) {
+                    return value.substring(0, value.length() - unit.length()).trim();
+                }
+            }
+        }
+        return null;
+    }
+}
@@ -0,0 +1,84 @@
+/**
+ * Probe for hostd responsiveness, as detected by hostd-probe
+ *
+ * Copyright (c) 2016
+ *
+ * Permission is hereby granted, free of charge, to any person
+ * obtaining a copy of this software and associated documentation files
+ * (the "Software"), to deal in the Software without restriction,
+ * including without limitation the rights to use, copy, modify, merge,
+ * publish, distribute, sublicense, and/or sell copies of the Software,
+ * and to permit persons to whom the Software is furnished to do so,
+ * subject to the following conditions:
+ *
+ * @author Gururaja Hegdal (ghegdal@vmware.com)
+ * @version 1.0
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES
+ * OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT
+ * HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY,
+ * WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING
+ * FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR
+ * OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+package hostdstat;
+
+public class ResponseProbe implements Probe
+{
+    @Override
+    public String
+    getName()
+    {
+        return "response";
+    }
+
+    @Override
+    public String[]
+    getCommands()
+    {
+        return new String[] { "grep \"hostd detected to be non-responsive\" /var/log/hostd-probe.log" };
+    }
+
+    @Override
+    public void
+    parse(String[] outputs, HostdSample sample)
+    {
+        if (outputs[0] == null) {
+            return;
+        }
+        if (!outputs[0].equals("")) {
+            sample.hostdResponsive = false;
+            sample.RESPONSE_ALERT = HostdSample.ALERT_RED;
+        } else {
+            sample.hostdResponsive = true;
+            sample.RESPONSE_ALERT = HostdSample.ALERT_GREEN;
+        }
+    }
+
+    @Override
+    public int
+    getCost()
+    {
+        return 1;
+    }
+
+    @Override
+    public int
+    getCadence()
+    {
+        return 1;
+    }
+
+    @Override
+    public boolean
+    isSatisfied(HostdSample sample)
+    {
+        return false;
+    }
+}
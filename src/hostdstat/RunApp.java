@@ -33,6 +33,9 @@
 
 package hostdstat;
 
+import java.util.ArrayList;
+import java.util.List;
+
 // Entry point into the Hostd Stats fetcher tool
 public class RunApp
 {
@@ -45,21 +48,150 @@ public class RunApp
             "Usage: java -jar hostdstat.jar --vsphereip <vc/esxi server IP> --username <uname> --password <pwd> --esxUsername <uname> --esxPassword <pwd>");
         System.out.println(
             "\"java -jar hostdstat.jar --vsphereip 10.4.5.6 --username admin --password dummyPwd --esxUsername rootUser --esxPassword dummyPwd\"");
+        System.out.println(
+            "Usage (many vCenters): java -jar hostdstat.jar --config <vCenter list file> [--workers <count>]");
+        System.out.println(
+            "  Each line of the vCenter list file holds: --vsphereip <ip> --username <uname> --password <pwd> "
+                + "--esxUsername <uname> --esxPassword <pwd>");
+        System.out.println(
+            "  --workers: number of hosts collected in parallel, shared across all vCenters");
+        System.out.println(
+            "Options: --session-cache <dir> : reuse vCenter sessions across runs, cookies are stored in <dir>");
+        System.out.println(
+            "         --interval <seconds> : keep collecting every <seconds>, tracking inventory changes in between");
+        System.out.println(
+            "         --collector api [--ssh-fallback] : collect through vSphere APIs without SSH, "
+                + "optionally using SSH for threads, FD limit and responsiveness");
+        System.out.println(
+            "         --stream <seconds> [--duration <seconds>] : stream memory/thread/FD usage of up to "
+                + "--workers hosts over one SSH channel per host");
+        System.out.println(
+            "         --report full|compact|delta [--epsilon <percent>] [--snapshot-every <sweeps>] : "
+                + "report format, delta only prints alert transitions and usage changes beyond epsilon");
+        System.out.println(
+            "         --adaptive [--min-interval <seconds>] [--max-interval <seconds>] : poll hot hosts "
+                + "often (default 30s) and back off healthy hosts (up to 900s)");
+        System.out.println(
+            "         --backoff <seconds> [--max-backoff <seconds>] : skip failing hosts for <seconds> "
+                + "(default 60), doubled on every consecutive failure up to max (default 3600)");
+        System.out.println(
+            "         --rollup : after every sweep, print min/mean/p50/p90/p99/max usage per cluster, "
+                + "datacenter and fleet wide");
+        System.out.println(
+            "         --probe-cadence <probe>=<collections>[,...] [--probe-budget <cost>] : run probes "
+                + "(memory, thread, fd, response, config) every n collections, fd defaults to 5");
+        System.out.println(
+            "         --ssh-lease <seconds> [--ssh-lease-journal <dir>] : keep SSH enabled between polls for "
+                + "<seconds> after the last one, leases are journaled in <dir> (default ~/.hostdstat)");
+        System.out.println(
+            "         --alert-webhook <url> [--alert-window <seconds>] : POST alert level changes to <url> "
+                + "as JSON, batched every <seconds> (default 30), can be repeated");
+        System.out.println(
+            "         --checkpoint <file> : journal the progress of each sweep in <file>, an interrupted "
+                + "sweep resumes with the hosts it had not collected yet");
+        System.out.println(
+            "         --trace <file> : write a Chrome trace of the collection phases of every host to <file>, "
+                + "numbered per sweep in long running mode");
+        System.out.println(
+            "         --anomaly [--anomaly-z <z>] : report hosts whose memory, thread or FD usage is more than "
+                + "<z> standard deviations (default 3) away from the other hosts of their cluster");
+        System.out.println(
+            "         --known-hosts <file> : SSH host keys accepted on first connection and verified "
+                + "afterwards (default ~/.hostdstat/known_hosts)");
+        System.out.println(
+            "         --history <dir> : store every sample in <dir>, for the query subcommand");
+        System.out.println(
+            "         --export <dir> : write every sample to compact columnar files in <dir>, one per day, "
+                + "for the read-export subcommand or the ColumnarReader library");
+        System.out.println(
+            "         --datacenter <name> --cluster <name> --host-regex <regex> --skip-maintenance "
+                + "--connected-only : only collect from the selected hosts");
+        System.out.println(
+            "         --page-size <hosts> : hosts retrieved per inventory page (default 100), "
+                + "hosts are collected as pages arrive");
+        System.out.println(
+            "         --log-level error|warn|info|debug [--log-file <file>] : diagnostics level (default info) "
+                + "and destination (default stderr), reports always go to stdout");
+        HistoryQuery.usage();
+        ColumnarReader.usage();
      }
 
+    /**
+     * Query subcommand, over the history stored with --history
+     */
+    private static void
+    runQuery(String[] args)
+    {
+        try {
+            HistoryQuery query = new HistoryQuery(args);
+            if (query.isValid()) {
+                query.run();
+            } else {
+                HistoryQuery.usage();
+            }
+        } catch (Exception e) {
+            Log.error("Caught exception while querying history", e);
+            HistoryQuery.usage();
+        }
+        Log.flush();
+    }
+
+    /**
+     * Read-export subcommand, over the files written with --export
+     */
+    private static void
+    runReadExport(String[] args)
+    {
+        try {
+            ColumnarReader.run(args);
+        } catch (Exception e) {
+            Log.error("Caught exception while reading export", e);
+            ColumnarReader.usage();
+        }
+        Log.flush();
+    }
+
     /**
      * Main entry point
      */
     public static void main(String[] args) {
 
-        System.out
-            .println("######################### Hostd Stats fetcher Configuration Script execution STARTED #########################");
+        if (args.length > 0 && args[0].equals(HistoryQuery.SUBCOMMAND)) {
+            runQuery(args);
+            return;
+        }
+        if (args.length > 0 && args[0].equals(ColumnarReader.SUBCOMMAND)) {
+            runReadExport(args);
+            return;
+        }
+
+        Log.info("######################### Hostd Stats fetcher Configuration Script execution STARTED #########################");
 
         // Read command line arguments
-        if (args.length > 0 && args.length >= 10) {
-            FetchStats fetchStatObj = new FetchStats(args);
+        CollectorOptions options = new CollectorOptions(args);
+
+        if (options.configFile != null) {
+            try {
+                List<FetchStats> vcList = SweepCollector.loadVCenterConfig(options.configFile, options);
+                if (vcList.isEmpty()) {
+                    Log.error("No vSphere servers found in: " + options.configFile);
+                    usageHostdStatScript();
+                } else {
+                    new SweepCollector(vcList, options).run();
+                }
+            } catch (Exception e) {
+                Log.error("Caught exception while reading vSphere list from: " + options.configFile);
+                usageHostdStatScript();
+            }
+        } else if (args.length > 0 && args.length >= 10) {
+            FetchStats fetchStatObj = new FetchStats(args, options);
             if (fetchStatObj.validateProperties()) {
-                fetchStatObj.fetchHostdStats();
+                List<FetchStats> vcList = new ArrayList<FetchStats>();
+                vcList.add(fetchStatObj);
+                if (options.workers <= 0) {
+                    options.workers = 1;
+                }
+                new SweepCollector(vcList, options).run();
             } else {
                 usageHostdStatScript();
             }
@@ -69,9 +201,10 @@ public class RunApp
         try {
             Thread.sleep(1000 * 2);
         } catch (InterruptedException e) {
-            e.printStackTrace();
+            Log.error("Interrupted while waiting to complete", e);
         }
-        System.out.println(
+        Log.info(
             "######################### Hostd Stats fetcher Script execution completed #########################");
+        Log.flush();
     }
 }
\ No newline at end of file
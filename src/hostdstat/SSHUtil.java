@@ -67,11 +67,35 @@ public class SSHUtil
      */
     public static Connection
     getSSHConnection(String hostName, String userName, final String password) throws Exception
+    {
+        return getSSHConnection(hostName, userName, password, null);
+    }
+
+    /**
+     * Connects to the remote host using SSH, with the algorithms and host key verification
+     * of the given profile
+     *
+     * @param hostName host to connect
+     * @param userName username to authenticate
+     * @param password password to authenticate
+     * @param profile connection profile, null for library defaults and no host key check
+     * @return SSH Connection
+     * @throws Exception
+     */
+    public static Connection
+    getSSHConnection(String hostName, String userName, final String password, SshProfile profile)
+        throws Exception
     {
         Connection conn = new Connection(hostName);
         String[] strArray;
         // Now try to connect
-        conn.connect();
+        if (profile != null) {
+            profile.apply(conn, hostName);
+            conn.connect(profile);
+            conn.setTCPNoDelay(true);
+        } else {
+            conn.connect();
+        }
 
         try {
             strArray = conn.getRemainingAuthMethods(userName);
@@ -79,7 +103,7 @@ public class SSHUtil
             throw new Exception("Getting Remaining AuthMethods failed with IOException: " + e.getMessage());
         }
         if (strArray == null) {
-            System.out.println("conn.getRemainingAuthMethods returns null");
+            Log.debug("conn.getRemainingAuthMethods returns null");
             try {
                 conn.authenticateWithPassword(userName, password);
             } catch (Exception e) {
@@ -93,37 +117,52 @@ public class SSHUtil
         } else {
             List<String> authMethods = Arrays.asList(strArray);
             // Authenticate
-            if (authMethods.contains("password")) {
-                if (!conn.authenticateWithPassword(userName, password)) {
+            if (authMethods.contains(SshProfile.AUTH_PASSWORD)) {
+                if (!authenticate(conn, SshProfile.AUTH_PASSWORD, userName, password)) {
                     throw new Exception("Password based authentication failed.");
                 }
-            } else if (authMethods.contains("keyboard-interactive")) {
-                InteractiveCallback cb = new InteractiveCallback() {
-                    @Override
-                    public String[] replyToChallenge(String name, String instruction, int numPrompts, String[] prompt,
-                        boolean[] echo) throws Exception {
-                        /*
-                         * Going with the assumption that the only thing servers
-                         * asks for is password
-                         */
-                        String[] response = new String[numPrompts];
-                        for (int i = 0; i < response.length; i++) {
-                            response[i] = password;
-                        }
-                        return response;
-                    }
-                };
-                if (!conn.authenticateWithKeyboardInteractive(userName, cb)) {
+            } else if (authMethods.contains(SshProfile.AUTH_KEYBOARD_INTERACTIVE)) {
+                if (!authenticate(conn, SshProfile.AUTH_KEYBOARD_INTERACTIVE, userName, password)) {
                     throw new Exception("Keyboard-interactive based authentication failed.");
                 }
             } else {
                 throw new Exception("SSH Server doesnt support password or keyboard-interactive logins");
             }
         }
-        System.out.println("Successfully connected to the remote ssh host: " + hostName);
+        if (Log.isDebugEnabled()) {
+            Log.debug("Successfully connected to the remote ssh host: " + hostName);
+        }
         return conn;
     }
 
+    /**
+     * Authenticate with a password, or with keyboard-interactive answering the password
+     * to every prompt
+     */
+    private static boolean
+    authenticate(Connection conn, String method, String userName, final String password) throws IOException
+    {
+        if (SshProfile.AUTH_PASSWORD.equals(method)) {
+            return conn.authenticateWithPassword(userName, password);
+        }
+        InteractiveCallback cb = new InteractiveCallback() {
+            @Override
+            public String[] replyToChallenge(String name, String instruction, int numPrompts, String[] prompt,
+                boolean[] echo) throws Exception {
+                /*
+                 * Going with the assumption that the only thing servers
+                 * asks for is password
+                 */
+                String[] response = new String[numPrompts];
+                for (int i = 0; i < response.length; i++) {
+                    response[i] = password;
+                }
+                return response;
+            }
+        };
+        return conn.authenticateWithKeyboardInteractive(userName, cb);
+    }
+
     /**
      * Closes the SSH Connection to the remote host
      *
@@ -137,7 +176,7 @@ public class SSHUtil
         boolean success = true;
         if (conn != null) {
             conn.close();
-            System.out.println("SSH Connection closed");
+            Log.debug("SSH Connection closed");
         }
         return success;
     }
@@ -160,12 +199,15 @@ public class SSHUtil
         Map<String, String> returnData = new HashMap<String, String>();
         try {
             session = conn.openSession();
-            System.out.println("Running command '" + command + "' with timeout of " + timeout + " seconds");
+            if (Log.isDebugEnabled()) {
+                Log.debug("Running command '" + command + "' with timeout of " + timeout + " seconds");
+            }
             session.execCommand(command);
             // Wait until command completes or times out
             int result = session.waitForCondition(ChannelCondition.EOF, timeout * 1000);
             if ((result & ChannelCondition.TIMEOUT) != 0) {
-                System.out.println("A timeout occured while waiting for data from the " + "server");
+                Log.warn("A timeout occured while waiting for data from the server, for command '"
+                    + command + "'");
                 if (session != null) {
                     session.close();
                 }
@@ -182,14 +224,14 @@ public class SSHUtil
             Integer exitStatus = session.getExitStatus();
             if (errorDataStream.length() != 0) {
                 // command execution failed ( even if execution of one command fails)
-                System.err.println("SSH session ExitCode: " + exitStatus);
-                System.err.println("Error while executing '" + command + "' command on remote ssh host");
-                System.err.println("Error Stream: \n" + errorDataStream);
-                System.out.println("Output Stream: \n" + outputDataStream);
+                Log.warn("Error while executing '" + command + "' command on remote ssh host, SSH session ExitCode: "
+                    + exitStatus + "\nError Stream: \n" + errorDataStream + "Output Stream: \n" + outputDataStream);
             } else {
                 // command executed successfully , populate the output stream
-                System.out.println("SSH session ExitCode: " + exitStatus);
-                System.out.println("Successfully executed '" + command + "' command on remote ssh host");
+                if (Log.isDebugEnabled()) {
+                    Log.debug("SSH session ExitCode: " + exitStatus);
+                    Log.debug("Successfully executed '" + command + "' command on remote ssh host");
+                }
             }
         } finally {
             if (session != null) {
@@ -232,7 +274,7 @@ public class SSHUtil
                 }
             }
         } else {
-            System.err.println("InputStream parameter is null");
+            Log.error("InputStream parameter is null");
         }
         return out;
     }
@@ -261,12 +303,12 @@ public class SSHUtil
         Session session = null;
         try {
             session = conn.openSession();
-            System.out.println(
+            Log.debug(
                 "Running command '" + command + "' asynchronously. "
                     + " It doesn't wait for command to complete on remote host.");
             session.execCommand(command);
             int sleep = 10;
-            System.out.println("Sleep for " + sleep + " seconds for command to kick in.");
+            Log.debug("Sleep for " + sleep + " seconds for command to kick in.");
             Thread.sleep(sleep * 1000);
 
         } finally {
@@ -295,7 +337,7 @@ public class SSHUtil
         boolean success = false;
 
         try {
-            System.out.println("Running command '" + command + "' with timeout of " + maxTimeout + " seconds");
+            Log.debug("Running command '" + command + "' with timeout of " + maxTimeout + " seconds");
             session.execCommand(command);
 
             /*
@@ -318,7 +360,7 @@ public class SSHUtil
              */
             int result = session.waitForCondition(ChannelCondition.EOF, maxTimeout * 1000);
             if ((result & ChannelCondition.TIMEOUT) != 0) {
-                System.out.println("A timeout occured while waiting for data from the " + "server");
+                Log.warn("A timeout occured while waiting for data from the " + "server");
             } else {
                 /*
                  * It is possible that the errReader thread has not completely
@@ -335,22 +377,21 @@ public class SSHUtil
                      */
                     Integer exitStatus = session.getExitStatus();
                     if (exitStatus == null) {
-                        System.out.println("'" + command + "' command did not return an " + "exit status value");
+                        Log.debug("'" + command + "' command did not return an " + "exit status value");
                         success = true;
                     } else {
                         /*
                          * Nonzero exit status value is an error
                          */
-                        System.out
-                            .println("'" + command + "' command returned an exit " + "status value: " + exitStatus);
+                        Log.debug("'" + command + "' command returned an exit " + "status value: " + exitStatus);
                         if (exitStatus.equals(0)) {
                             success = true;
                         } else {
-                            System.out.println("'" + command + "' command returned a nonzero " + "exit status value");
+                            Log.debug("'" + command + "' command returned a nonzero " + "exit status value");
                         }
                     }
                 } else {
-                    System.out.println("Error data stream contains a message");
+                    Log.debug("Error data stream contains a message");
                     if (errorDataStream.contains("Terminating watchdog process")
                         || errorDataStream.contains("Picked up JAVA_TOOL_OPTIONS:")) {
                         // ignore this error mesg.
@@ -361,7 +402,7 @@ public class SSHUtil
                 }
             }
             if (success) {
-                System.out.println("Successfully executed '" + command + "' command on remote ssh host");
+                Log.debug("Successfully executed '" + command + "' command on remote ssh host");
             }
         } finally {
             if (isReader != null) {
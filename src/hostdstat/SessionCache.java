@@ -0,0 +1,164 @@
+/**
+ * On-disk cache of vCenter session cookies, so that consecutive runs can reuse
+ * an existing session instead of doing a full login
+ *
+ * Copyright (c) 2016
+ *
+ * Permission is hereby granted, free of charge, to any person
+ * obtaining a copy of this software and associated documentation files
+ * (the "Software"), to deal in the Software without restriction,
+ * including without limitation the rights to use, copy, modify, merge,
+ * publish, distribute, sublicense, and/or sell copies of the Software,
+ * and to permit persons to whom the Software is furnished to do so,
+ * subject to the following conditions:
+ *
+ * @author Gururaja Hegdal (ghegdal@vmware.com)
+ * @version 1.0
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES
+ * OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT
+ * HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY,
+ * WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING
+ * FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR
+ * OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+package hostdstat;
+
+import java.io.File;
+import java.net.URL;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.PosixFilePermissions;
+
+import com.vmware.vim25.mo.ServiceInstance;
+
+public class SessionCache
+{
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+    private static final String SESSION_FILE_SUFFIX = ".session";
+    private static final String OWNER_ONLY_DIR = "rwx------";
+    private static final String OWNER_ONLY_FILE = "rw-------";
+
+    private final File cacheDir;
+
+    /**
+     * Constructor
+     */
+    public SessionCache(String cacheDir)
+    {
+        this.cacheDir = new File(cacheDir);
+    }
+
+    /**
+     * Reconnect to the vCenter with a cached session cookie. The session is verified
+     * with a cheap call, and null is returned if there is no cached session or it went stale.
+     */
+    public ServiceInstance
+    reconnect(URL url, String vsphereIp, String userName)
+    {
+        File sessionFile = getSessionFile(vsphereIp, userName);
+        if (!sessionFile.isFile()) {
+            return null;
+        }
+
+        try {
+            String cookie = new String(Files.readAllBytes(sessionFile.toPath()), UTF8).trim();
+            if (cookie.length() == 0) {
+                return null;
+            }
+            ServiceInstance si = new ServiceInstance(url, cookie, true);
+
+            // currentSession is null, unless the cookie still maps to an authenticated session.
+            // currentTime is no good here, as vCenter answers it for anonymous sessions too.
+            if (si.getSessionManager().getCurrentSession() != null) {
+                Log.info("Reusing cached session for vSphere: " + vsphereIp);
+                return si;
+            }
+            Log.info("Cached session for vSphere: " + vsphereIp + " is stale");
+        } catch (Exception e) {
+            Log.info("Could not reuse cached session for vSphere: " + vsphereIp);
+        }
+
+        invalidate(vsphereIp, userName);
+        return null;
+    }
+
+    /**
+     * Store the session cookie of a freshly logged in ServiceInstance, readable by the owner only
+     */
+    public void
+    store(ServiceInstance si, String vsphereIp, String userName)
+    {
+        try {
+            String cookie = si.getServerConnection().getSessionStr();
+            if (cookie == null) {
+                return;
+            }
+            Path dir = cacheDir.toPath();
+            if (!cacheDir.isDirectory()) {
+                Files.createDirectories(dir);
+                restrictPermissions(dir, OWNER_ONLY_DIR);
+            }
+
+            // write to a restricted temp file first, so the cookie is never world readable
+            Path tmp = Files.createTempFile(dir, "session", ".tmp");
+            restrictPermissions(tmp, OWNER_ONLY_FILE);
+            Files.write(tmp, cookie.getBytes(UTF8));
+            Files.move(tmp, getSessionFile(vsphereIp, userName).toPath(), StandardCopyOption.REPLACE_EXISTING,
+                StandardCopyOption.ATOMIC_MOVE);
+        } catch (Exception e) {
+            Log.error("Caught exception while caching session for vSphere: " + vsphereIp);
+        }
+    }
+
+    /**
+     * Remove the cached session of the given vCenter and user
+     */
+    public void
+    invalidate(String vsphereIp, String userName)
+    {
+        File sessionFile = getSessionFile(vsphereIp, userName);
+        if (sessionFile.exists() && !sessionFile.delete()) {
+            Log.error("Could not remove stale session file: " + sessionFile);
+        }
+    }
+
+    /**
+     * Session file, per vCenter and user
+     */
+    private File
+    getSessionFile(String vsphereIp, String userName)
+    {
+        String name = (vsphereIp + "_" + userName).replaceAll("[^A-Za-z0-9._-]", "_");
+        return new File(cacheDir, name + SESSION_FILE_SUFFIX);
+    }
+
+    /**
+     * Restrict permissions to the owner, on POSIX as well as on other file systems
+     */
+    private static void
+    restrictPermissions(Path path, String posixPerms) throws Exception
+    {
+        try {
+            Files.setPosixFilePermissions(path, PosixFilePermissions.fromString(posixPerms));
+        } catch (UnsupportedOperationException e) {
+            File file = path.toFile();
+            file.setReadable(false, false);
+            file.setWritable(false, false);
+            file.setExecutable(false, false);
+            file.setReadable(true, true);
+            file.setWritable(true, true);
+            if (file.isDirectory()) {
+                file.setExecutable(true, true);
+            }
+        }
+    }
+}
@@ -0,0 +1,415 @@
+/**
+ * Keeps the SSH service enabled on hosts where it was started by us, for an idle
+ * lease renewed by every collection. The original service state is restored when a
+ * lease expires, at shutdown, or after a crash from the append-only lease journal.
+ *
+ * Copyright (c) 2016
+ *
+ * Permission is hereby granted, free of charge, to any person
+ * obtaining a copy of this software and associated documentation files
+ * (the "Software"), to deal in the Software without restriction,
+ * including without limitation the rights to use, copy, modify, merge,
+ * publish, distribute, sublicense, and/or sell copies of the Software,
+ * and to permit persons to whom the Software is furnished to do so,
+ * subject to the following conditions:
+ *
+ * @author Gururaja Hegdal (ghegdal@vmware.com)
+ * @version 1.0
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES
+ * OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT
+ * HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY,
+ * WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING
+ * FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR
+ * OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+package hostdstat;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import com.vmware.vim25.ManagedObjectReference;
+import com.vmware.vim25.mo.HostSystem;
+
+public class SshLeaseManager implements Runnable
+{
+    public static final int REAP_INTERVAL_SECONDS = 10;
+    public static final String JOURNAL_PREFIX = "ssh-leases-";
+
+    // journal records: the service is about to be started, was started, was reverted
+    static final String REC_STARTING = "STARTING";
+    static final String REC_STARTED = "STARTED";
+    static final String REC_STOPPED = "STOPPED";
+
+    // the journal is compacted to the live leases past this many records
+    static final int COMPACT_RECORDS = 1000;
+
+    private final FetchStats vCenter;
+
+    // idle lease in milliseconds, 0 reverts the service right after each collection
+    private final long leaseMs;
+    private final File journalFile;
+    private Journal journal;
+    private final ConcurrentMap<String, Lease> leases = new ConcurrentHashMap<String, Lease>();
+
+    // hosts whose service is being started, by name, with their managed object id
+    private final Map<String, String> starting = new ConcurrentHashMap<String, String>();
+    private Thread reaper;
+
+    /**
+     * SSH service started by us on one host
+     */
+    private static class Lease
+    {
+        final String hostName;
+        final String morVal;
+        long expiresAt;
+
+        // collections in progress on the host
+        int users;
+
+        // set while the service is being stopped, and for good once it is
+        boolean revoked;
+        boolean stopped;
+
+        Lease(String hostName, String morVal, long expiresAt)
+        {
+            this.hostName = hostName;
+            this.morVal = morVal;
+            this.expiresAt = expiresAt;
+        }
+    }
+
+    /**
+     * Constructor, lease in seconds, journal kept in the given directory
+     */
+    public SshLeaseManager(FetchStats vCenter, int leaseSeconds, String journalDir)
+    {
+        this.vCenter = vCenter;
+        this.leaseMs = Math.max(0, leaseSeconds) * 1000L;
+        this.journalFile = new File(journalDir, JOURNAL_PREFIX + vCenter.getVsphereIp());
+    }
+
+    /**
+     * Get the SSH service running on the host, renewing the lease if we hold one.
+     * Returns false if the service could not be started.
+     */
+    public boolean
+    acquire(HostSystem host)
+    {
+        String hostName = host.getName();
+        Lease lease = leases.get(hostName);
+        if (lease != null) {
+            synchronized (lease) {
+                // a stop in progress may fail, in which case the lease is still ours
+                while (lease.revoked && !lease.stopped) {
+                    try {
+                        lease.wait();
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                        return false;
+                    }
+                }
+                if (!lease.revoked) {
+                    lease.users++;
+                    lease.expiresAt = System.currentTimeMillis() + leaseMs;
+                    return true;
+                }
+            }
+        }
+
+        TraceRecorder.begin(TraceRecorder.CAT_SERVICE, "service start", hostName);
+        boolean started;
+        try {
+            started = vCenter.startSSHService(host);
+        } finally {
+            TraceRecorder.end(TraceRecorder.CAT_SERVICE, "service start", hostName);
+        }
+        return started;
+    }
+
+    /**
+     * Record, before starting it, that the SSH service of the host is about to be started by
+     * us. The record is on disk when this returns, so that a crash right after the start still
+     * gets the service reverted by the next run.
+     */
+    void
+    onStarting(HostSystem host)
+    {
+        String hostName = host.getName();
+        String morVal = host.getMOR().getVal();
+        starting.put(hostName, morVal);
+        try {
+            getJournal().appendDurable(REC_STARTING, hostName, morVal);
+        } catch (IOException e) {
+            Log.error("Caught exception while writing SSH lease journal: " + journalFile, e);
+        }
+    }
+
+    /**
+     * Record that the SSH service of the host was started by us, and has to be reverted.
+     * The lease starts in use by the collection that started the service.
+     */
+    void
+    onStarted(HostSystem host)
+    {
+        Lease lease = new Lease(host.getName(), host.getMOR().getVal(), System.currentTimeMillis() + leaseMs);
+        lease.users = 1;
+        leases.put(lease.hostName, lease);
+        starting.remove(lease.hostName);
+        append(REC_STARTED, lease.hostName, lease.morVal, String.valueOf(lease.expiresAt));
+        startReaper();
+    }
+
+    /**
+     * Done with the host for now. Without an idle lease the service state is reverted at once.
+     */
+    public void
+    release(HostSystem host)
+    {
+        Lease lease = leases.get(host.getName());
+        if (lease == null) {
+            return;
+        }
+        synchronized (lease) {
+            lease.users = Math.max(0, lease.users - 1);
+            lease.expiresAt = System.currentTimeMillis() + leaseMs;
+            if (leaseMs > 0 || lease.users > 0) {
+                return;
+            }
+        }
+        revoke(lease, false);
+    }
+
+    /**
+     * Restore the service state of every leased host, ex: at shutdown
+     */
+    public void
+    revokeAll()
+    {
+        for (Lease lease : new ArrayList<Lease>(leases.values())) {
+            revoke(lease, true);
+        }
+        compact();
+    }
+
+    /**
+     * Restore the service state of the hosts left in the journal by a previous run that did
+     * not exit cleanly. Leases that have not expired yet are adopted.
+     */
+    public void
+    recover()
+    {
+        List<String[]> records;
+        try {
+            records = Journal.read(journalFile);
+        } catch (IOException e) {
+            Log.error("Caught exception while reading SSH lease journal: " + journalFile, e);
+            return;
+        }
+        if (records.isEmpty()) {
+            return;
+        }
+
+        // replay: the last record of each host tells whether its service is still ours to revert
+        Map<String, Lease> recovered = new LinkedHashMap<String, Lease>();
+        for (String[] fields : records) {
+            if (REC_STOPPED.equals(fields[0]) && fields.length >= 2) {
+                recovered.remove(fields[1]);
+            } else if (REC_STARTING.equals(fields[0]) && fields.length >= 3) {
+                // the service may have been started just before the crash
+                recovered.put(fields[1], new Lease(fields[1], fields[2], 0));
+            } else if (REC_STARTED.equals(fields[0]) && fields.length >= 4) {
+                recovered.put(fields[1], new Lease(fields[1], fields[2], parseLong(fields[3])));
+            } else if (fields.length == 3) {
+                // lease file of older versions: host, managed object id, expiry
+                recovered.put(fields[0], new Lease(fields[0], fields[1], parseLong(fields[2])));
+            }
+        }
+
+        long now = System.currentTimeMillis();
+        for (Lease lease : recovered.values()) {
+            if (leaseMs > 0 && lease.expiresAt > now) {
+                Log.info("Adopting SSH service lease of host: " + lease.hostName);
+                leases.put(lease.hostName, lease);
+            } else {
+                Log.info("Reverting SSH service left running by a previous run on host: " + lease.hostName);
+                leases.put(lease.hostName, lease);
+                revoke(lease, true);
+            }
+        }
+        compact();
+        if (!leases.isEmpty()) {
+            startReaper();
+        }
+    }
+
+    /**
+     * Reaper loop, reverting the service state of idle hosts whose lease expired
+     */
+    @Override
+    public void
+    run()
+    {
+        while (true) {
+            try {
+                Thread.sleep(REAP_INTERVAL_SECONDS * 1000L);
+            } catch (InterruptedException e) {
+                return;
+            }
+            for (Lease lease : new ArrayList<Lease>(leases.values())) {
+                revoke(lease, false);
+            }
+        }
+    }
+
+    /**
+     * Stop the SSH service we started, and forget the lease. Unless forced, only a lease that
+     * is idle and expired is revoked, checked under the same lock that marks it revoked, so
+     * that a collection acquiring it meanwhile keeps the service running.
+     */
+    private void
+    revoke(Lease lease, boolean force)
+    {
+        synchronized (lease) {
+            if (lease.revoked) {
+                return;
+            }
+            if (!force && (lease.users > 0 || lease.expiresAt > System.currentTimeMillis())) {
+                return;
+            }
+            lease.revoked = true;
+        }
+        if (!force && leaseMs > 0) {
+            Log.info("SSH service lease of host: " + lease.hostName + " expired");
+        }
+        ManagedObjectReference mor = new ManagedObjectReference();
+        mor.setType(FetchStats.HOST_MOR_TYPE);
+        mor.setVal(lease.morVal);
+        Log.debug("Reverting the SSH Service state of host: " + lease.hostName + ", as it was before");
+        boolean stopped;
+        TraceRecorder.begin(TraceRecorder.CAT_SERVICE, "service stop", lease.hostName);
+        try {
+            stopped = vCenter.stopSSHService(vCenter.toHostSystem(new HostRef(mor, lease.hostName, null, null)));
+        } finally {
+            TraceRecorder.end(TraceRecorder.CAT_SERVICE, "service stop", lease.hostName);
+        }
+        if (stopped) {
+            leases.remove(lease.hostName, lease);
+            synchronized (lease) {
+                lease.stopped = true;
+                lease.notifyAll();
+            }
+            append(REC_STOPPED, lease.hostName, lease.morVal);
+            if (journalRecords() > COMPACT_RECORDS) {
+                compact();
+            }
+        } else {
+            // keep it in the journal and retry later, the next run tries again after a crash
+            Log.error("Could not revert the SSH Service state of host: " + lease.hostName);
+            synchronized (lease) {
+                lease.revoked = false;
+                lease.expiresAt = System.currentTimeMillis();
+                lease.notifyAll();
+            }
+        }
+    }
+
+    /**
+     * Rewrite the journal with the live leases only, atomically
+     */
+    private synchronized void
+    compact()
+    {
+        List<String[]> records = new ArrayList<String[]>();
+        for (Map.Entry<String, String> entry : starting.entrySet()) {
+            records.add(new String[] { REC_STARTING, entry.getKey(), entry.getValue() });
+        }
+        for (Lease lease : leases.values()) {
+            records.add(new String[] { REC_STARTED, lease.hostName, lease.morVal, String.valueOf(lease.expiresAt) });
+        }
+        try {
+            getJournal().rewrite(records);
+        } catch (IOException e) {
+            Log.error("Caught exception while compacting SSH lease journal: " + journalFile, e);
+        }
+    }
+
+    /**
+     * Append a record, synced with the next batch
+     */
+    private void
+    append(String... fields)
+    {
+        try {
+            getJournal().append(fields);
+        } catch (IOException e) {
+            Log.error("Caught exception while writing SSH lease journal: " + journalFile, e);
+        }
+    }
+
+    private synchronized long
+    journalRecords()
+    {
+        return journal != null ? journal.getRecordCount() : 0;
+    }
+
+    private synchronized Journal
+    getJournal() throws IOException
+    {
+        if (journal == null) {
+            journal = new Journal(journalFile, Journal.DEFAULT_SYNC_INTERVAL_MS);
+        }
+        return journal;
+    }
+
+    private static long
+    parseLong(String value)
+    {
+        try {
+            return Long.parseLong(value);
+        } catch (NumberFormatException e) {
+            return 0;
+        }
+    }
+
+    /**
+     * Start the reaper and the shutdown hook, once
+     */
+    private synchronized void
+    startReaper()
+    {
+        if (reaper != null) {
+            return;
+        }
+        reaper = new Thread(this, "ssh-leases-" + vCenter.getVsphereIp());
+        reaper.setDaemon(true);
+        reaper.start();
+
+        Runtime.getRuntime().addShutdownHook(new Thread() {
+            @Override
+            public void
+            run()
+            {
+                revokeAll();
+                try {
+                    getJournal().close();
+                } catch (IOException e) {
+                    Log.error("Caught exception while closing SSH lease journal: " + journalFile, e);
+                }
+            }
+        });
+    }
+}
@@ -0,0 +1,147 @@
+/**
+ * Connection profile shared by all SSH connections to ESXi hosts: cheapest algorithms
+ * first, and host keys verified against a local known hosts file
+ *
+ * Copyright (c) 2016
+ *
+ * Permission is hereby granted, free of charge, to any person
+ * obtaining a copy of this software and associated documentation files
+ * (the "Software"), to deal in the Software without restriction,
+ * including without limitation the rights to use, copy, modify, merge,
+ * publish, distribute, sublicense, and/or sell copies of the Software,
+ * and to permit persons to whom the Software is furnished to do so,
+ * subject to the following conditions:
+ *
+ * @author Gururaja Hegdal (ghegdal@vmware.com)
+ * @version 1.0
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES
+ * OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT
+ * HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY,
+ * WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING
+ * FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR
+ * OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+package hostdstat;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import ch.ethz.ssh2.Connection;
+import ch.ethz.ssh2.KnownHosts;
+import ch.ethz.ssh2.ServerHostKeyVerifier;
+
+public class SshProfile implements ServerHostKeyVerifier
+{
+    public static final String AUTH_PASSWORD = "password";
+    public static final String AUTH_KEYBOARD_INTERACTIVE = "keyboard-interactive";
+    public static final String KNOWN_HOSTS_FILE = "known_hosts";
+
+    // cheapest first, the server picks the first one of ours it supports
+    static final String[] PREFERRED_CIPHERS = { "aes128-ctr", "aes128-cbc", "aes192-ctr", "aes256-ctr",
+        "aes192-cbc", "aes256-cbc", "blowfish-ctr", "blowfish-cbc", "3des-ctr", "3des-cbc" };
+    static final String[] PREFERRED_MACS = { "hmac-sha1-96", "hmac-sha1", "hmac-md5-96", "hmac-md5" };
+
+    private final File knownHostsFile;
+    private final KnownHosts knownHosts = new KnownHosts();
+    private final String[] ciphers;
+    private final String[] macs;
+
+    /**
+     * Constructor, loading the host keys accepted by previous runs
+     */
+    public SshProfile(File knownHostsFile)
+    {
+        this.knownHostsFile = knownHostsFile;
+        this.ciphers = supported(PREFERRED_CIPHERS, Connection.getAvailableCiphers());
+        this.macs = supported(PREFERRED_MACS, Connection.getAvailableMACs());
+        if (knownHostsFile.isFile()) {
+            try {
+                knownHosts.addHostkeys(knownHostsFile);
+            } catch (IOException e) {
+                Log.error("Unable to read known hosts file: " + knownHostsFile, e);
+            }
+        }
+    }
+
+    /**
+     * Set the algorithm preferences on a connection that is not connected yet. Hosts with a
+     * known key are asked for that key type, so that it can be verified.
+     */
+    public void
+    apply(Connection conn, String hostName)
+    {
+        conn.setClient2ServerCiphers(ciphers);
+        conn.setServer2ClientCiphers(ciphers);
+        conn.setClient2ServerMACs(macs);
+        conn.setServer2ClientMACs(macs);
+        String[] hostKeyAlgorithms;
+        synchronized (knownHosts) {
+            hostKeyAlgorithms = knownHosts.getPreferredServerHostkeyAlgorithmOrder(hostName);
+        }
+        if (hostKeyAlgorithms != null) {
+            conn.setServerHostKeyAlgorithms(hostKeyAlgorithms);
+        }
+    }
+
+    /**
+     * Accept known keys and the first key of new hosts, which is added to the known hosts
+     * file. A key that changed is rejected, until its line is removed from the file.
+     */
+    @Override
+    public boolean
+    verifyServerHostKey(String hostName, int port, String keyAlgorithm, byte[] key) throws Exception
+    {
+        synchronized (knownHosts) {
+            int result = knownHosts.verifyHostkey(hostName, keyAlgorithm, key);
+            if (result == KnownHosts.HOSTKEY_IS_OK) {
+                return true;
+            }
+            if (result == KnownHosts.HOSTKEY_HAS_CHANGED) {
+                Log.error("Host key of host: " + hostName + " has changed ("
+                    + KnownHosts.createHexFingerprint(keyAlgorithm, key) + "), remove its line from "
+                    + knownHostsFile + " if the host was reinstalled");
+                return false;
+            }
+
+            knownHosts.addHostkey(new String[] { hostName }, keyAlgorithm, key);
+            try {
+                File dir = knownHostsFile.getAbsoluteFile().getParentFile();
+                if (dir != null && !dir.isDirectory() && !dir.mkdirs()) {
+                    throw new IOException("Unable to create directory: " + dir);
+                }
+                KnownHosts.addHostkeyToFile(knownHostsFile, new String[] { hostName }, keyAlgorithm, key);
+            } catch (IOException e) {
+                Log.error("Unable to add host key of host: " + hostName + " to " + knownHostsFile, e);
+            }
+            Log.info("Added host key of host: " + hostName + " ("
+                + KnownHosts.createHexFingerprint(keyAlgorithm, key) + ")");
+            return true;
+        }
+    }
+
+    /**
+     * Preferred algorithms that this SSH library implements, in preference order
+     */
+    private static String[]
+    supported(String[] preferred, String[] available)
+    {
+        List<String> availableList = Arrays.asList(available);
+        List<String> result = new ArrayList<String>();
+        for (String algorithm : preferred) {
+            if (availableList.contains(algorithm)) {
+                result.add(algorithm);
+            }
+        }
+        return result.isEmpty() ? available : result.toArray(new String[result.size()]);
+    }
+}
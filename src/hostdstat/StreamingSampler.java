@@ -0,0 +1,192 @@
+/**
+ * High resolution sampler, running one long-lived remote loop per host over a single
+ * SSH exec channel and parsing its output as it arrives
+ *
+ * Copyright (c) 2016
+ *
+ * Permission is hereby granted, free of charge, to any person
+ * obtaining a copy of this software and associated documentation files
+ * (the "Software"), to deal in the Software without restriction,
+ * including without limitation the rights to use, copy, modify, merge,
+ * publish, distribute, sublicense, and/or sell copies of the Software,
+ * and to permit persons to whom the Software is furnished to do so,
+ * subject to the following conditions:
+ *
+ * @author Gururaja Hegdal (ghegdal@vmware.com)
+ * @version 1.0
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES
+ * OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT
+ * HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY,
+ * WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING
+ * FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR
+ * OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+package hostdstat;
+
+import java.io.BufferedReader;
+import java.io.InputStreamReader;
+
+import com.vmware.vim25.mo.HostSystem;
+
+import ch.ethz.ssh2.Connection;
+import ch.ethz.ssh2.Session;
+
+public class StreamingSampler implements Runnable
+{
+    // prefix of the lines emitted by the remote loop, anything else on stdout is ignored
+    public static final String LINE_MARKER = "HS";
+
+    private final FetchStats vCenter;
+    private final HostRef hostRef;
+    private final int intervalSeconds;
+    private final int durationSeconds;
+    private final SampleListener listener;
+    private volatile boolean running = true;
+    private volatile Session session;
+
+    /**
+     * Constructor
+     */
+    public StreamingSampler(FetchStats vCenter, HostRef hostRef, int intervalSeconds, int durationSeconds,
+        SampleListener listener)
+    {
+        this.vCenter = vCenter;
+        this.hostRef = hostRef;
+        this.intervalSeconds = intervalSeconds;
+        this.durationSeconds = durationSeconds;
+        this.listener = listener;
+    }
+
+    /**
+     * Remote loop, emitting one line per interval: marker, epoch seconds, hostd memory usage (MB),
+     * busy threads, hostd-worker FDs. The loop ends by itself once the channel is gone, as
+     * the next echo fails with SIGPIPE.
+     */
+    String
+    buildRemoteLoop()
+    {
+        return "while true; do "
+            + "M=`esxcfg-resgrp -l host/vim/vmvisor/hostd | grep -E \"Group Name|Effective Minimum\" | "
+            + "grep -E \"hostd.[0-9]+\" -A 2 | grep -o -E \"[0-9]+\\.[0-9]* MB\" | grep -o -E \"[0-9.]+\"`; "
+            + "T=`grep \"HandleWork(type:\" /var/log/hostd.log | tail -n 1 | "
+            + "grep -o -E \"busy_long:[0-9]+\" | grep -o -E \"[0-9]+\"`; "
+            + "F=`vmkvsitools lsof | grep hostd-worker | wc -l`; "
+            + "echo \"" + LINE_MARKER + " `date +%s` ${M:-0} ${T:-0} ${F}\" || exit 0; "
+            + "sleep " + intervalSeconds + "; "
+            + "done 2>/dev/null";
+    }
+
+    /**
+     * Stop sampling, closing the channel tears down the remote loop
+     */
+    public void
+    stop()
+    {
+        running = false;
+        Session currSession = session;
+        if (currSession != null) {
+            currSession.close();
+        }
+    }
+
+    /**
+     * Collect the limits once, then parse the streamed usage lines until stopped, timed out
+     * or disconnected
+     */
+    @Override
+    public void
+    run()
+    {
+        HostSystem host = vCenter.toHostSystem(hostRef);
+        String hostName = hostRef.name;
+        Connection sshConn = null;
+        long endTime = durationSeconds > 0 ? System.currentTimeMillis() + durationSeconds * 1000L : Long.MAX_VALUE;
+
+        try {
+            if (!vCenter.acquireSSHService(host)) {
+                return;
+            }
+            sshConn = vCenter.openSSHConnection(hostName);
+
+            // limits hardly ever change, a single full collection gives the base sample
+            HostdSample base = new HostdSample(vCenter.getVsphereIp(), hostName);
+            base.setPlacement(hostRef);
+            vCenter.collectOnce(sshConn, base);
+
+            session = sshConn.openSession();
+            session.execCommand(buildRemoteLoop());
+            Log.info("Streaming hostd stats of host: " + hostName + " every " + intervalSeconds
+                + " seconds");
+
+            BufferedReader reader = new BufferedReader(new InputStreamReader(session.getStdout()));
+            String line;
+            while (running && (line = reader.readLine()) != null) {
+                HostdSample sample = toSample(line, base);
+                if (sample != null) {
+                    listener.onSample(sample);
+                }
+                if (System.currentTimeMillis() >= endTime) {
+                    break;
+                }
+            }
+        } catch (Exception e) {
+            if (running) {
+                Log.error("Streaming from host: " + hostName + " stopped, caught exception: " + e);
+            }
+        } finally {
+            stop();
+            if (sshConn != null) {
+                sshConn.close();
+            }
+            vCenter.releaseSSHService(host);
+            Log.info("Stopped streaming hostd stats of host: " + hostName);
+        }
+    }
+
+    /**
+     * Sample of one streamed line, placed in the inventory like the host, null for other lines
+     */
+    HostdSample
+    toSample(String line, HostdSample base)
+    {
+        HostdSample sample = parseLine(line, base);
+        if (sample != null) {
+            sample.setPlacement(hostRef);
+        }
+        return sample;
+    }
+
+    /**
+     * Parse one streamed line into a sample, taking the limits from the base sample
+     */
+    static HostdSample
+    parseLine(String line, HostdSample base)
+    {
+        String[] fields = line.trim().split("\\s+");
+        if (fields.length != 5 || !LINE_MARKER.equals(fields[0])) {
+            return null;
+        }
+        try {
+            HostdSample sample = new HostdSample(base.vsphereIp, base.hostName, Long.parseLong(fields[1]) * 1000);
+            sample.hostdMemUsage = fields[2];
+            sample.hostdMemLimit = base.hostdMemLimit;
+            sample.threadUsage = fields[3];
+            sample.threadLimit = base.threadLimit;
+            sample.fdUsage = fields[4];
+            sample.fdLimit = base.fdLimit;
+            sample.hostdResponsive = base.hostdResponsive;
+            sample.RESPONSE_ALERT = base.RESPONSE_ALERT;
+            sample.evaluate();
+            return sample;
+        } catch (NumberFormatException e) {
+            return null;
+        }
+    }
+}
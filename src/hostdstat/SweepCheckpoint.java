@@ -0,0 +1,138 @@
+/**
+ * Journal of the progress of a sweep, so that a sweep interrupted by a crash or a kill
+ * resumes with the hosts it had not collected yet
+ *
+ * Copyright (c) 2016
+ *
+ * Permission is hereby granted, free of charge, to any person
+ * obtaining a copy of this software and associated documentation files
+ * (the "Software"), to deal in the Software without restriction,
+ * including without limitation the rights to use, copy, modify, merge,
+ * publish, distribute, sublicense, and/or sell copies of the Software,
+ * and to permit persons to whom the Software is furnished to do so,
+ * subject to the following conditions:
+ *
+ * @author Gururaja Hegdal (ghegdal@vmware.com)
+ * @version 1.0
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES
+ * OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT
+ * HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY,
+ * WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING
+ * FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR
+ * OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+package hostdstat;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Date;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+public class SweepCheckpoint
+{
+    // journal records: a sweep started, a host of the sweep was collected
+    static final String REC_SWEEP = "SWEEP";
+    static final String REC_DONE = "DONE";
+
+    private final File file;
+    private final Journal journal;
+
+    // hosts collected in the current sweep, by vCenter and managed object id
+    private final Set<String> done = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+
+    // start of the interrupted sweep to resume, 0 when there is none
+    private long resumeSweepStart;
+
+    /**
+     * Constructor, loading the progress of a sweep that did not complete
+     */
+    public SweepCheckpoint(File file) throws IOException
+    {
+        this.file = file;
+        for (String[] fields : Journal.read(file)) {
+            if (REC_SWEEP.equals(fields[0]) && fields.length >= 2) {
+                resumeSweepStart = Long.parseLong(fields[1]);
+                done.clear();
+            } else if (REC_DONE.equals(fields[0]) && fields.length >= 3) {
+                done.add(fields[1] + "/" + fields[2]);
+            }
+        }
+        this.journal = new Journal(file, Journal.DEFAULT_SYNC_INTERVAL_MS);
+        Runtime.getRuntime().addShutdownHook(new Thread() {
+            @Override
+            public void
+            run()
+            {
+                journal.close();
+            }
+        });
+    }
+
+    /**
+     * Start a sweep, or go on with the interrupted one the first time
+     */
+    public void
+    beginSweep(long sweepStart)
+    {
+        if (resumeSweepStart > 0) {
+            Log.info("Resuming sweep started at " + new Date(resumeSweepStart) + ", skipping " + done.size()
+                + " host(s) already collected");
+            resumeSweepStart = 0;
+            return;
+        }
+        done.clear();
+        List<String[]> records = new ArrayList<String[]>();
+        records.add(new String[] { REC_SWEEP, String.valueOf(sweepStart) });
+        rewrite(records);
+    }
+
+    /**
+     * Whether the host was collected earlier in the sweep, before a restart
+     */
+    public boolean
+    isDone(String vsphereIp, HostRef ref)
+    {
+        return !done.isEmpty() && done.contains(vsphereIp + "/" + ref.mor.getVal());
+    }
+
+    /**
+     * Record a collected host. Synced in batches: after a crash, the last hosts may be
+     * collected again.
+     */
+    public void
+    markDone(String vsphereIp, HostRef ref)
+    {
+        journal.append(REC_DONE, vsphereIp, ref.mor.getVal(), ref.name);
+    }
+
+    /**
+     * The sweep completed, nothing to resume anymore
+     */
+    public void
+    endSweep()
+    {
+        done.clear();
+        rewrite(new ArrayList<String[]>());
+    }
+
+    private void
+    rewrite(List<String[]> records)
+    {
+        try {
+            journal.rewrite(records);
+        } catch (IOException e) {
+            Log.error("Caught exception while writing sweep checkpoint: " + file, e);
+        }
+    }
+}
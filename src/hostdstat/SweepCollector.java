@@ -0,0 +1,687 @@
+/**
+ * Collects hostd stats from one or more vCenter servers concurrently, using a
+ * shared pool of host workers
+ *
+ * Copyright (c) 2016
+ *
+ * Permission is hereby granted, free of charge, to any person
+ * obtaining a copy of this software and associated documentation files
+ * (the "Software"), to deal in the Software without restriction,
+ * including without limitation the rights to use, copy, modify, merge,
+ * publish, distribute, sublicense, and/or sell copies of the Software,
+ * and to permit persons to whom the Software is furnished to do so,
+ * subject to the following conditions:
+ *
+ * @author Gururaja Hegdal (ghegdal@vmware.com)
+ * @version 1.0
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES
+ * OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT
+ * HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY,
+ * WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING
+ * FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR
+ * OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+package hostdstat;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import com.vmware.vim25.mo.HostSystem;
+
+public class SweepCollector
+{
+    public static final int MAX_DEFAULT_WORKERS = 64;
+    public static final int DEFAULT_WORKERS_PER_VC = 4;
+    public static final long STREAM_STOP_TIMEOUT_MS = 10000;
+
+    private final List<FetchStats> vCenters;
+    private final CollectorOptions options;
+    private final int workers;
+    private final Map<String, AtomicInteger> hostsDone = new ConcurrentHashMap<String, AtomicInteger>();
+    private final Map<String, Long> vcFinishTime = new ConcurrentHashMap<String, Long>();
+    private final SampleListener reporter;
+
+    // null unless adaptive polling is enabled
+    private final AdaptivePollPlanner planner;
+
+    // every consumer of the samples: reporter, planner, rollups, anomalies, history, export,
+    // alerts and trace
+    private final List<SampleListener> listeners = new ArrayList<SampleListener>();
+    private final Map<String, AtomicInteger> hostsDeferred = new ConcurrentHashMap<String, AtomicInteger>();
+    private final Map<String, AtomicInteger> hostsSkipped = new ConcurrentHashMap<String, AtomicInteger>();
+    private final Map<String, AtomicInteger> hostsResumed = new ConcurrentHashMap<String, AtomicInteger>();
+
+    // hosts the API collector returned no stats for, their batch failed or they were not in the result
+    private final Map<String, AtomicInteger> hostsMissing = new ConcurrentHashMap<String, AtomicInteger>();
+
+    // hosts whose collection or reporting threw unexpectedly
+    private final Map<String, AtomicInteger> hostsFailed = new ConcurrentHashMap<String, AtomicInteger>();
+
+    // progress of the current sweep, null unless checkpoints are enabled
+    private SweepCheckpoint checkpoint;
+
+    /**
+     * Constructor
+     */
+    public SweepCollector(List<FetchStats> vCenters, CollectorOptions options)
+    {
+        this.vCenters = vCenters;
+        this.options = options;
+        this.workers = options.workers > 0 ? options.workers : defaultWorkers(vCenters.size());
+        this.reporter = createReporter(options);
+        this.planner = options.adaptive ? new AdaptivePollPlanner(options.minInterval, options.maxInterval,
+            options.interval) : null;
+        listeners.add(reporter);
+        if (planner != null) {
+            listeners.add(planner);
+        }
+        if (options.rollup) {
+            listeners.add(new FleetAggregator());
+        }
+        if (options.anomaly) {
+            listeners.add(new PeerAnomalyDetector(options.anomalyZ));
+        }
+        if (options.historyStore != null) {
+            listeners.add(options.historyStore);
+        }
+        if (options.columnarExporter != null) {
+            listeners.add(options.columnarExporter);
+        }
+        if (options.checkpointFile != null) {
+            try {
+                checkpoint = new SweepCheckpoint(new File(options.checkpointFile));
+            } catch (Exception e) {
+                Log.error("Unable to open sweep checkpoint: " + options.checkpointFile + ", sweeps will not resume", e);
+            }
+        }
+        if (options.traceFile != null) {
+            // streaming completes a sweep every interval as well
+            TraceRecorder tracer = new TraceRecorder(options.traceFile,
+                options.isLongRunning() || options.streamInterval > 0);
+            tracer.activate();
+            listeners.add(tracer);
+        }
+        if (!options.alertWebhooks.isEmpty()) {
+            AlertDispatcher dispatcher = new AlertDispatcher(options.alertWebhooks, options.alertWindow);
+            dispatcher.start();
+            listeners.add(dispatcher);
+        }
+    }
+
+    /**
+     * Reporter for the selected report mode
+     */
+    static SampleListener
+    createReporter(CollectorOptions options)
+    {
+        if (CollectorOptions.REPORT_DELTA.equals(options.reportMode)) {
+            // hosts are sampled every stream interval, every sweep, or as rarely as the adaptive max interval
+            long pollSeconds = options.streamInterval > 0 ? options.streamInterval
+                : options.adaptive ? options.maxInterval : options.interval;
+            return new DeltaReporter(options.epsilon, options.snapshotEvery, pollSeconds * 1000L,
+                options.maxBackoff * 1000L);
+        }
+        final boolean compact = CollectorOptions.REPORT_COMPACT.equals(options.reportMode);
+        return new SampleListener() {
+            @Override
+            public void
+            onSample(HostdSample sample)
+            {
+                Log.report(compact ? sample.formatCompact() : sample.formatReport());
+            }
+
+            @Override
+            public void
+            onSweepComplete()
+            {
+            }
+        };
+    }
+
+    /**
+     * Default size of the shared host worker pool
+     */
+    public static int
+    defaultWorkers(int vcCount)
+    {
+        return Math.max(1, Math.min(DEFAULT_WORKERS_PER_VC * vcCount, MAX_DEFAULT_WORKERS));
+    }
+
+    /**
+     * Read the vCenter list file. Each non empty line, not starting with '#', holds the
+     * same arguments as the command line, ex:
+     * --vsphereip 10.4.5.6 --username admin --password dummyPwd --esxUsername root --esxPassword dummyPwd
+     */
+    public static List<FetchStats>
+    loadVCenterConfig(String configFile, CollectorOptions options) throws Exception
+    {
+        List<FetchStats> vcList = new ArrayList<FetchStats>();
+        BufferedReader reader = new BufferedReader(new FileReader(configFile));
+        try {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                line = line.trim();
+                if (line.length() == 0 || line.startsWith("#")) {
+                    continue;
+                }
+                vcList.add(new FetchStats(tokenize(line), options));
+            }
+        } finally {
+            reader.close();
+        }
+        return vcList;
+    }
+
+    /**
+     * Split a config line on whitespace, honouring single and double quotes
+     */
+    static String[]
+    tokenize(String line)
+    {
+        List<String> tokens = new ArrayList<String>();
+        StringBuilder curr = new StringBuilder();
+        char quote = 0;
+        boolean inToken = false;
+        for (int i = 0; i < line.length(); i++) {
+            char c = line.charAt(i);
+            if (quote != 0) {
+                if (c == quote) {
+                    quote = 0;
+                } else {
+                    curr.append(c);
+                }
+            } else if (c == '"' || c == '\'') {
+                quote = c;
+                inToken = true;
+            } else if (Character.isWhitespace(c)) {
+                if (inToken) {
+                    tokens.add(curr.toString());
+                    curr.setLength(0);
+                    inToken = false;
+                }
+            } else {
+                curr.append(c);
+                inToken = true;
+            }
+        }
+        if (inToken) {
+            tokens.add(curr.toString());
+        }
+        return tokens.toArray(new String[tokens.size()]);
+    }
+
+    /**
+     * Stream, or sweep, then stop tracking inventory changes
+     */
+    public void
+    run()
+    {
+        try {
+            if (options.streamInterval > 0) {
+                runStreaming();
+            } else {
+                runSweeps();
+            }
+        } finally {
+            for (FetchStats vc : vCenters) {
+                vc.stopInventoryTracking();
+            }
+        }
+    }
+
+    /**
+     * Run a single sweep, or keep sweeping every interval seconds in long running mode
+     */
+    private void
+    runSweeps()
+    {
+        do {
+            long cycleStart = System.currentTimeMillis();
+            runSweep();
+
+            if (options.isLongRunning()) {
+                long sleepMs = options.getSweepInterval() * 1000L - (System.currentTimeMillis() - cycleStart);
+                if (sleepMs > 0) {
+                    Log.info("Next sweep in " + (sleepMs / 1000) + " seconds");
+                    try {
+                        Thread.sleep(sleepMs);
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                        break;
+                    }
+                }
+            }
+        } while (options.isLongRunning());
+    }
+
+    /**
+     * Login to all vCenters, and collect stats of all their hosts. Logins and inventory
+     * retrieval run in parallel per vCenter, while the hosts are fed into a shared worker pool.
+     */
+    public void
+    runSweep()
+    {
+        final long sweepStart = System.currentTimeMillis();
+        final FairHostScheduler scheduler = new FairHostScheduler(2 * options.pageSize);
+
+        Log.info("Collecting from " + vCenters.size() + " vSphere server(s) using " + workers
+            + " host worker(s)");
+
+        // register every vCenter upfront, so workers do not give up before inventories arrive
+        hostsDone.clear();
+        hostsDeferred.clear();
+        hostsSkipped.clear();
+        hostsResumed.clear();
+        hostsMissing.clear();
+        hostsFailed.clear();
+        vcFinishTime.clear();
+        for (FetchStats vc : vCenters) {
+            scheduler.register(vc.getVsphereIp());
+            hostsDone.put(vc.getVsphereIp(), new AtomicInteger());
+            hostsDeferred.put(vc.getVsphereIp(), new AtomicInteger());
+            hostsSkipped.put(vc.getVsphereIp(), new AtomicInteger());
+            hostsResumed.put(vc.getVsphereIp(), new AtomicInteger());
+            hostsMissing.put(vc.getVsphereIp(), new AtomicInteger());
+            hostsFailed.put(vc.getVsphereIp(), new AtomicInteger());
+        }
+        if (checkpoint != null) {
+            checkpoint.beginSweep(sweepStart);
+        }
+
+        ExecutorService producers = Executors.newFixedThreadPool(vCenters.size());
+        for (final FetchStats vc : vCenters) {
+            producers.execute(new Runnable() {
+                @Override
+                public void run()
+                {
+                    produceHosts(vc, scheduler, sweepStart);
+                }
+            });
+        }
+        producers.shutdown();
+
+        ExecutorService hostWorkers = Executors.newFixedThreadPool(workers);
+        for (int i = 0; i < workers; i++) {
+            hostWorkers.execute(new Runnable() {
+                @Override
+                public void run()
+                {
+                    consumeHosts(scheduler, sweepStart);
+                }
+            });
+        }
+        hostWorkers.shutdown();
+
+        try {
+            hostWorkers.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            Log.error("Interrupted while waiting for host workers to complete");
+            Thread.currentThread().interrupt();
+        }
+
+        for (SampleListener listener : listeners) {
+            listener.onSweepComplete();
+        }
+        if (checkpoint != null) {
+            checkpoint.endSweep();
+        }
+        printSummary(sweepStart);
+    }
+
+    /**
+     * Stream high resolution samples from the hosts, one long-lived SSH channel per host and
+     * at most one host per worker, until the duration elapses or the process is stopped.
+     * Samples go to the same listeners as sweeps, which complete a sweep every sweep interval
+     * in long running mode, every stream interval otherwise.
+     */
+    public void
+    runStreaming()
+    {
+        final List<StreamingSampler> samplers = new ArrayList<StreamingSampler>();
+        final List<Thread> samplerThreads = new ArrayList<Thread>();
+        final List<SampleListener> streamListeners = new ArrayList<SampleListener>();
+        for (SampleListener listener : listeners) {
+            if (listener == planner) {
+                continue;
+            }
+            if (listener == reporter && !CollectorOptions.REPORT_DELTA.equals(options.reportMode)) {
+                listener = new SampleListener() {
+                    @Override
+                    public void
+                    onSample(HostdSample sample)
+                    {
+                        Log.report("STREAM " + sample.formatCompact());
+                    }
+
+                    @Override
+                    public void
+                    onSweepComplete()
+                    {
+                    }
+                };
+            }
+            streamListeners.add(listener);
+        }
+        final SampleListener fanOut = new SampleListener() {
+            @Override
+            public void
+            onSample(HostdSample sample)
+            {
+                for (SampleListener listener : streamListeners) {
+                    listener.onSample(sample);
+                }
+            }
+
+            @Override
+            public void
+            onSweepComplete()
+            {
+                synchronized (streamListeners) {
+                    for (SampleListener listener : streamListeners) {
+                        listener.onSweepComplete();
+                    }
+                }
+            }
+        };
+
+        int notStreamed = 0;
+        for (FetchStats vc : vCenters) {
+            if (!vc.validateProperties()) {
+                Log.error("Skipping vSphere: " + vc.getVsphereIp() + ", as login failed");
+                continue;
+            }
+            Iterator<HostRef> hosts;
+            try {
+                hosts = vc.iterateHosts();
+            } catch (Exception e) {
+                Log.error("Caught exception while retrieving hosts from vSphere: " + vc.getVsphereIp());
+                continue;
+            }
+            while (hosts.hasNext()) {
+                HostRef ref = hosts.next();
+                // every stream holds an SSH service and connection for its whole duration
+                if (samplers.size() >= workers) {
+                    notStreamed++;
+                    continue;
+                }
+                StreamingSampler sampler = new StreamingSampler(vc, ref, options.streamInterval,
+                    options.streamDuration, fanOut);
+                samplers.add(sampler);
+                Thread samplerThread = new Thread(sampler, "stream-" + ref.name);
+                samplerThreads.add(samplerThread);
+            }
+        }
+        if (notStreamed > 0) {
+            Log.warn("Streaming " + samplers.size() + " host(s), " + notStreamed
+                + " more not streamed, raise --workers to stream them");
+        }
+
+        // close all channels on Ctrl-C, so remote loops and SSH services get cleaned up
+        final AtomicInteger ended = new AtomicInteger();
+        Thread cleanup = new Thread() {
+            @Override
+            public void
+            run()
+            {
+                for (StreamingSampler sampler : samplers) {
+                    sampler.stop();
+                }
+                // give the samplers a chance to revert the SSH service state
+                for (Thread samplerThread : samplerThreads) {
+                    try {
+                        samplerThread.join(STREAM_STOP_TIMEOUT_MS);
+                    } catch (InterruptedException e) {
+                        break;
+                    }
+                }
+                if (ended.getAndIncrement() == 0) {
+                    fanOut.onSweepComplete();
+                }
+            }
+        };
+        Runtime.getRuntime().addShutdownHook(cleanup);
+
+        for (Thread samplerThread : samplerThreads) {
+            samplerThread.start();
+        }
+        long periodMs = 1000L * (options.isLongRunning() ? options.getSweepInterval() : options.streamInterval);
+        long nextSweep = System.currentTimeMillis() + periodMs;
+        try {
+            for (Thread samplerThread : samplerThreads) {
+                while (samplerThread.isAlive()) {
+                    long waitMs = nextSweep - System.currentTimeMillis();
+                    if (waitMs > 0) {
+                        samplerThread.join(waitMs);
+                    } else {
+                        fanOut.onSweepComplete();
+                        nextSweep += periodMs;
+                    }
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        if (ended.getAndIncrement() == 0) {
+            fanOut.onSweepComplete();
+        }
+        Runtime.getRuntime().removeShutdownHook(cleanup);
+    }
+
+    /**
+     * Login to the vCenter and queue its hosts, page by page as they arrive
+     */
+    private void
+    produceHosts(FetchStats vc, FairHostScheduler scheduler, long sweepStart)
+    {
+        String vcKey = vc.getVsphereIp();
+        try {
+            if (vc.validateProperties()) {
+                Log.info("Retrieving all hosts from VC " + vcKey + " ...");
+                Iterator<HostRef> hosts = dueHosts(vc, vc.iterateHosts(), sweepStart);
+                if (!hosts.hasNext() && hostsDeferred.get(vcKey).get() == 0 && hostsSkipped.get(vcKey).get() == 0
+                    && hostsResumed.get(vcKey).get() == 0) {
+                    Log.error("Could not find any hosts in inventory of vSphere: " + vcKey);
+                } else if (options.apiCollector) {
+                    produceViaApi(vc, hosts, scheduler, sweepStart);
+                } else {
+                    while (hosts.hasNext()) {
+                        scheduler.submit(vcKey, new FairHostScheduler.HostTask(vc, hosts.next()));
+                    }
+                }
+            } else {
+                Log.error("Skipping vSphere: " + vcKey + ", as login failed");
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (Exception e) {
+            Log.error("Caught exception while retrieving hosts from vSphere: " + vcKey);
+        } finally {
+            scheduler.producerDone(vcKey);
+        }
+    }
+
+    /**
+     * Hosts that are due for polling, not skipped after repeated failures, and not collected
+     * before a restart in the middle of the sweep. Without adaptive polling every host is due.
+     */
+    private Iterator<HostRef>
+    dueHosts(final FetchStats vc, final Iterator<HostRef> hosts, final long now)
+    {
+        return new Iterator<HostRef>() {
+            private HostRef nextRef;
+
+            @Override
+            public boolean
+            hasNext()
+            {
+                while (nextRef == null && hosts.hasNext()) {
+                    HostRef ref = hosts.next();
+                    if (checkpoint != null && checkpoint.isDone(vc.getVsphereIp(), ref)) {
+                        hostsResumed.get(vc.getVsphereIp()).incrementAndGet();
+                    } else if (planner != null && !planner.isDue(vc.getVsphereIp(), ref.name, now)) {
+                        hostsDeferred.get(vc.getVsphereIp()).incrementAndGet();
+                    } else if (!vc.allowHost(ref.name, now)) {
+                        hostsSkipped.get(vc.getVsphereIp()).incrementAndGet();
+                    } else {
+                        nextRef = ref;
+                    }
+                }
+                return nextRef != null;
+            }
+
+            @Override
+            public HostRef
+            next()
+            {
+                if (!hasNext()) {
+                    throw new NoSuchElementException();
+                }
+                HostRef ref = nextRef;
+                nextRef = null;
+                return ref;
+            }
+
+            @Override
+            public void
+            remove()
+            {
+                throw new UnsupportedOperationException();
+            }
+        };
+    }
+
+    /**
+     * Collect hosts in bulk through vSphere APIs. Only when SSH fallback is enabled, hosts are
+     * handed to the workers to complete the metrics that are not available through APIs.
+     */
+    private void
+    produceViaApi(FetchStats vc, Iterator<HostRef> hosts, FairHostScheduler scheduler, long sweepStart)
+        throws InterruptedException
+    {
+        String vcKey = vc.getVsphereIp();
+        while (hosts.hasNext()) {
+            List<HostRef> refs = new ArrayList<HostRef>();
+            List<HostSystem> batch = new ArrayList<HostSystem>();
+            while (hosts.hasNext() && batch.size() < ApiStatsCollector.BATCH_SIZE) {
+                HostRef ref = hosts.next();
+                refs.add(ref);
+                batch.add(vc.toHostSystem(ref));
+            }
+
+            Map<String, HostdSample> samples;
+            TraceRecorder.begin(TraceRecorder.CAT_API, "api batch", vcKey);
+            try {
+                samples = vc.collectHostsViaApi(batch);
+            } catch (Exception e) {
+                Log.error("Caught exception while fetching stats through APIs from vSphere: " + vcKey
+                    + ", skipping " + refs.size() + " host(s)", e);
+                hostsMissing.get(vcKey).addAndGet(refs.size());
+                continue;
+            } finally {
+                TraceRecorder.end(TraceRecorder.CAT_API, "api batch", vcKey);
+            }
+
+            for (HostRef ref : refs) {
+                HostdSample sample = samples.get(ref.mor.getVal());
+                if (sample == null) {
+                    Log.warn("No stats returned through APIs for host: " + ref.name + " of vSphere: " + vcKey);
+                    hostsMissing.get(vcKey).incrementAndGet();
+                    continue;
+                }
+                sample.setPlacement(ref);
+                if (options.sshFallback) {
+                    scheduler.submit(vcKey, new FairHostScheduler.HostTask(vc, ref, sample));
+                } else {
+                    reportSample(vc, ref, sample, sweepStart);
+                }
+            }
+        }
+    }
+
+    /**
+     * Report a completed host
+     */
+    private void
+    reportSample(FetchStats vc, HostRef ref, HostdSample sample, long sweepStart)
+    {
+        for (SampleListener listener : listeners) {
+            listener.onSample(sample);
+        }
+        if (checkpoint != null) {
+            checkpoint.markDone(vc.getVsphereIp(), ref);
+        }
+
+        String vcKey = vc.getVsphereIp();
+        hostsDone.get(vcKey).incrementAndGet();
+        vcFinishTime.put(vcKey, System.currentTimeMillis() - sweepStart);
+    }
+
+    /**
+     * Worker loop, collecting hosts until the scheduler runs dry
+     */
+    private void
+    consumeHosts(FairHostScheduler scheduler, long sweepStart)
+    {
+        try {
+            FairHostScheduler.HostTask task;
+            while ((task = scheduler.take()) != null) {
+                // a bug in one host or listener must not cost the worker, or the sweep hangs once
+                // every worker is gone
+                try {
+                    HostdSample sample = task.partialSample;
+                    if (sample == null) {
+                        sample = new HostdSample(task.vCenter.getVsphereIp(), task.hostRef.name);
+                        sample.setPlacement(task.hostRef);
+                    }
+                    sample = task.vCenter.collectHost(task.vCenter.toHostSystem(task.hostRef), sample);
+                    reportSample(task.vCenter, task.hostRef, sample, sweepStart);
+                } catch (RuntimeException e) {
+                    Log.error("Caught unexpected exception while collecting host: " + task.hostRef.name
+                        + " of vSphere: " + task.vCenter.getVsphereIp(), e);
+                    hostsFailed.get(task.vCenter.getVsphereIp()).incrementAndGet();
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Print per vCenter host counts and timings
+     */
+    private void
+    printSummary(long sweepStart)
+    {
+        Log.report("\n==================== S W E E P   S U M M A R Y ====================");
+        for (FetchStats vc : vCenters) {
+            String vcKey = vc.getVsphereIp();
+            Long elapsed = vcFinishTime.get(vcKey);
+            Log.report("vSphere: " + vcKey + ", hosts: " + hostsDone.get(vcKey).get()
+                + (planner != null ? ", deferred: " + hostsDeferred.get(vcKey).get() : "")
+                + ", skipped after failures: " + hostsSkipped.get(vcKey).get()
+                + ", failed unexpectedly: " + hostsFailed.get(vcKey).get()
+                + (checkpoint != null ? ", collected before restart: " + hostsResumed.get(vcKey).get() : "")
+                + (options.apiCollector ? ", missing from API results: " + hostsMissing.get(vcKey).get() : "")
+                + ", completed in: " + (elapsed != null ? elapsed : 0) + " ms");
+        }
+        Log.report("Total sweep time: " + (System.currentTimeMillis() - sweepStart) + " ms");
+    }
+}
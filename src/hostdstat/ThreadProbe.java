@@ -0,0 +1,82 @@
+/**
+ * Probe for the hostd busy worker threads, from hostd.log. The limit comes from ConfigProbe.
+ *
+ * Copyright (c) 2016
+ *
+ * Permission is hereby granted, free of charge, to any person
+ * obtaining a copy of this software and associated documentation files
+ * (the "Software"), to deal in the Software without restriction,
+ * including without limitation the rights to use, copy, modify, merge,
+ * publish, distribute, sublicense, and/or sell copies of the Software,
+ * and to permit persons to whom the Software is furnished to do so,
+ * subject to the following conditions:
+ *
+ * @author Gururaja Hegdal (ghegdal@vmware.com)
+ * @version 1.0
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES
+ * OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT
+ * HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY,
+ * WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING
+ * FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR
+ * OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+package hostdstat;
+
+public class ThreadProbe implements Probe
+{
+    @Override
+    public String
+    getName()
+    {
+        return "thread";
+    }
+
+    @Override
+    public String[]
+    getCommands()
+    {
+        return new String[] {
+            "grep \"HandleWork(type:\" /var/log/hostd.log |"
+                + " tail -n 1 | "
+                + " grep -o -E \"busy_long:[0-9]+\" |"
+                + " grep -o -E  \"[0-9]\"" };
+    }
+
+    @Override
+    public void
+    parse(String[] outputs, HostdSample sample)
+    {
+        if (outputs[0] != null) {
+            sample.threadUsage = outputs[0].replace("\n", "");
+        }
+    }
+
+    @Override
+    public int
+    getCost()
+    {
+        // scans hostd.log
+        return 3;
+    }
+
+    @Override
+    public int
+    getCadence()
+    {
+        return 1;
+    }
+
+    @Override
+    public boolean
+    isSatisfied(HostdSample sample)
+    {
+        return false;
+    }
+}
@@ -0,0 +1,260 @@
+/**
+ * Records begin/end events of every collection phase of every host, and exports each
+ * sweep in the Chrome Trace Event format, to be opened in chrome://tracing or Perfetto
+ *
+ * Copyright (c) 2016
+ *
+ * Permission is hereby granted, free of charge, to any person
+ * obtaining a copy of this software and associated documentation files
+ * (the "Software"), to deal in the Software without restriction,
+ * including without limitation the rights to use, copy, modify, merge,
+ * publish, distribute, sublicense, and/or sell copies of the Software,
+ * and to permit persons to whom the Software is furnished to do so,
+ * subject to the following conditions:
+ *
+ * @author Gururaja Hegdal (ghegdal@vmware.com)
+ * @version 1.0
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES
+ * OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT
+ * HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY,
+ * WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING
+ * FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR
+ * OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+package hostdstat;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+public class TraceRecorder implements SampleListener
+{
+    public static final String CAT_HOST = "host";
+    public static final String CAT_SERVICE = "service";
+    public static final String CAT_SSH = "ssh";
+    public static final String CAT_COMMAND = "command";
+    public static final String CAT_API = "api";
+
+    private static final byte PHASE_BEGIN = 'B';
+    private static final byte PHASE_END = 'E';
+
+    // recorder of the running collection, null when tracing is off
+    private static volatile TraceRecorder active;
+
+    private final String traceFile;
+    private final boolean perSweepFiles;
+    private final long originNanos = System.nanoTime();
+    private final AtomicInteger nextTid = new AtomicInteger(1);
+    private final List<ThreadBuffer> buffers = new ArrayList<ThreadBuffer>();
+    private final ThreadLocal<ThreadBuffer> localBuffer = new ThreadLocal<ThreadBuffer>();
+    private int sweeps = 0;
+
+    /**
+     * Events of one thread. Only the owning thread appends, the lock is uncontended except
+     * while the sweep is exported.
+     */
+    private static class ThreadBuffer
+    {
+        final Thread thread;
+        final int tid;
+        final String threadName;
+        long[] times = new long[256];
+        byte[] phases = new byte[256];
+        String[] categories = new String[256];
+        String[] names = new String[256];
+        String[] hosts = new String[256];
+        int size;
+
+        ThreadBuffer(Thread thread, int tid)
+        {
+            this.thread = thread;
+            this.tid = tid;
+            this.threadName = thread.getName();
+        }
+
+        synchronized void
+        append(long time, byte phase, String category, String name, String host)
+        {
+            if (size == times.length) {
+                int capacity = size * 2;
+                times = Arrays.copyOf(times, capacity);
+                phases = Arrays.copyOf(phases, capacity);
+                categories = Arrays.copyOf(categories, capacity);
+                names = Arrays.copyOf(names, capacity);
+                hosts = Arrays.copyOf(hosts, capacity);
+            }
+            times[size] = time;
+            phases[size] = phase;
+            categories[size] = category;
+            names[size] = name;
+            hosts[size] = host;
+            size++;
+        }
+    }
+
+    /**
+     * Constructor. In long running mode every sweep goes to its own file, numbered after
+     * the given one.
+     */
+    public TraceRecorder(String traceFile, boolean perSweepFiles)
+    {
+        this.traceFile = traceFile;
+        this.perSweepFiles = perSweepFiles;
+    }
+
+    /**
+     * Make this recorder receive the events of the collection
+     */
+    public void
+    activate()
+    {
+        active = this;
+    }
+
+    /**
+     * Begin a phase on the current thread. Does nothing when tracing is off.
+     */
+    public static void
+    begin(String category, String name, String host)
+    {
+        TraceRecorder recorder = active;
+        if (recorder != null) {
+            recorder.record(PHASE_BEGIN, category, name, host);
+        }
+    }
+
+    /**
+     * End the last phase begun on the current thread
+     */
+    public static void
+    end(String category, String name, String host)
+    {
+        TraceRecorder recorder = active;
+        if (recorder != null) {
+            recorder.record(PHASE_END, category, name, host);
+        }
+    }
+
+    private void
+    record(byte phase, String category, String name, String host)
+    {
+        long time = System.nanoTime() - originNanos;
+        ThreadBuffer buffer = localBuffer.get();
+        if (buffer == null) {
+            buffer = new ThreadBuffer(Thread.currentThread(), nextTid.getAndIncrement());
+            localBuffer.set(buffer);
+            synchronized (buffers) {
+                buffers.add(buffer);
+            }
+        }
+        buffer.append(time, phase, category, name, host);
+    }
+
+    @Override
+    public void
+    onSample(HostdSample sample)
+    {
+    }
+
+    /**
+     * Export the events of the sweep, and start over for the next one
+     */
+    @Override
+    public void
+    onSweepComplete()
+    {
+        sweeps++;
+        String fileName = perSweepFiles ? numberedFile(traceFile, sweeps) : traceFile;
+        try {
+            int events = export(new File(fileName));
+            Log.info("Trace of " + events + " event(s) written to " + fileName);
+        } catch (IOException e) {
+            Log.error("Unable to write trace file: " + fileName, e);
+        }
+    }
+
+    /**
+     * Write and clear the buffered events. Buffers of threads that are gone, ex: the
+     * workers of the sweep, are dropped once written.
+     */
+    int
+    export(File file) throws IOException
+    {
+        int events = 0;
+        Writer out = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(file), "UTF-8"));
+        try {
+            out.write("{\"displayTimeUnit\":\"ms\",\"traceEvents\":[");
+            boolean first = true;
+            synchronized (buffers) {
+                for (Iterator<ThreadBuffer> it = buffers.iterator(); it.hasNext();) {
+                    ThreadBuffer buffer = it.next();
+                    synchronized (buffer) {
+                        if (buffer.size == 0) {
+                            if (!buffer.thread.isAlive()) {
+                                it.remove();
+                            }
+                            continue;
+                        }
+                        out.write(first ? "\n" : ",\n");
+                        first = false;
+                        out.write("{\"ph\":\"M\",\"name\":\"thread_name\",\"pid\":1,\"tid\":" + buffer.tid
+                            + ",\"args\":{\"name\":" + Json.quote(buffer.threadName) + "}}");
+                        for (int i = 0; i < buffer.size; i++) {
+                            out.write(",\n{\"ph\":\"");
+                            out.write((char) buffer.phases[i]);
+                            out.write("\",\"cat\":");
+                            out.write(Json.quote(buffer.categories[i]));
+                            out.write(",\"name\":");
+                            out.write(Json.quote(buffer.names[i]));
+                            out.write(",\"pid\":1,\"tid\":" + buffer.tid + ",\"ts\":" + (buffer.times[i] / 1000));
+                            if (buffer.hosts[i] != null) {
+                                out.write(",\"args\":{\"host\":" + Json.quote(buffer.hosts[i]) + "}");
+                            }
+                            out.write('}');
+                        }
+                        events += buffer.size;
+                        buffer.size = 0;
+                        Arrays.fill(buffer.categories, null);
+                        Arrays.fill(buffer.names, null);
+                        Arrays.fill(buffer.hosts, null);
+                    }
+                    if (!buffer.thread.isAlive()) {
+                        it.remove();
+                    }
+                }
+            }
+            out.write("\n]}\n");
+        } finally {
+            out.close();
+        }
+        return events;
+    }
+
+    /**
+     * trace.json becomes trace-3.json for the third sweep
+     */
+    static String
+    numberedFile(String fileName, int sweep)
+    {
+        int dot = fileName.lastIndexOf('.');
+        if (dot <= fileName.lastIndexOf(File.separatorChar)) {
+            return fileName + "-" + sweep;
+        }
+        return fileName.substring(0, dot) + "-" + sweep + fileName.substring(dot);
+    }
+}
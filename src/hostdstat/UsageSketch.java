@@ -0,0 +1,162 @@
+/**
+ * Mergeable streaming summary of usage percentages: count, min, max, mean and
+ * quantiles from a fixed width histogram. Safe for concurrent updates without locks.
+ *
+ * Copyright (c) 2016
+ *
+ * Permission is hereby granted, free of charge, to any person
+ * obtaining a copy of this software and associated documentation files
+ * (the "Software"), to deal in the Software without restriction,
+ * including without limitation the rights to use, copy, modify, merge,
+ * publish, distribute, sublicense, and/or sell copies of the Software,
+ * and to permit persons to whom the Software is furnished to do so,
+ * subject to the following conditions:
+ *
+ * @author Gururaja Hegdal (ghegdal@vmware.com)
+ * @version 1.0
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES
+ * OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT
+ * HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY,
+ * WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING
+ * FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR
+ * OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+package hostdstat;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+public class UsageSketch
+{
+    // 0.1 point buckets from 0 to 200%, quantiles are accurate to half a bucket
+    public static final float BUCKET_WIDTH = 0.1f;
+    public static final int BUCKETS = 2000;
+
+    // sum is kept in thousandths of a point, so that it can be updated atomically
+    private static final float SUM_SCALE = 1000f;
+
+    private final AtomicLongArray buckets = new AtomicLongArray(BUCKETS);
+    private final AtomicLong count = new AtomicLong();
+    private final AtomicLong scaledSum = new AtomicLong();
+
+    // float bits, ordered like the values as usage is never negative
+    private final AtomicInteger minBits = new AtomicInteger(Float.floatToIntBits(Float.MAX_VALUE));
+    private final AtomicInteger maxBits = new AtomicInteger(Float.floatToIntBits(0f));
+
+    /**
+     * Fold one usage percentage into the sketch
+     */
+    public void
+    add(float usage)
+    {
+        if (Float.isNaN(usage) || usage < 0) {
+            return;
+        }
+        buckets.incrementAndGet(bucketOf(usage));
+        count.incrementAndGet();
+        scaledSum.addAndGet(Math.round(usage * SUM_SCALE));
+        updateMin(Float.floatToIntBits(usage));
+        updateMax(Float.floatToIntBits(usage));
+    }
+
+    /**
+     * Fold another sketch into this one
+     */
+    public void
+    merge(UsageSketch other)
+    {
+        if (other.getCount() == 0) {
+            return;
+        }
+        for (int i = 0; i < BUCKETS; i++) {
+            long bucketCount = other.buckets.get(i);
+            if (bucketCount != 0) {
+                buckets.addAndGet(i, bucketCount);
+            }
+        }
+        count.addAndGet(other.count.get());
+        scaledSum.addAndGet(other.scaledSum.get());
+        updateMin(other.minBits.get());
+        updateMax(other.maxBits.get());
+    }
+
+    public long
+    getCount()
+    {
+        return count.get();
+    }
+
+    public float
+    getMin()
+    {
+        return getCount() > 0 ? Float.intBitsToFloat(minBits.get()) : 0;
+    }
+
+    public float
+    getMax()
+    {
+        return getCount() > 0 ? Float.intBitsToFloat(maxBits.get()) : 0;
+    }
+
+    public float
+    getMean()
+    {
+        long n = getCount();
+        return n > 0 ? scaledSum.get() / SUM_SCALE / n : 0;
+    }
+
+    /**
+     * Usage below which the given fraction of the values fall, ex: 0.99 for p99
+     */
+    public float
+    quantile(double q)
+    {
+        long n = getCount();
+        if (n == 0) {
+            return 0;
+        }
+        long rank = Math.max(1, (long) Math.ceil(q * n));
+        long seen = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            seen += buckets.get(i);
+            if (seen >= rank) {
+                // bucket middle, clamped to the exact extremes
+                float value = (i + 0.5f) * BUCKET_WIDTH;
+                return Math.max(getMin(), Math.min(getMax(), value));
+            }
+        }
+        return getMax();
+    }
+
+    private static int
+    bucketOf(float usage)
+    {
+        return Math.min(BUCKETS - 1, (int) (usage / BUCKET_WIDTH));
+    }
+
+    private void
+    updateMin(int bits)
+    {
+        int curr;
+        while (bits < (curr = minBits.get()) && !minBits.compareAndSet(curr, bits)) {
+            // retry
+        }
+    }
+
+    private void
+    updateMax(int bits)
+    {
+        int curr;
+        while (bits > (curr = maxBits.get()) && !maxBits.compareAndSet(curr, bits)) {
+            // retry
+        }
+    }
+}
@@ -0,0 +1,173 @@
+/**
+ * Checks AlertDispatcher against a local webhook: transitions of one window go out as a
+ * single batch, flaps are coalesced, and the payload has the documented JSON shape.
+ * Run with the compiled classes on the classpath: java hostdstat.AlertDispatcherCheck
+ *
+ * Copyright (c) 2016
+ *
+ * Permission is hereby granted, free of charge, to any person
+ * obtaining a copy of this software and associated documentation files
+ * (the "Software"), to deal in the Software without restriction,
+ * including without limitation the rights to use, copy, modify, merge,
+ * publish, distribute, sublicense, and/or sell copies of the Software,
+ * and to permit persons to whom the Software is furnished to do so,
+ * subject to the following conditions:
+ *
+ * @author Gururaja Hegdal (ghegdal@vmware.com)
+ * @version 1.0
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES
+ * OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT
+ * HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY,
+ * WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING
+ * FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR
+ * OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+package hostdstat;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.InetSocketAddress;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+public class AlertDispatcherCheck
+{
+    public static void
+    main(String[] args) throws Exception
+    {
+        final List<String> bodies = Collections.synchronizedList(new ArrayList<String>());
+        final List<String> contentTypes = Collections.synchronizedList(new ArrayList<String>());
+        HttpServer server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        server.createContext("/hook", new HttpHandler() {
+            @Override
+            public void
+            handle(HttpExchange exchange) throws IOException
+            {
+                bodies.add(readAll(exchange.getRequestBody()));
+                contentTypes.add(exchange.getRequestHeaders().getFirst("Content-Type"));
+                exchange.sendResponseHeaders(204, -1);
+                exchange.close();
+            }
+        });
+        server.start();
+
+        try {
+            URL webhook = new URL("http://127.0.0.1:" + server.getAddress().getPort() + "/hook");
+            List<URL> webhooks = new ArrayList<URL>();
+            webhooks.add(webhook);
+            // window far longer than the check, batches only go out on dispatch()
+            AlertDispatcher dispatcher = new AlertDispatcher(webhooks, 3600);
+
+            // host-1 MEM: GREEN, then RED
+            dispatcher.onSample(sample("host-1", "MEM", HostdSample.ALERT_GREEN, 40f));
+            dispatcher.onSample(sample("host-1", "MEM", HostdSample.ALERT_RED, 97f));
+            // host-1 THREAD: GREEN, WARNING and back to GREEN within the window
+            dispatcher.onSample(sample("host-1", "THREAD", HostdSample.ALERT_GREEN, 10f));
+            dispatcher.onSample(sample("host-1", "THREAD", HostdSample.ALERT_WARNING, 86f));
+            dispatcher.onSample(sample("host-1", "THREAD", HostdSample.ALERT_GREEN, 12f));
+            // host-1 FD: GREEN, WARNING, RED, folded into one alert
+            dispatcher.onSample(sample("host-1", "FD", HostdSample.ALERT_GREEN, 50f));
+            dispatcher.onSample(sample("host-1", "FD", HostdSample.ALERT_WARNING, 88f));
+            dispatcher.onSample(sample("host-1", "FD", HostdSample.ALERT_RED, 99f));
+            // host-2 seen WARNING, then GREEN within the window
+            dispatcher.onSample(sample("host-2", "MEM", HostdSample.ALERT_WARNING, 90f));
+            dispatcher.onSample(sample("host-2", "MEM", HostdSample.ALERT_GREEN, 30f));
+            // host-3 seen RED, with characters that need escaping
+            dispatcher.onSample(sample("host-\"3\"", "MEM", HostdSample.ALERT_RED, 96f));
+            dispatcher.dispatch();
+
+            check(bodies.size() == 1, "one request per window, got " + bodies.size());
+            check(contentTypes.get(0).startsWith("application/json"), "content type " + contentTypes.get(0));
+            String body = bodies.get(0);
+            check(body.startsWith("{\"source\":\"hostdstat\",\"sentAt\":"), "payload header: " + body);
+            check(body.endsWith("]}"), "payload end: " + body);
+            check(count(body, "\"metric\":") == 3, "three alerts: " + body);
+            check(body.contains("\"host\":\"host-1\",\"datacenter\":\"dc\",\"cluster\":\"cl\",\"metric\":\"MEM\","
+                + "\"from\":\"GREEN\",\"to\":\"RED\",\"usage\":97.0,"), "MEM alert of host-1: " + body);
+            check(body.contains("\"metric\":\"FD\",\"from\":\"GREEN\",\"to\":\"RED\",\"usage\":99.0,"),
+                "FD alert of host-1: " + body);
+            check(body.contains("\"transitions\":2}"), "folded FD transitions: " + body);
+            check(!body.contains("THREAD"), "THREAD flapped back: " + body);
+            check(!body.contains("host-2"), "new host-2 back to GREEN: " + body);
+            check(body.contains("\"host\":\"host-\\\"3\\\"\"") && body.contains("\"from\":null,\"to\":\"RED\""),
+                "new RED host-3: " + body);
+
+            // nothing pending, nothing sent
+            dispatcher.dispatch();
+            check(bodies.size() == 1, "empty window sent a request");
+
+            // the next window starts from the levels reached in the previous one
+            dispatcher.onSample(sample("host-1", "MEM", HostdSample.ALERT_GREEN, 20f));
+            dispatcher.dispatch();
+            check(bodies.size() == 2 && count(bodies.get(1), "\"metric\":") == 1
+                && bodies.get(1).contains("\"from\":\"RED\",\"to\":\"GREEN\""), "recovery: " + bodies);
+        } finally {
+            server.stop(0);
+        }
+        System.out.println("AlertDispatcherCheck OK");
+    }
+
+    private static HostdSample
+    sample(String hostName, String metric, String level, float usage)
+    {
+        HostdSample sample = new HostdSample("10.0.0.1", hostName);
+        sample.datacenter = "dc";
+        sample.cluster = "cl";
+        if ("MEM".equals(metric)) {
+            sample.MEM_ALERT = level;
+            sample.memThreshold = usage;
+        } else if ("THREAD".equals(metric)) {
+            sample.THREAD_ALERT = level;
+            sample.threadThreshold = usage;
+        } else {
+            sample.FD_ALERT = level;
+            sample.fdThreshold = usage;
+        }
+        return sample;
+    }
+
+    private static void
+    check(boolean condition, String message)
+    {
+        if (!condition) {
+            throw new AssertionError(message);
+        }
+    }
+
+    private static int
+    count(String text, String part)
+    {
+        int count = 0;
+        for (int i = text.indexOf(part); i >= 0; i = text.indexOf(part, i + part.length())) {
+            count++;
+        }
+        return count;
+    }
+
+    private static String
+    readAll(InputStream in) throws IOException
+    {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] buf = new byte[1024];
+        int n;
+        while ((n = in.read(buf)) >= 0) {
+            out.write(buf, 0, n);
+        }
+        in.close();
+        return out.toString("UTF-8");
+    }
+}
@@ -0,0 +1,100 @@
+/**
+ * Checks that resource group fields are keyed by the full path of their nested sections, on
+ * a sample of esxcfg-resgrp -l host/vim/vmvisor/hostd output.
+ * Run with the compiled classes on the classpath: java hostdstat.ResourceGroupParserCheck
+ *
+ * Copyright (c) 2016
+ *
+ * Permission is hereby granted, free of charge, to any person
+ * obtaining a copy of this software and associated documentation files
+ * (the "Software"), to deal in the Software without restriction,
+ * including without limitation the rights to use, copy, modify, merge,
+ * publish, distribute, sublicense, and/or sell copies of the Software,
+ * and to permit persons to whom the Software is furnished to do so,
+ * subject to the following conditions:
+ *
+ * @author Gururaja Hegdal (ghegdal@vmware.com)
+ * @version 1.0
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES
+ * OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT
+ * HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY,
+ * WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING
+ * FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR
+ * OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+package hostdstat;
+
+import java.util.List;
+import java.util.Map;
+
+public class ResourceGroupParserCheck
+{
+    private static final String SAMPLE =
+          "Resource Groups:\n"
+        + "   Group Name: hostd\n"
+        + "      Group ID: 1023\n"
+        + "      Memory:\n"
+        + "         Min: 0 MB\n"
+        + "         Max: 1024 MB\n"
+        + "         Total: 812 MB\n"
+        + "      Group Capacity:\n"
+        + "         Total Memory: 1024 MB\n"
+        + "         Memory:\n"
+        + "            Total: 1024 MB\n"
+        + "            Available: 212 MB\n"
+        + "         CPU:\n"
+        + "            Total: 2000 MHz\n"
+        + "      Shares: 1000\n"
+        + "   Group Name: hostd.34567\n"
+        + "      Group ID: 1024\n"
+        + "      Memory:\n"
+        + "         Effective Minimum: 812 MB\n"
+        + "         Total: 812 MB\n"
+        + "      Group Capacity:\n"
+        + "         Total Memory: 1024 MB\n";
+
+    public static void
+    main(String[] args) throws Exception
+    {
+        List<ResourceGroupParser.Group> groups = ResourceGroupParser.parse(SAMPLE);
+        check(groups.size() == 2, "groups: " + groups.size());
+
+        ResourceGroupParser.Group hostd = groups.get(0);
+        Map<String, String> fields = hostd.getFields();
+        check("hostd".equals(hostd.getName()), "group name: " + hostd.getName());
+        check("1023".equals(fields.get("Group ID")), "top level field: " + fields);
+        check("812 MB".equals(fields.get("Memory/Total")), "section field: " + fields);
+        check("1024 MB".equals(fields.get("Group Capacity/Total Memory")), "capacity field: " + fields);
+        check("1024 MB".equals(fields.get("Group Capacity/Memory/Total")), "nested field: " + fields);
+        check("212 MB".equals(fields.get("Group Capacity/Memory/Available")), "nested field: " + fields);
+        check("2000 MHz".equals(fields.get("Group Capacity/CPU/Total")), "sibling section: " + fields);
+        check("1000".equals(fields.get("Shares")), "field after the sections: " + fields);
+
+        check("1024".equals(ResourceGroupParser.findValue(groups, null, "Group Capacity/Memory", "Total",
+            ResourceGroupParser.UNIT_MB)), "nested capacity not found");
+        check("812".equals(ResourceGroupParser.findValue(groups, null, "Memory", "Total",
+            ResourceGroupParser.UNIT_MB)), "first memory total not found");
+
+        HostdSample sample = new HostdSample("10.0.0.1", "esx-1");
+        new MemoryProbe().parse(new String[] { SAMPLE }, sample);
+        check("812".equals(sample.hostdMemUsage), "usage: " + sample.hostdMemUsage);
+        check("1024".equals(sample.hostdMemLimit), "limit: " + sample.hostdMemLimit);
+        check(!sample.memAtLimit, "usage below the limit reported at limit");
+        System.out.println("ResourceGroupParserCheck OK");
+    }
+
+    private static void
+    check(boolean condition, String message)
+    {
+        if (!condition) {
+            throw new AssertionError(message);
+        }
+    }
+}
@@ -0,0 +1,79 @@
+/**
+ * Checks that streamed samples carry the placement of their host, so that they reach the
+ * peer anomaly detector under their cluster.
+ * Run with the compiled classes on the classpath: java hostdstat.StreamingPlacementCheck
+ *
+ * Copyright (c) 2016
+ *
+ * Permission is hereby granted, free of charge, to any person
+ * obtaining a copy of this software and associated documentation files
+ * (the "Software"), to deal in the Software without restriction,
+ * including without limitation the rights to use, copy, modify, merge,
+ * publish, distribute, sublicense, and/or sell copies of the Software,
+ * and to permit persons to whom the Software is furnished to do so,
+ * subject to the following conditions:
+ *
+ * @author Gururaja Hegdal (ghegdal@vmware.com)
+ * @version 1.0
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES
+ * OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT
+ * HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY,
+ * WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING
+ * FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR
+ * OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+package hostdstat;
+
+import java.util.ArrayList;
+import java.util.List;
+
+public class StreamingPlacementCheck
+{
+    public static void
+    main(String[] args) throws Exception
+    {
+        PeerAnomalyDetector detector = new PeerAnomalyDetector(PeerAnomalyDetector.DEFAULT_Z_THRESHOLD);
+        List<HostdSample> samples = new ArrayList<HostdSample>();
+        for (int i = 1; i <= 5; i++) {
+            HostRef ref = new HostRef(null, "esx-" + i, "dc", "cl");
+            StreamingSampler sampler = new StreamingSampler(null, ref, 5, 0, detector);
+
+            HostdSample base = new HostdSample("10.0.0.1", ref.name);
+            base.setPlacement(ref);
+            base.hostdMemLimit = "1000";
+            base.threadLimit = "20";
+            base.fdLimit = "4000";
+
+            check(sampler.toSample("some other output", base) == null, "non sample line parsed");
+            HostdSample sample = sampler.toSample(StreamingSampler.LINE_MARKER + " 1700000000 " + (200 + i)
+                + " 3 " + (1000 + i), base);
+            check(sample != null, "sample line not parsed");
+            check("dc".equals(sample.datacenter) && "cl".equals(sample.cluster),
+                "placement of " + ref.name + ": " + sample.datacenter + "/" + sample.cluster);
+            check(sample.memThreshold != null && sample.fdThreshold != null, "usage not evaluated");
+            detector.onSample(sample);
+            samples.add(sample);
+        }
+
+        PeerAnomalyDetector.ClusterStats cluster = detector.clusters.get("10.0.0.1/dc/cl");
+        check(cluster != null, "no cluster in the detector: " + detector.clusters.keySet());
+        check(cluster.hostNames.size() == samples.size(), "hosts in the cluster: " + cluster.hostNames);
+        check(cluster.stats[0].count == samples.size(), "MEM values in the cluster: " + cluster.stats[0].count);
+        System.out.println("StreamingPlacementCheck OK");
+    }
+
+    private static void
+    check(boolean condition, String message)
+    {
+        if (!condition) {
+            throw new AssertionError(message);
+        }
+    }
+}